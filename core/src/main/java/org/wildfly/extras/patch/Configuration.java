@@ -36,12 +36,26 @@ public final class Configuration {
     public static final String PROPERTY_REPOSITORY_USERNAME = "repository.username";
     public static final String PROPERTY_REPOSITORY_PASSWORD = "repository.password";
     public static final String PROPERTY_AETHER_FACTORY = "aether.factory";
+    public static final String PROPERTY_REPOSITORY_CACHE_SIZE = "repository.cache.size";
+    public static final String PROPERTY_REPOSITORY_PRECOMPUTE_DELTAS = "repository.precompute.deltas";
+    public static final String PROPERTY_REPOSITORY_BINARY_DELTAS = "repository.binary.deltas";
+    public static final String PROPERTY_LOCK_TIMEOUT = "lock.timeout";
+    public static final String PROPERTY_SERVER_EXTRACT_THREADS = "server.extract.threads";
+    public static final String PROPERTY_SERVER_STREAMING_INSTALL = "server.streaming.install";
+    public static final String PROPERTY_SERVER_STAGED_INSTALL = "server.staged.install";
 
     private Path serverPath;
     private URL repoUrl;
     private String aetherFactory;
     private String username;
     private String password;
+    private Long cacheSize;
+    private Boolean precomputeDeltas;
+    private Boolean binaryDeltas;
+    private Long lockTimeout;
+    private Integer extractThreads;
+    private Boolean streamingInstall;
+    private Boolean stagedInstall;
 
     // Hide ctor
     private Configuration() {
@@ -81,6 +95,34 @@ public final class Configuration {
         if (propval != null) {
             config.aetherFactory = propval;
         }
+        propval = props.getProperty(PROPERTY_REPOSITORY_CACHE_SIZE);
+        if (propval != null) {
+            config.cacheSize = Long.valueOf(propval.trim());
+        }
+        propval = props.getProperty(PROPERTY_REPOSITORY_PRECOMPUTE_DELTAS);
+        if (propval != null) {
+            config.precomputeDeltas = Boolean.valueOf(propval.trim());
+        }
+        propval = props.getProperty(PROPERTY_REPOSITORY_BINARY_DELTAS);
+        if (propval != null) {
+            config.binaryDeltas = Boolean.valueOf(propval.trim());
+        }
+        propval = props.getProperty(PROPERTY_LOCK_TIMEOUT);
+        if (propval != null) {
+            config.lockTimeout = Long.valueOf(propval.trim());
+        }
+        propval = props.getProperty(PROPERTY_SERVER_EXTRACT_THREADS);
+        if (propval != null) {
+            config.extractThreads = Integer.valueOf(propval.trim());
+        }
+        propval = props.getProperty(PROPERTY_SERVER_STREAMING_INSTALL);
+        if (propval != null) {
+            config.streamingInstall = Boolean.valueOf(propval.trim());
+        }
+        propval = props.getProperty(PROPERTY_SERVER_STAGED_INSTALL);
+        if (propval != null) {
+            config.stagedInstall = Boolean.valueOf(propval.trim());
+        }
         return config;
     }
 
@@ -94,6 +136,27 @@ public final class Configuration {
         if (username != null && password != null) {
             builder.credentials(username, password);
         }
+        if (cacheSize != null) {
+            builder.smartPatchCacheSize(cacheSize);
+        }
+        if (precomputeDeltas != null) {
+            builder.precomputeDeltas(precomputeDeltas);
+        }
+        if (binaryDeltas != null) {
+            builder.binaryDeltas(binaryDeltas);
+        }
+        if (lockTimeout != null) {
+            builder.lockTimeout(lockTimeout);
+        }
+        if (extractThreads != null) {
+            builder.extractThreads(extractThreads);
+        }
+        if (streamingInstall != null) {
+            builder.streamingInstall(streamingInstall);
+        }
+        if (stagedInstall != null) {
+            builder.stagedInstall(stagedInstall);
+        }
         if (aetherFactory != null) {
             try {
                 Class<?> clazz = getClass().getClassLoader().loadClass(aetherFactory);
@@ -19,18 +19,20 @@
  */
 package org.wildfly.extras.patch;
 
-import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.wildfly.extras.patch.Record.Action;
 import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+import org.wildfly.extras.patch.utils.PathStates;
 
 /**
  * A set of managed server paths.
@@ -64,38 +66,60 @@ public final class ManagedPaths {
     }
 
     public ManagedPaths updatePaths(Path rootPath, SmartPatch smartPatch, Action... actions) {
+        return updatePaths(PathStates.stat(rootPath, getAffectedPaths(smartPatch, actions)), smartPatch, actions);
+    }
+
+    /**
+     * Update the managed paths with the given states of the affected paths and their parent directories
+     */
+    public ManagedPaths updatePaths(PathStates states, SmartPatch smartPatch, Action... actions) {
         List<Action> actlist = Arrays.asList(actions);
         for (Record rec : smartPatch.getRecords()) {
             Action act = rec.getAction();
             if (actlist.contains(act)) {
                 if (act == Action.ADD) {
-                    addPathOwner(rootPath, rec.getPath(), rec.getPatchId());
+                    addPathOwner(states, rec.getPath(), rec.getPatchId());
                 } else if (act == Action.UPD) {
-                    addPathOwner(rootPath, rec.getPath(), rec.getPatchId());
+                    addPathOwner(states, rec.getPath(), rec.getPatchId());
                 } else if (act == Action.DEL) {
-                    removePathOwner(rootPath, rec.getPath(), rec.getPatchId());
+                    removePathOwner(states, rec.getPath(), rec.getPatchId());
                 }
             }
         }
         return this;
     }
 
-    private void addPathOwner(Path rootPath, Path path, PatchId owner) {
+    /**
+     * Get the distinct paths and parent directories of the records with the given actions
+     */
+    public static Set<Path> getAffectedPaths(SmartPatch smartPatch, Action... actions) {
+        List<Action> actlist = Arrays.asList(actions);
+        Set<Path> result = new HashSet<>();
+        for (Record rec : smartPatch.getRecords()) {
+            if (actlist.contains(rec.getAction())) {
+                Path path = rec.getPath();
+                while (path != null && result.add(path)) {
+                    path = path.getParent();
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addPathOwner(PathStates states, Path path, PatchId owner) {
 
         // Recursively add managed parent dirs
         Path parent = path.getParent();
         if (parent != null) {
-            File parentDir = rootPath.resolve(parent).toFile();
-            if (!parentDir.exists() || managedPaths.get(parent) != null) {
-                addPathOwner(rootPath, parent, owner);
+            if (!states.exists(parent) || managedPaths.get(parent) != null) {
+                addPathOwner(states, parent, owner);
             }
         }
 
         ManagedPath mpath = managedPaths.get(path);
         if (mpath == null) {
             List<PatchId> owners = Collections.singletonList(owner);
-            File file = rootPath.resolve(path).toFile();
-            if (file.isFile()) {
+            if (states.isFile(path)) {
                 owners = new ArrayList<>(owners);
                 owners.add(0, Server.SERVER_ID);
             }
@@ -110,7 +134,7 @@ public final class ManagedPaths {
         }
     }
 
-    private void removePathOwner(Path rootPath, Path path, PatchId owner) {
+    private void removePathOwner(PathStates states, Path path, PatchId owner) {
 
         ManagedPath mpath = managedPaths.get(path);
         if (mpath != null) {
@@ -130,9 +154,8 @@ public final class ManagedPaths {
         // Recursively remove managed parent dirs
         Path parent = path.getParent();
         if (parent != null) {
-            File file = rootPath.resolve(parent).toFile();
-            if (!file.exists()) {
-                removePathOwner(rootPath, parent, owner);
+            if (!states.exists(parent)) {
+                removePathOwner(states, parent, owner);
             }
         }
     }
@@ -24,11 +24,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import org.wildfly.extras.patch.Record.Action;
 import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
@@ -54,32 +53,42 @@ public final class Patch {
     public static Patch smartDelta(Patch seedPatch, Patch targetSet) {
         IllegalArgumentAssertion.assertNotNull(targetSet, "targetSet");
 
-        // All seed patch records are remove candidates
-        Map<Path, Record> removeMap = new HashMap<>();
-        if (seedPatch != null) {
-            for (Record rec : seedPatch.getRecords()) {
-                removeMap.put(rec.getPath(), Record.create(null, Action.DEL, rec.getPath(), rec.getChecksum()));
+        // Both record sets are sorted by path, which allows for a single merge pass
+        Iterator<Record> seedIt = seedPatch != null ? seedPatch.recordsMap.values().iterator() : Collections.<Record>emptyIterator();
+        Iterator<Record> targetIt = targetSet.recordsMap.values().iterator();
+        Record seedRec = seedIt.hasNext() ? seedIt.next() : null;
+        Record targetRec = targetIt.hasNext() ? targetIt.next() : null;
+
+        Patch result = new Patch(targetSet.metadata);
+        while (seedRec != null || targetRec != null) {
+            int comp;
+            if (seedRec == null) {
+                comp = 1;
+            } else if (targetRec == null) {
+                comp = -1;
+            } else {
+                comp = seedRec.getPath().compareTo(targetRec.getPath());
             }
-        }
-
-        Set<Record> records = new HashSet<>();
-        for (Record rec : targetSet.getRecords()) {
-            Path path = rec.getPath();
-            Long checksum = rec.getChecksum();
-            if (removeMap.containsValue(rec)) {
-                removeMap.remove(path);
+            if (comp < 0) {
+                result.addRecord(Action.DEL, seedRec);
+                seedRec = seedIt.hasNext() ? seedIt.next() : null;
+            } else if (comp > 0) {
+                result.addRecord(Action.ADD, targetRec);
+                targetRec = targetIt.hasNext() ? targetIt.next() : null;
             } else {
-                if (removeMap.containsKey(path)) {
-                    records.add(Record.create(null, Action.UPD, path, checksum));
-                    removeMap.remove(path);
-                } else {
-                    records.add(Record.create(null, Action.ADD, path, checksum));
+                if (!seedRec.getChecksum().equals(targetRec.getChecksum())) {
+                    result.addRecord(Action.UPD, targetRec);
                 }
+                seedRec = seedIt.hasNext() ? seedIt.next() : null;
+                targetRec = targetIt.hasNext() ? targetIt.next() : null;
             }
         }
+        return result;
+    }
 
-        records.addAll(removeMap.values());
-        return new Patch(targetSet.metadata, records);
+    private Patch(PatchMetadata metadata) {
+        IllegalArgumentAssertion.assertNotNull(metadata, "metadata");
+        this.metadata = metadata;
     }
 
     private Patch(PatchMetadata metadata, Collection<Record> records) {
@@ -99,6 +108,12 @@ public final class Patch {
         }
     }
 
+    // Records must be added in path order
+    private void addRecord(Action action, Record rec) {
+        Path path = rec.getPath();
+        recordsMap.put(path, Record.create(metadata.getPatchId(), action, path, rec.getChecksum()));
+    }
+
     public PatchMetadata getMetadata() {
         return metadata;
     }
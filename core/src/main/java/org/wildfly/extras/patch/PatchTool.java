@@ -92,4 +92,20 @@ public abstract class PatchTool {
      * @throws java.io.IOException If an IO exception occurred
      */
     public abstract Patch uninstall(PatchId patchId) throws IOException;
+
+    /**
+     * Stage the given patch id next to the server, so that it can be committed later
+     * @param patchId The id of the patch to stage
+     * @return The id of the staged patch or null if the patch is already installed
+     * @throws java.io.IOException If an IO exception occurred
+     */
+    public abstract PatchId stage(PatchId patchId) throws IOException;
+
+    /**
+     * Commit the staged patch to the server
+     * @param force Whether to force patch installation
+     * @return The installed patch
+     * @throws java.io.IOException If an IO exception occurred
+     */
+    public abstract Patch commit(boolean force) throws IOException;
 }
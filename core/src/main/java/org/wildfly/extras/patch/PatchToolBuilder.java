@@ -25,17 +25,22 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.wildfly.extras.patch.aether.AetherFactory;
 import org.wildfly.extras.patch.internal.DefaultPatchTool;
 import org.wildfly.extras.patch.repository.AetherRepository;
 import org.wildfly.extras.patch.repository.LocalFileRepository;
 import org.wildfly.extras.patch.repository.RepositoryClient;
+import org.wildfly.extras.patch.server.AbstractServer;
 import org.wildfly.extras.patch.server.ServerFactory;
 import org.wildfly.extras.patch.server.WildFlyServer;
 import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
 import org.wildfly.extras.patch.utils.IllegalStateAssertion;
+import org.wildfly.extras.patch.utils.ProcessLock;
 
 /**
  * The default {@link PatchTool} builder.
@@ -45,13 +50,20 @@ import org.wildfly.extras.patch.utils.IllegalStateAssertion;
  */
 public final class PatchToolBuilder {
 
-    private ReentrantLock lock = new ReentrantLock();
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
     private URL repoUrl;
     private Path serverPath;
     private ServerFactory serverFactory;
     private AetherFactory aetherFactory;
     private String username;
     private String password;
+    private long cacheSize = LocalFileRepository.DEFAULT_CACHE_SIZE;
+    private boolean precomputeDeltas;
+    private boolean binaryDeltas;
+    private long lockTimeout = ProcessLock.DEFAULT_TIMEOUT;
+    private int extractThreads = AbstractServer.DEFAULT_EXTRACT_THREADS;
+    private boolean streamingInstall;
+    private boolean stagedInstall;
 
     private Server server;
     private Repository repository;
@@ -63,11 +75,37 @@ public final class PatchToolBuilder {
         return this;
     }
 
-    public PatchToolBuilder customLock(ReentrantLock lock) {
+    /**
+     * The lock shared by the server and repository.
+     * Query operations acquire the read lock, modifications acquire the write lock.
+     */
+    public PatchToolBuilder customLock(ReadWriteLock lock) {
+        IllegalArgumentAssertion.assertNotNull(lock, "lock");
         this.lock = lock;
         return this;
     }
 
+    /**
+     * Use an exclusive lock for query operations and modifications
+     * @deprecated Use {@link #customLock(ReadWriteLock)}
+     */
+    @Deprecated
+    public PatchToolBuilder customLock(final ReentrantLock lock) {
+        IllegalArgumentAssertion.assertNotNull(lock, "lock");
+        this.lock = new ReadWriteLock() {
+            @Override
+            public Lock readLock() {
+                return lock;
+            }
+
+            @Override
+            public Lock writeLock() {
+                return lock;
+            }
+        };
+        return this;
+    }
+
     public PatchToolBuilder serverPath(Path serverPath) {
         this.serverPath = serverPath;
         return this;
@@ -97,10 +135,77 @@ public final class PatchToolBuilder {
         return this;
     }
 
+    /**
+     * The maximum size in bytes of the smart patch cache in a local repository.
+     * The cache is kept in the .cache directory of the repository, it is disabled by default and with zero.
+     */
+    public PatchToolBuilder smartPatchCacheSize(long cacheSize) {
+        IllegalArgumentAssertion.assertTrue(cacheSize >= 0, "Invalid cache size: " + cacheSize);
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * Precompute the smart patch from the previous latest version when an archive is added to a local repository
+     */
+    public PatchToolBuilder precomputeDeltas(boolean precomputeDeltas) {
+        this.precomputeDeltas = precomputeDeltas;
+        return this;
+    }
+
+    /**
+     * Ship binary deltas for large updated files in smart patches from a local repository.
+     * The server applying the smart patch must support binary deltas.
+     */
+    public PatchToolBuilder binaryDeltas(boolean binaryDeltas) {
+        this.binaryDeltas = binaryDeltas;
+        return this;
+    }
+
+    /**
+     * The time in milliseconds to wait for other processes that access the server workspace or a local repository
+     */
+    public PatchToolBuilder lockTimeout(long lockTimeout) {
+        IllegalArgumentAssertion.assertTrue(lockTimeout >= 0, "Invalid lock timeout: " + lockTimeout);
+        this.lockTimeout = lockTimeout;
+        return this;
+    }
+
+    /**
+     * The number of threads that extract patch content to the server
+     */
+    public PatchToolBuilder extractThreads(int extractThreads) {
+        IllegalArgumentAssertion.assertTrue(extractThreads > 0, "Invalid number of extract threads: " + extractThreads);
+        this.extractThreads = extractThreads;
+        return this;
+    }
+
+    /**
+     * Extract patch content while it arrives from the repository instead of downloading it to a temporary file first
+     */
+    public PatchToolBuilder streamingInstall(boolean streamingInstall) {
+        this.streamingInstall = streamingInstall;
+        return this;
+    }
+
+    /**
+     * Stage patch content next to the server and switch over through a journal,
+     * an interrupted switch-over is rolled back by the next server instance.
+     * Use {@link PatchTool#stage(PatchId)} and {@link PatchTool#commit(boolean)} to stage content ahead of a later switch-over.
+     */
+    public PatchToolBuilder stagedInstall(boolean stagedInstall) {
+        this.stagedInstall = stagedInstall;
+        return this;
+    }
+
     public PatchTool build() {
         return new DefaultPatchTool(lock, buildServer(), buildRepository());
     }
 
+    private PatchToolOptions buildOptions() {
+        return new PatchToolOptions(cacheSize, precomputeDeltas, binaryDeltas, lockTimeout, extractThreads, streamingInstall, stagedInstall);
+    }
+
     private Server buildServer() {
         if (server == null) {
             if (serverFactory != null) {
@@ -110,7 +215,7 @@ public final class PatchToolBuilder {
                     serverPath = WildFlyServer.getDefaultServerPath();
                 }
                 if (serverPath != null) {
-                    server = new WildFlyServer(lock, serverPath);
+                    server = new WildFlyServer(lock, serverPath, buildOptions());
                 }
             }
         }
@@ -140,7 +245,7 @@ public final class PatchToolBuilder {
                 // Local file repository
                 if (protocol.equals("file")) {
                     Path rootPath = getAbsolutePath(repoUrl);
-                    repository = new LocalFileRepository(lock, rootPath);
+                    repository = new LocalFileRepository(lock, rootPath, buildOptions());
                 }
 
                 IllegalStateAssertion.assertNotNull(repository, "Unsupported protocol: " + protocol);
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch;
+
+import org.wildfly.extras.patch.repository.LocalFileRepository;
+import org.wildfly.extras.patch.server.AbstractServer;
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+import org.wildfly.extras.patch.utils.ProcessLock;
+
+/**
+ * The settings of the server and repository that are built by the {@link PatchToolBuilder}.
+ *
+ * {@code PatchToolOptions} are immutable.
+ */
+public final class PatchToolOptions {
+
+    public static final PatchToolOptions DEFAULT = new PatchToolOptions(LocalFileRepository.DEFAULT_CACHE_SIZE, false, false,
+            ProcessLock.DEFAULT_TIMEOUT, AbstractServer.DEFAULT_EXTRACT_THREADS, false, false);
+
+    private final long cacheSize;
+    private final boolean precomputeDeltas;
+    private final boolean binaryDeltas;
+    private final long lockTimeout;
+    private final int extractThreads;
+    private final boolean streamingInstall;
+    private final boolean stagedInstall;
+
+    PatchToolOptions(long cacheSize, boolean precomputeDeltas, boolean binaryDeltas, long lockTimeout, int extractThreads, boolean streamingInstall, boolean stagedInstall) {
+        IllegalArgumentAssertion.assertTrue(cacheSize >= 0, "Invalid cache size: " + cacheSize);
+        IllegalArgumentAssertion.assertTrue(lockTimeout >= 0, "Invalid lock timeout: " + lockTimeout);
+        IllegalArgumentAssertion.assertTrue(extractThreads > 0, "Invalid number of extract threads: " + extractThreads);
+        this.cacheSize = cacheSize;
+        this.precomputeDeltas = precomputeDeltas;
+        this.binaryDeltas = binaryDeltas;
+        this.lockTimeout = lockTimeout;
+        this.extractThreads = extractThreads;
+        this.streamingInstall = streamingInstall;
+        this.stagedInstall = stagedInstall;
+    }
+
+    /**
+     * The maximum size in bytes of the smart patch cache in a local repository, zero disables the cache
+     */
+    public long getSmartPatchCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Precompute the smart patch from the previous latest version when an archive is added to a local repository
+     */
+    public boolean isPrecomputeDeltas() {
+        return precomputeDeltas;
+    }
+
+    /**
+     * Ship binary deltas for large updated files in smart patches from a local repository
+     */
+    public boolean isBinaryDeltas() {
+        return binaryDeltas;
+    }
+
+    /**
+     * The time in milliseconds to wait for other processes that access the server workspace or a local repository
+     */
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    /**
+     * The number of threads that extract patch content to the server
+     */
+    public int getExtractThreads() {
+        return extractThreads;
+    }
+
+    /**
+     * Extract patch content while it arrives instead of downloading it to a temporary file first
+     */
+    public boolean isStreamingInstall() {
+        return streamingInstall;
+    }
+
+    /**
+     * Stage patch content next to the server and switch over through a journal that is rolled back when incomplete
+     */
+    public boolean isStagedInstall() {
+        return stagedInstall;
+    }
+
+    @Override
+    public String toString() {
+        return "[cacheSize=" + cacheSize + ",precompute=" + precomputeDeltas + ",binary=" + binaryDeltas + ",lockTimeout=" + lockTimeout
+                + ",threads=" + extractThreads + ",streaming=" + streamingInstall + ",staged=" + stagedInstall + "]";
+    }
+}
@@ -60,7 +60,7 @@ public interface Server {
 
 	/**
 	 * Query managed server paths
-	 * @param pathsPattern The path pattern to query for
+	 * @param pathsPattern A path prefix, a glob or a regular expression that starts with 'regex:'
 	 * @return A list of managed server paths
 	 */
     List<ManagedPath> queryManagedPaths(String pathsPattern);
@@ -79,6 +79,12 @@ public interface Server {
      */
     Patch getPatch(PatchId patchId);
 
+    /**
+     * Verify the server files against the records of the applied patches
+     * @return A report of missing, modified and unmanaged files
+     */
+    VerificationReport verify();
+
 	/**
 	 * Apply a smart patch and return the result
 	 * @param smartPatch The patch to apply
@@ -88,6 +94,29 @@ public interface Server {
 	 */
 	Patch applySmartPatch(SmartPatch smartPatch, boolean force) throws IOException;
 
+    /**
+     * Stage the content of a smart patch next to the server, no server file is modified.
+     * A previously staged patch is replaced.
+     * @param smartPatch The patch to stage
+     * @return The id of the staged patch or null if there is nothing to stage
+     * @throws java.io.IOException If an IO exception occurred
+     */
+    PatchId stageSmartPatch(SmartPatch smartPatch) throws IOException;
+
+    /**
+     * Get the id of the staged patch
+     * @return The id of the staged patch or null
+     */
+    PatchId getStagedPatch();
+
+    /**
+     * Apply the staged patch by moving its content into place
+     * @param force Whether to force application of the patch
+     * @return The patch that was applied
+     * @throws java.io.IOException If an IO exception occurred
+     */
+    Patch commitStagedPatch(boolean force) throws IOException;
+
 	/**
 	 * Apply cleanup tasks to a server
 	 */
@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+
+/**
+ * The result of verifying the server files against the applied patches.
+ *
+ * Each line of the report associates a status with a server path.
+ * A {@code VerificationReport} is immutable.
+ */
+public final class VerificationReport {
+
+    public static enum Status {
+        MISSING, MODIFIED, UNMANAGED
+    }
+
+    private final Map<Path, Status> entries = new TreeMap<>();
+
+    public static VerificationReport create(Collection<Path> missing, Collection<Path> modified, Collection<Path> unmanaged) {
+        return new VerificationReport(missing, modified, unmanaged);
+    }
+
+    private VerificationReport(Collection<Path> missing, Collection<Path> modified, Collection<Path> unmanaged) {
+        IllegalArgumentAssertion.assertNotNull(missing, "missing");
+        IllegalArgumentAssertion.assertNotNull(modified, "modified");
+        IllegalArgumentAssertion.assertNotNull(unmanaged, "unmanaged");
+        for (Path path : missing) {
+            entries.put(path, Status.MISSING);
+        }
+        for (Path path : modified) {
+            entries.put(path, Status.MODIFIED);
+        }
+        for (Path path : unmanaged) {
+            entries.put(path, Status.UNMANAGED);
+        }
+    }
+
+    public boolean isClean() {
+        return entries.isEmpty();
+    }
+
+    public List<Path> getPaths(Status status) {
+        IllegalArgumentAssertion.assertNotNull(status, "status");
+        List<Path> result = new ArrayList<>();
+        for (Map.Entry<Path, Status> entry : entries.entrySet()) {
+            if (entry.getValue() == status) {
+                result.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Get the report lines, each line has the form {@code <status> <path>}
+     */
+    public List<String> getLines() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<Path, Status> entry : entries.entrySet()) {
+            result.add(entry.getValue() + " " + entry.getKey());
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationReport" + entries;
+    }
+}
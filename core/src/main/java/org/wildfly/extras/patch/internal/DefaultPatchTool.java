@@ -20,25 +20,35 @@
 package org.wildfly.extras.patch.internal;
 
 import java.io.IOException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wildfly.extras.patch.Patch;
 import org.wildfly.extras.patch.PatchId;
 import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.Record;
 import org.wildfly.extras.patch.Repository;
 import org.wildfly.extras.patch.Server;
 import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.server.DeltaMismatchException;
 import org.wildfly.extras.patch.server.WildFlyServer;
+import org.wildfly.extras.patch.utils.IOUtils;
 import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
 import org.wildfly.extras.patch.utils.PatchAssertion;
 
 public final class DefaultPatchTool extends PatchTool {
 
-    private final ReentrantLock lock;
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultPatchTool.class);
+
+    private final ReadWriteLock lock;
     private final Repository repository;
-    private Server server;
+    private volatile Server server;
 
-    public DefaultPatchTool(ReentrantLock lock, Server server, Repository repository) {
+    public DefaultPatchTool(ReadWriteLock lock, Server server, Repository repository) {
         IllegalArgumentAssertion.assertNotNull(lock, "lock");
         IllegalArgumentAssertion.assertNotNull(repository, "repository");
         this.lock = lock;
@@ -48,15 +58,19 @@ public final class DefaultPatchTool extends PatchTool {
 
     @Override
     public Server getServer() {
-        lock.tryLock();
-        try {
-            if (server == null) {
-                server = new WildFlyServer(lock, null);
+        Server result = server;
+        if (result == null) {
+            lock.writeLock().lock();
+            try {
+                if (server == null) {
+                    server = new WildFlyServer(lock, null);
+                }
+                result = server;
+            } finally {
+                lock.writeLock().unlock();
             }
-            return server;
-        } finally {
-            lock.unlock();
         }
+        return result;
     }
 
     @Override
@@ -65,61 +79,154 @@ public final class DefaultPatchTool extends PatchTool {
     }
 
     @Override
-    public Patch install(PatchId patchId, boolean force) throws IOException {
+    public Patch install(PatchId patchId, final boolean force) throws IOException {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
-        try {
-            return installInternal(patchId, force);
-        } finally {
-            lock.unlock();
-        }
+        return fetchAndApply(patchId, new SmartPatchOperation<Patch>() {
+            @Override
+            public Patch apply(SmartPatch smartPatch) throws IOException {
+                return getServer().applySmartPatch(smartPatch, force);
+            }
+        });
     }
 
     @Override
     public Patch update(String prefix, boolean force) throws IOException {
         IllegalArgumentAssertion.assertNotNull(prefix, "prefix");
-        lock.tryLock();
+        PatchId latestId;
+        lock.readLock().lock();
         try {
-            PatchId latestId = getRepository().getLatestAvailable(prefix);
-            PatchAssertion.assertNotNull(latestId, "Cannot obtain patch id for prefix: " + prefix);
-            return installInternal(latestId, force);
+            latestId = getRepository().getLatestAvailable(prefix);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
+        PatchAssertion.assertNotNull(latestId, "Cannot obtain patch id for prefix: " + prefix);
+        return install(latestId, force);
     }
 
     @Override
     public Patch uninstall(PatchId patchId) throws IOException {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
+        Server server = getServer();
+        Patch installed;
+        lock.readLock().lock();
         try {
-            Patch installed = getServer().getPatch(patchId);
-            PatchAssertion.assertNotNull(installed, "Patch not installed: " + patchId);
-            PatchId latestId = getServer().getPatch(patchId.getName()).getPatchId();
-            PatchAssertion.assertEquals(patchId, latestId, "Active package is " + latestId + ", cannot uninstall: " + patchId);
-            try (SmartPatch smartPatch = SmartPatch.forUninstall(installed)) {
-                return getServer().applySmartPatch(smartPatch, false);
+            installed = server.getPatch(patchId);
+        } finally {
+            lock.readLock().unlock();
+        }
+        PatchAssertion.assertNotNull(installed, "Patch not installed: " + patchId);
+        try (SmartPatch smartPatch = SmartPatch.forUninstall(installed)) {
+            lock.writeLock().lock();
+            try {
+                Patch latest = server.getPatch(patchId.getName());
+                PatchAssertion.assertNotNull(latest, "Patch not installed: " + patchId);
+                PatchId latestId = latest.getPatchId();
+                PatchAssertion.assertEquals(patchId, latestId, "Active package is " + latestId + ", cannot uninstall: " + patchId);
+                return server.applySmartPatch(smartPatch, false);
+            } finally {
+                lock.writeLock().unlock();
             }
+        }
+    }
+
+    @Override
+    public PatchId stage(PatchId patchId) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
+        return fetchAndApply(patchId, new SmartPatchOperation<PatchId>() {
+            @Override
+            public PatchId apply(SmartPatch smartPatch) throws IOException {
+                return getServer().stageSmartPatch(smartPatch);
+            }
+        });
+    }
+
+    @Override
+    public Patch commit(boolean force) throws IOException {
+        lock.writeLock().lock();
+        try {
+            return getServer().commitStagedPatch(force);
         } finally {
-            lock.unlock();
+            lock.writeLock().unlock();
         }
     }
 
-    private Patch installInternal(PatchId patchId, boolean force) throws IOException {
+    // An operation on the server with a smart patch from the repository
+    private interface SmartPatchOperation<T> {
+        T apply(SmartPatch smartPatch) throws IOException;
+    }
 
+    /**
+     * Fetch the smart patch under the read lock and apply it under the write lock,
+     * so that a slow repository does not block other users of the server.
+     * The smart patch is fetched again when the seed was changed in the meantime.
+     */
+    private <T> T fetchAndApply(PatchId patchId, SmartPatchOperation<T> operation) throws IOException {
+        // Initialize the server before the read lock, which cannot be upgraded
+        getServer();
+        Set<Path> mismatchPaths = null;
+        while (true) {
+            Patch seedPatch;
+            SmartPatch smartPatch;
+            lock.readLock().lock();
+            try {
+                seedPatch = getSeedPatch(patchId.getName());
+                if (mismatchPaths != null) {
+                    seedPatch = getActualSeed(seedPatch, mismatchPaths);
+                }
+                smartPatch = getRepository().getSmartPatch(seedPatch, patchId);
+            } finally {
+                lock.readLock().unlock();
+            }
+            try {
+                lock.writeLock().lock();
+                try {
+                    Patch currentSeed = getSeedPatch(patchId.getName());
+                    PatchId seedId = seedPatch != null ? seedPatch.getPatchId() : null;
+                    PatchId currentId = currentSeed != null ? currentSeed.getPatchId() : null;
+                    if (seedId == null ? currentId == null : seedId.equals(currentId)) {
+                        return operation.apply(smartPatch);
+                    }
+                    LOG.info("Applied {} changed to {}, fetching {} again", seedId, currentId, patchId);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (DeltaMismatchException ex) {
+                if (mismatchPaths != null) {
+                    throw ex;
+                }
+                LOG.warn("{}, requesting full content", ex.getMessage());
+                mismatchPaths = ex.getPaths();
+            } finally {
+                smartPatch.close();
+            }
+        }
+    }
+
+    // The applied patch that a smart patch for the given name is created from
+    private Patch getSeedPatch(String prefix) {
         PatchId serverId = null;
-        String prefix = patchId.getName();
         for (PatchId pid : getServer().queryAppliedPatches()) {
             if (pid.getName().equals(prefix)) {
                 serverId = pid;
                 break;
             }
         }
+        return serverId != null ? getServer().getPatch(serverId) : null;
+    }
 
-        Patch seedPatch = serverId != null ? getServer().getPatch(serverId) : null;
-        try (SmartPatch smartPatch = getRepository().getSmartPatch(seedPatch, patchId)) {
-            return getServer().applySmartPatch(smartPatch, force);
+    // Seed the actual checksums of the given server files, so that the repository sends their full content
+    private Patch getActualSeed(Patch seedPatch, Set<Path> paths) throws IOException {
+        Path homePath = getServer().getServerHome();
+        Set<Record> records = new HashSet<>();
+        for (Record rec : seedPatch.getRecords()) {
+            Path path = rec.getPath();
+            if (!paths.contains(path)) {
+                records.add(rec);
+            } else if (homePath.resolve(path).toFile().isFile()) {
+                records.add(Record.create(path, IOUtils.getCRC32(homePath.resolve(path))));
+            }
         }
+        return Patch.create(seedPatch.getMetadata(), records);
     }
 
     @Override
@@ -43,6 +43,7 @@ import org.wildfly.extras.patch.PatchMetadata;
 import org.wildfly.extras.patch.PatchMetadataBuilder;
 import org.wildfly.extras.patch.PatchTool;
 import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.Repository;
 import org.wildfly.extras.patch.repository.LocalFileRepository;
 import org.wildfly.extras.patch.utils.IllegalStateAssertion;
 
@@ -141,6 +142,15 @@ public class Main {
             opfound = true;
         }
 
+        // Rebuild the repository index
+        if (options.rebuildIndex) {
+            PatchTool patchTool = builder.build();
+            Repository repository = patchTool.getRepository();
+            IllegalStateAssertion.assertTrue(repository instanceof LocalFileRepository, "Cannot rebuild index of: " + repository);
+            printPatches(((LocalFileRepository) repository).rebuildIndex());
+            opfound = true;
+        }
+
         // Install to server
         if (options.installId != null) {
             PatchTool patchTool = builder.serverPath(options.serverHome).build();
@@ -165,6 +175,21 @@ public class Main {
             opfound = true;
         }
 
+        // Stage a patch next to the server
+        if (options.stageId != null) {
+            PatchTool patchTool = builder.serverPath(options.serverHome).build();
+            patchTool.stage(PatchId.fromString(options.stageId));
+            opfound = true;
+        }
+
+        // Commit the staged patch
+        if (options.commit) {
+            PatchTool patchTool = builder.serverPath(options.serverHome).build();
+            patchTool.getServer().cleanUp();
+            patchTool.commit(options.force);
+            opfound = true;
+        }
+
         // Print the audit log
         if (options.auditLog) {
             PatchTool patchTool = builder.serverPath(options.serverHome).build();
@@ -172,6 +197,13 @@ public class Main {
             opfound = true;
         }
 
+        // Verify the server files
+        if (options.verify) {
+            PatchTool patchTool = builder.serverPath(options.serverHome).build();
+            printLines(patchTool.getServer().verify().getLines());
+            opfound = true;
+        }
+
 		// Show help screen
 		if (!opfound) {
             helpScreen(cmdParser);
@@ -21,6 +21,7 @@ package org.wildfly.extras.patch.internal;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -34,6 +35,7 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -41,6 +43,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.wildfly.extras.patch.Patch;
@@ -81,6 +85,31 @@ public final class MetadataParser {
         return Patch.create(mdbuilder.build(), records);
     }
 
+    /**
+     * Build the patch from the central directory of a zip file, without inflating any entry data.
+     * Falls back to the streaming scan if the file cannot be opened as a zip file.
+     */
+    public static Patch buildPatchFromZip(PatchId patchId, Record.Action action, File zipFile) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(zipFile, "zipFile");
+
+        Set<Record> records = new HashSet<>();
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    records.add(Record.create(patchId, action, Paths.get(entry.getName()), entry.getCrc()));
+                }
+            }
+        } catch (ZipException ex) {
+            try (ZipInputStream zipInput = new ZipInputStream(new FileInputStream(zipFile))) {
+                return buildPatchFromZip(patchId, action, zipInput);
+            }
+        }
+        PatchMetadataBuilder mdbuilder = new PatchMetadataBuilder().patchId(patchId);
+        return Patch.create(mdbuilder.build(), records);
+    }
+
     public static Patch readPatch(Path rootPath, PatchId patchId) throws IOException {
         IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
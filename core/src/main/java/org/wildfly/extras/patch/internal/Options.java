@@ -45,27 +45,39 @@ final class Options {
     @Option(name = "--query-server", usage = "Query the server for installed patches")
     boolean queryServer;
 
-    @Option(name = "--query-server-paths", usage = "Query managed server paths")
+    @Option(name = "--query-server-paths", usage = "Query managed server paths by prefix, glob or regex:pattern")
     String queryServerPaths;
 
+    @Option(name = "--rebuild-index", usage = "Rebuild the index of a local repository")
+    boolean rebuildIndex;
+
     @Option(name = "--audit-log", usage = "Print the audit log")
     boolean auditLog;
 
+    @Option(name = "--verify", usage = "Verify the server files against the applied patches")
+    boolean verify;
+
     @Option(name = "--add", forbids = { "--remove" },  usage = "Add the given archive to the repository")
     URL addUrl;
 
     @Option(name = "--remove", forbids = { "--add" },  usage = "Remove the given patch id from the repository")
     String removeId;
 
-    @Option(name = "--install", forbids = { "--update", "--uninstall" },  usage = "Install the given patch id to the server")
+    @Option(name = "--install", forbids = { "--update", "--uninstall", "--stage", "--commit" },  usage = "Install the given patch id to the server")
     String installId;
 
-    @Option(name = "--update", forbids = { "--install", "--uninstall" },  usage = "Update the server for the given patch name")
+    @Option(name = "--update", forbids = { "--install", "--uninstall", "--stage", "--commit" },  usage = "Update the server for the given patch name")
     String updateName;
 
-    @Option(name = "--uninstall", forbids = { "--install", "--update" },  usage = "Uninstall the given patch id from the server")
+    @Option(name = "--uninstall", forbids = { "--install", "--update", "--stage", "--commit" },  usage = "Uninstall the given patch id from the server")
     String uninstallId;
 
+    @Option(name = "--stage", forbids = { "--install", "--update", "--uninstall", "--commit" },  usage = "Stage the given patch id next to the server without modifying server files")
+    String stageId;
+
+    @Option(name = "--commit", forbids = { "--install", "--update", "--uninstall", "--stage" },  usage = "Commit the staged patch to the server")
+    boolean commit;
+
     @Option(name = "--metadata", depends = { "--add" }, usage = "A subcommand for --add that points to a metadata descriptor")
     URL metadataUrl;
 
@@ -81,6 +93,6 @@ final class Options {
     @Option(name = "--roles", depends = { "--add" }, handler = StringArrayOptionHandler.class, usage = "A subcommand for --add that defines required roles")
     String[]  roles;
 
-    @Option(name = "--force", usage = "Force an --add, --install or --update operation")
+    @Option(name = "--force", usage = "Force an --add, --install, --update or --commit operation")
     boolean force;
 }
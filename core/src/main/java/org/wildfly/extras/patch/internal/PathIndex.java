@@ -0,0 +1,146 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.Record;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+import org.wildfly.extras.patch.utils.IllegalStateAssertion;
+
+/**
+ * The index of paths owned by the latest version of each patch in a local repository.
+ *
+ * Each line associates a path with the owning patch id and the checksum of its content.
+ * The index is rewritten atomically and rebuilt from the repository content when it does not exist.
+ */
+public final class PathIndex {
+
+    public static final String INDEX_FILE = "paths.index";
+
+    private final Path rootPath;
+    private final Map<Path, Record> owners = new TreeMap<>();
+
+    public static PathIndex read(Path rootPath) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
+        File indexFile = rootPath.resolve(INDEX_FILE).toFile();
+        if (!indexFile.isFile()) {
+            return rebuild(rootPath);
+        }
+        PathIndex index = new PathIndex(rootPath);
+        try (BufferedReader br = new BufferedReader(new FileReader(indexFile))) {
+            String line = br.readLine();
+            while (line != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    String[] toks = line.split("\\s");
+                    IllegalStateAssertion.assertEquals(3, toks.length, "Invalid index entry: " + line);
+                    Path path = Paths.get(toks[0]);
+                    index.owners.put(path, Record.create(PatchId.fromString(toks[1]), Record.Action.INFO, path, Long.valueOf(toks[2])));
+                }
+                line = br.readLine();
+            }
+        }
+        return index;
+    }
+
+    public static PathIndex rebuild(Path rootPath) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
+        PathIndex index = new PathIndex(rootPath);
+        for (PatchId patchId : RepositoryIndex.read(rootPath).queryAvailable(null, true)) {
+            index.addRecords(MetadataParser.readPatch(rootPath, patchId));
+        }
+        index.write();
+        return index;
+    }
+
+    private PathIndex(Path rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    /**
+     * Get the record of the latest patch that owns the given path
+     */
+    public Record getOwner(Path path) {
+        return owners.get(path);
+    }
+
+    /**
+     * Get the records of the latest patches by path
+     */
+    public Map<Path, Record> getOwners() {
+        return Collections.unmodifiableMap(owners);
+    }
+
+    /**
+     * Replace the paths owned by the given patch name
+     * @param latestPatch The latest version of the patch or null if no version is available
+     */
+    public void updateOwner(String name, Patch latestPatch) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        Iterator<Record> itrecs = owners.values().iterator();
+        while (itrecs.hasNext()) {
+            if (itrecs.next().getPatchId().getName().equals(name)) {
+                itrecs.remove();
+            }
+        }
+        if (latestPatch != null) {
+            IllegalArgumentAssertion.assertTrue(name.equals(latestPatch.getPatchId().getName()), "Invalid patch for " + name + ": " + latestPatch.getPatchId());
+            addRecords(latestPatch);
+        }
+        write();
+    }
+
+    private void addRecords(Patch patch) {
+        for (Record rec : patch.getRecords()) {
+            owners.put(rec.getPath(), rec);
+        }
+    }
+
+    private void write() throws IOException {
+        Path tmpPath = Files.createTempFile(rootPath, INDEX_FILE, ".tmp");
+        try {
+            try (PrintWriter pw = new PrintWriter(tmpPath.toFile())) {
+                pw.println(MetadataParser.VERSION_PREFIX + " " + PatchTool.VERSION);
+                for (Record rec : owners.values()) {
+                    pw.println(rec.getPath() + " " + rec.getPatchId() + " " + rec.getChecksum());
+                }
+            }
+            IOUtils.moveAtomic(tmpPath, rootPath.resolve(INDEX_FILE));
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+}
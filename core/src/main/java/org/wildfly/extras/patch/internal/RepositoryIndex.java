@@ -0,0 +1,252 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+import org.wildfly.extras.patch.utils.IllegalStateAssertion;
+
+/**
+ * The index of patches available in a local repository or applied to a server.
+ *
+ * Each line associates a patch id with the number of records and the checksum of its metadata file.
+ * A trailer line holds the number of entries and the checksum of the entry lines.
+ * The index is rewritten atomically and rebuilt from the metadata files when it does not exist
+ * or does not match its trailer. A rebuild writes the index, so callers that may rebuild
+ * must hold the exclusive lock on the directory.
+ */
+public final class RepositoryIndex {
+
+    public static final String INDEX_FILE = "repository.index";
+
+    private static final String TRAILER_PREFIX = "#entries";
+
+    private final Path rootPath;
+    private final String indexFile;
+    private final Map<PatchId, Entry> entries = new TreeMap<>();
+
+    public static RepositoryIndex read(Path rootPath) throws IOException {
+        return read(rootPath, INDEX_FILE);
+    }
+
+    public static RepositoryIndex read(Path rootPath, String indexName) throws IOException {
+        RepositoryIndex index = readIfValid(rootPath, indexName);
+        return index != null ? index : rebuild(rootPath, indexName);
+    }
+
+    /**
+     * Read the index without rebuilding it
+     * @return The index or null if it does not exist or does not match its trailer
+     */
+    public static RepositoryIndex readIfValid(Path rootPath, String indexName) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
+        IllegalArgumentAssertion.assertNotNull(indexName, "indexName");
+        File indexFile = rootPath.resolve(indexName).toFile();
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        RepositoryIndex index = new RepositoryIndex(rootPath, indexName);
+        CRC32 crc = new CRC32();
+        int count = 0;
+        String trailer = null;
+        try (BufferedReader br = new BufferedReader(new FileReader(indexFile))) {
+            String line = br.readLine();
+            while (line != null) {
+                line = line.trim();
+                if (line.startsWith(TRAILER_PREFIX)) {
+                    trailer = line;
+                } else if (line.length() > 0 && !line.startsWith("#")) {
+                    Entry entry = Entry.parse(line);
+                    if (entry == null) {
+                        return null;
+                    }
+                    index.entries.put(entry.getPatchId(), entry);
+                    crc.update(toBytes(line));
+                    count++;
+                }
+                line = br.readLine();
+            }
+        }
+        return getTrailer(count, crc.getValue()).equals(trailer) ? index : null;
+    }
+
+    public static RepositoryIndex rebuild(Path rootPath) throws IOException {
+        return rebuild(rootPath, INDEX_FILE);
+    }
+
+    public static RepositoryIndex rebuild(Path rootPath, String indexName) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
+        IllegalArgumentAssertion.assertNotNull(indexName, "indexName");
+        RepositoryIndex index = new RepositoryIndex(rootPath, indexName);
+        for (PatchId patchId : MetadataParser.queryAvailablePatches(rootPath, null, false)) {
+            index.addEntry(MetadataParser.readPatch(rootPath, patchId));
+        }
+        index.write();
+        return index;
+    }
+
+    private RepositoryIndex(Path rootPath, String indexFile) {
+        this.rootPath = rootPath;
+        this.indexFile = indexFile;
+    }
+
+    public List<PatchId> queryAvailable(String prefix, boolean latest) {
+        List<PatchId> result = new ArrayList<>();
+        PatchId lastId = null;
+        for (PatchId patchId : entries.keySet()) {
+            if (prefix == null || patchId.toString().startsWith(prefix)) {
+                if (latest && lastId != null && lastId.getName().equals(patchId.getName())) {
+                    result.remove(result.size() - 1);
+                }
+                result.add(patchId);
+                lastId = patchId;
+            }
+        }
+        Collections.reverse(result);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Get the latest available version of the given patch name
+     * @return The patch id or null if no version is available
+     */
+    public PatchId getLatest(String name) {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        PatchId result = null;
+        for (PatchId patchId : entries.keySet()) {
+            if (patchId.getName().equals(name)) {
+                result = patchId;
+            }
+        }
+        return result;
+    }
+
+    public Entry getEntry(PatchId patchId) {
+        return entries.get(patchId);
+    }
+
+    public void addPatch(Patch patch) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(patch, "patch");
+        addEntry(patch);
+        write();
+    }
+
+    public void removePatch(PatchId patchId) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
+        entries.remove(patchId);
+        write();
+    }
+
+    private void addEntry(Patch patch) throws IOException {
+        PatchId patchId = patch.getPatchId();
+        File metadataFile = MetadataParser.getMetadataFile(rootPath, patchId);
+        IllegalStateAssertion.assertTrue(metadataFile.isFile(), "Cannot find metadata file: " + metadataFile);
+        long checksum = IOUtils.getCRC32(metadataFile.toPath());
+        entries.put(patchId, new Entry(patchId, patch.getRecords().size(), checksum));
+    }
+
+    private void write() throws IOException {
+        Path tmpPath = Files.createTempFile(rootPath, indexFile, ".tmp");
+        try {
+            try (PrintWriter pw = new PrintWriter(tmpPath.toFile())) {
+                pw.println(MetadataParser.VERSION_PREFIX + " " + PatchTool.VERSION);
+                CRC32 crc = new CRC32();
+                for (Entry entry : entries.values()) {
+                    String line = entry.toString();
+                    pw.println(line);
+                    crc.update(toBytes(line));
+                }
+                pw.println(getTrailer(entries.size(), crc.getValue()));
+            }
+            IOUtils.moveAtomic(tmpPath, rootPath.resolve(indexFile));
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    private static String getTrailer(int count, long checksum) {
+        return TRAILER_PREFIX + " " + count + " " + checksum;
+    }
+
+    private static byte[] toBytes(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static final class Entry {
+
+        private final PatchId patchId;
+        private final int recordCount;
+        private final long checksum;
+
+        // An entry that cannot be parsed invalidates the index
+        static Entry parse(String line) {
+            String[] toks = line.split("\\s");
+            if (toks.length != 3) {
+                return null;
+            }
+            try {
+                return new Entry(PatchId.fromString(toks[0]), Integer.parseInt(toks[1]), Long.parseLong(toks[2]));
+            } catch (RuntimeException ex) {
+                return null;
+            }
+        }
+
+        private Entry(PatchId patchId, int recordCount, long checksum) {
+            this.patchId = patchId;
+            this.recordCount = recordCount;
+            this.checksum = checksum;
+        }
+
+        public PatchId getPatchId() {
+            return patchId;
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return patchId + " " + recordCount + " " + checksum;
+        }
+    }
+}
@@ -27,12 +27,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -41,7 +39,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -61,23 +63,50 @@ import org.wildfly.extras.patch.Record.Action;
 import org.wildfly.extras.patch.internal.MetadataParser;
 import org.wildfly.extras.patch.Repository;
 import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.utils.BinaryDelta;
 import org.wildfly.extras.patch.utils.IOUtils;
 import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
 import org.wildfly.extras.patch.utils.PatchAssertion;
+import org.wildfly.extras.patch.utils.ProcessLock;
+import org.wildfly.extras.patch.utils.RawZipFile;
+import org.wildfly.extras.patch.utils.RawZipOutput;
 
 public abstract class AbstractRepository implements Repository {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractRepository.class);
 
-    protected final Lock lock;
+    // Files smaller than this or larger than BinaryDelta.MAX_FILE_SIZE are always sent in full
+    private static final long DELTA_MIN_SIZE = 64 * 1024;
+    private static final String[] ARCHIVE_SUFFIXES = { ".jar", ".war", ".ear", ".rar", ".zip" };
+
+    protected final ReadWriteLock lock;
+
+    // Guards the cross-name duplicate path check and the shared repository indexes
+    protected final Lock indexLock = new ReentrantLock();
+    private final StripedLocks nameLocks = new StripedLocks(StripedLocks.DEFAULT_STRIPES);
+    private final Map<Path, Record> pendingPaths = new HashMap<>();
+
+    // Coordinates access with other processes, null when the repository is not shared through the file system
+    private final ProcessLock processLock;
 
     private final URL repositoryURL;
+    private final SmartPatchCache smartCache;
+    private final boolean precomputeDeltas;
+    private final boolean binaryDeltas;
 
-    public AbstractRepository(Lock lock, URL repoURL) {
+    public AbstractRepository(ReadWriteLock lock, URL repoURL) {
+        this(lock, repoURL, null, null, false, false);
+    }
+
+    AbstractRepository(ReadWriteLock lock, URL repoURL, ProcessLock processLock, SmartPatchCache smartCache, boolean precomputeDeltas, boolean binaryDeltas) {
         IllegalArgumentAssertion.assertNotNull(lock, "lock");
         IllegalArgumentAssertion.assertNotNull(repoURL, "repoURL");
         this.repositoryURL = repoURL;
         this.lock = lock;
+        this.processLock = processLock;
+        this.smartCache = smartCache;
+        this.precomputeDeltas = precomputeDeltas;
+        this.binaryDeltas = binaryDeltas;
     }
 
     @Override
@@ -88,40 +117,30 @@ public abstract class AbstractRepository implements Repository {
     @Override
     public PatchId getLatestAvailable(String prefix) {
         IllegalArgumentAssertion.assertNotNull(prefix, "prefix");
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             List<PatchId> list = new ArrayList<>(queryAvailable(prefix));
             Collections.sort(list);
             return list.isEmpty() ? null : list.get(list.size() - 1);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public PatchId addArchive(URL fileUrl) throws IOException {
-        lock.tryLock();
-        try {
-            PatchId patchId = PatchId.fromURL(fileUrl);
-            DataHandler dataHandler = new DataHandler(new URLDataSource(fileUrl));
-            PatchMetadata metadata = new PatchMetadataBuilder().patchId(patchId).build();
-            return addArchive(metadata, dataHandler, false);
-        } finally {
-            lock.unlock();
-        }
+        PatchId patchId = PatchId.fromURL(fileUrl);
+        DataHandler dataHandler = new DataHandler(new URLDataSource(fileUrl));
+        PatchMetadata metadata = new PatchMetadataBuilder().patchId(patchId).build();
+        return addArchive(metadata, dataHandler, false);
     }
 
     @Override
     public PatchId addArchive(URL fileUrl, boolean force) throws IOException {
-        lock.tryLock();
-        try {
-            PatchId patchId = PatchId.fromURL(fileUrl);
-            DataHandler dataHandler = new DataHandler(new URLDataSource(fileUrl));
-            PatchMetadata metadata = new PatchMetadataBuilder().patchId(patchId).build();
-            return addArchive(metadata, dataHandler, force);
-        } finally {
-            lock.unlock();
-        }
+        PatchId patchId = PatchId.fromURL(fileUrl);
+        DataHandler dataHandler = new DataHandler(new URLDataSource(fileUrl));
+        PatchMetadata metadata = new PatchMetadataBuilder().patchId(patchId).build();
+        return addArchive(metadata, dataHandler, force);
     }
 
     @Override
@@ -134,131 +153,138 @@ public abstract class AbstractRepository implements Repository {
         PatchId oneoffId = metadata.getOneoffId();
         Set<PatchId> dependencies = metadata.getDependencies();
 
-        lock.tryLock();
+        // Archives with different names are added concurrently
+        ReadWriteLock nameLock = getNameLock(patchId.getName());
+        lock.readLock().lock();
+        nameLock.writeLock().lock();
+        Path targetPath = null;
         try {
-            // Cannot add already existing archive
-            if (queryAvailable(null).contains(patchId)) {
-                LOG.warn("Repository already contains {}", patchId);
-                return patchId;
-            }
+            lockProcess(false);
+            try {
+                // Cannot add already existing archive
+                if (queryAvailable(null).contains(patchId)) {
+                    LOG.warn("Repository already contains {}", patchId);
+                    return patchId;
+                }
 
-            // Verify one-off id
-            if (oneoffId != null) {
-                PatchAssertion.assertNotNull(getPatch(oneoffId), "Cannot obtain target patch for: " + oneoffId);
-            }
+                // Verify one-off id
+                if (oneoffId != null) {
+                    PatchAssertion.assertNotNull(getPatch(oneoffId), "Cannot obtain target patch for: " + oneoffId);
+                }
 
-            String message = "Add " + patchId;
-            if (oneoffId != null) {
-                message += " patching " + oneoffId;
-            }
-            if (!dependencies.isEmpty()) {
-                message += " with dependencies on " + dependencies;
-            }
-            LOG.info(message);
+                String message = "Add " + patchId;
+                if (oneoffId != null) {
+                    message += " patching " + oneoffId;
+                }
+                if (!dependencies.isEmpty()) {
+                    message += " with dependencies on " + dependencies;
+                }
+                LOG.info(message);
+
+                targetPath = Files.createTempFile("fptmp", ".zip");
+                final File targetFile = targetPath.toFile();
 
-            // Collect the paths from the latest other patches
-            Map<Path, Record> combinedPathsMap = new HashMap<>();
-            for (PatchId auxid : queryAvailable(null)) {
-                if (!patchId.getName().equals(auxid.getName())) {
-                    for (Record rec : getPatch(auxid).getRecords()) {
-                        combinedPathsMap.put(rec.getPath(), rec);
+                // Copy regular patch content to a target file
+                if (oneoffId == null) {
+                    try (InputStream input = dataHandler.getInputStream(); OutputStream output = new FileOutputStream(targetFile)) {
+                        IOUtils.copy(input, output);
                     }
                 }
-            }
-
-            final Path targetPath = Files.createTempFile("fptmp", ".zip");
-            final File targetFile = targetPath.toFile();
 
-            // Copy regular patch content to a target file
-            if (oneoffId == null) {
-                try (InputStream input = dataHandler.getInputStream(); OutputStream output = new FileOutputStream(targetFile)) {
-                    IOUtils.copy(input, output);
+                // Combine oneoff base contant with patch content to a target file
+                if (oneoffId != null) {
+                    mergeOneoffContent(oneoffId, dataHandler, targetFile);
                 }
-            }
 
-            // Combine oneoff base contant with patch content to a target file
-            if (oneoffId != null) {
+                // Build the patch
+                Patch source = MetadataParser.buildPatchFromZip(patchId, Record.Action.INFO, targetFile);
+                Patch patch = Patch.create(metadata, source.getRecords());
 
-                final Path workspace = Files.createTempDirectory("oneoff-workspace");
+                PatchId prevId = getLatestVersion(patchId.getName());
+                PatchId result;
+                reservePaths(patch, force);
                 try {
-
-                    // Unzip the base patch into the workspace
-                    DataSource dataSource = getDataSource(oneoffId);
-                    try (ZipInputStream zipInput = new ZipInputStream(dataSource.getInputStream())) {
-                        byte[] buffer = new byte[64 * 1024];
-                        ZipEntry entry = zipInput.getNextEntry();
-                        while (entry != null) {
-                            if (!entry.isDirectory()) {
-                                String name = entry.getName();
-                                File entryFile = workspace.resolve(Paths.get(name)).toFile();
-                                entryFile.getParentFile().mkdirs();
-                                try (FileOutputStream fos = new FileOutputStream(entryFile)) {
-                                    int read = zipInput.read(buffer);
-                                    while (read > 0) {
-                                        fos.write(buffer, 0, read);
-                                        read = zipInput.read(buffer);
-                                    }
-                                }
-                            }
-                            entry = zipInput.getNextEntry();
-                        }
-                    }
-
-                    // Unzip the one-off patch into the workspace
-                    try (ZipInputStream zipInput = new ZipInputStream(dataHandler.getInputStream())) {
-                        byte[] buffer = new byte[64 * 1024];
-                        ZipEntry entry = zipInput.getNextEntry();
-                        while (entry != null) {
-                            if (!entry.isDirectory()) {
-                                String name = entry.getName();
-                                File entryFile = workspace.resolve(Paths.get(name)).toFile();
-                                entryFile.getParentFile().mkdirs();
-                                try (FileOutputStream fos = new FileOutputStream(entryFile)) {
-                                    int read = zipInput.read(buffer);
-                                    while (read > 0) {
-                                        fos.write(buffer, 0, read);
-                                        read = zipInput.read(buffer);
-                                    }
-                                }
-                            }
-                            entry = zipInput.getNextEntry();
-                        }
-                    }
-
-                    // Create the target zip file
-                    try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(targetFile))) {
-                        Files.walkFileTree(workspace, new SimpleFileVisitor<Path>() {
-                            @Override
-                            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-                                Path relpath = workspace.relativize(path);
-                                zos.putNextEntry(new ZipEntry(relpath.toString()));
-                                try (FileInputStream fis = new FileInputStream(path.toFile())) {
-                                    IOUtils.copy(fis, zos);
-                                }
-                                return FileVisitResult.CONTINUE;
-                            }
-                        });
-                    }
+                    result = addArchiveInternal(patch, new DataHandler(new FileDataSource(targetFile)));
                 } finally {
-                    IOUtils.rmdirs(workspace);
+                    releasePaths(patch);
                 }
+                invalidateSmartPatches(patchId.getName());
+
+                // Precompute the smart patch from the previous latest version
+                if (precomputeDeltas && prevId != null && prevId.compareTo(patchId) < 0) {
+                    precomputeSmartPatch(getPatch(prevId), getPatch(patchId));
+                }
+                return result;
+            } finally {
+                unlockProcess();
+            }
+        } finally {
+            if (targetPath != null) {
+                Files.deleteIfExists(targetPath);
             }
+            nameLock.writeLock().unlock();
+            lock.readLock().unlock();
+        }
+    }
 
-            // Build the patch
-            Patch patch;
-            try (ZipInputStream zipInput = new ZipInputStream(new FileInputStream(targetFile))) {
-                Patch source = MetadataParser.buildPatchFromZip(patchId, Record.Action.INFO, zipInput);
-                patch = Patch.create(metadata, source.getRecords());
+    /**
+     * Get the latest available version of the given patch name
+     * @return The patch id or null if no version is available
+     */
+    protected PatchId getLatestVersion(String name) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        PatchId result = null;
+        for (PatchId auxid : queryAvailable(name)) {
+            if (auxid.getName().equals(name) && (result == null || result.compareTo(auxid) < 0)) {
+                result = auxid;
             }
+        }
+        return result;
+    }
+
+    /**
+     * Get the lock for operations on the given patch name
+     */
+    protected ReadWriteLock getNameLock(String name) {
+        return nameLocks.get(name);
+    }
+
+    /**
+     * Lock the repository against other processes, shared for queries and exclusive for modifications.
+     * The process lock is acquired after the locks of this process.
+     */
+    void lockProcess(boolean shared) throws IOException {
+        if (processLock != null) {
+            if (shared) {
+                processLock.lockShared();
+            } else {
+                processLock.lockExclusive();
+            }
+        }
+    }
 
-            // Assert no duplicate paths
+    void unlockProcess() throws IOException {
+        if (processLock != null) {
+            processLock.unlock();
+        }
+    }
+
+    // Assert no duplicate paths with the latest other patches and those that are currently being added
+    private void reservePaths(Patch patch, boolean force) throws IOException {
+        PatchId patchId = patch.getPatchId();
+        indexLock.lock();
+        try {
+            Map<Path, Record> pathOwners = getPathOwners();
             Set<PatchId> duplicates = new HashSet<>();
             for (Record rec : patch.getRecords()) {
-                Record otherRec = combinedPathsMap.get(rec.getPath());
-                if (otherRec != null) {
+                Record otherRec = pendingPaths.get(rec.getPath());
+                if (otherRec == null) {
+                    otherRec = pathOwners.get(rec.getPath());
+                }
+                if (otherRec != null && !patchId.getName().equals(otherRec.getPatchId().getName())) {
                     PatchId otherId = otherRec.getPatchId();
                     if (!rec.getChecksum().equals(otherRec.getChecksum())) {
-                        message = "Path '" + rec.getPath() + "' already contained in: " + otherId;
+                        String message = "Path '" + rec.getPath() + "' already contained in: " + otherId;
                         if (force) {
                             LOG.warn(message);
                         } else {
@@ -269,67 +295,359 @@ public abstract class AbstractRepository implements Repository {
                 }
             }
             PatchAssertion.assertTrue(force || duplicates.isEmpty(), "Cannot add " + patchId + " because of duplicate paths in " + duplicates);
-            return addArchiveInternal(patch, new DataHandler(new FileDataSource(targetFile)));
+            for (Record rec : patch.getRecords()) {
+                pendingPaths.put(rec.getPath(), rec);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+    }
 
+    private void releasePaths(Patch patch) {
+        indexLock.lock();
+        try {
+            for (Record rec : patch.getRecords()) {
+                if (pendingPaths.get(rec.getPath()) == rec) {
+                    pendingPaths.remove(rec.getPath());
+                }
+            }
         } finally {
-            lock.unlock();
+            indexLock.unlock();
         }
     }
 
     @Override
     public SmartPatch getSmartPatch(Patch seedPatch, PatchId patchId) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             // Derive the target patch id from the seed patch id
             if (patchId == null) {
                 IllegalArgumentAssertion.assertNotNull(seedPatch, "seedPatch");
                 patchId = getLatestAvailable(seedPatch.getPatchId().getName());
             }
-            Patch targetSet = getPatch(patchId);
-            PatchAssertion.assertNotNull(targetSet, "Repository does not contain package: " + patchId);
-            Patch smartSet = Patch.smartDelta(seedPatch, targetSet);
-            CloseableDataSource dataSource = getSmartDataSource(smartSet, patchId);
-            DataHandler dataHandler = new DataHandler(dataSource);
-            return SmartPatch.forInstall(smartSet, dataHandler);
+            IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
+            ReadWriteLock nameLock = getNameLock(patchId.getName());
+            nameLock.readLock().lock();
+            try {
+                lockProcess(true);
+                try {
+                    return getSmartPatchInternal(seedPatch, patchId);
+                } finally {
+                    unlockProcess();
+                }
+            } finally {
+                nameLock.readLock().unlock();
+            }
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
-    private CloseableDataSource getSmartDataSource(Patch smartSet, PatchId patchId) throws IOException {
+    private SmartPatch getSmartPatchInternal(Patch seedPatch, PatchId patchId) throws IOException {
+        Patch targetSet = getPatch(patchId);
+        PatchAssertion.assertNotNull(targetSet, "Repository does not contain package: " + patchId);
+
+        // Serve a smart patch that was precomputed or previously generated
+        SmartPatch precomputed = getPrecomputedSmartPatch(seedPatch, targetSet);
+        if (precomputed != null) {
+            return precomputed;
+        }
+        if (smartCache != null) {
+            SmartPatch smartPatch = smartCache.getSmartPatch(seedPatch, targetSet);
+            if (smartPatch != null) {
+                return smartPatch;
+            }
+        }
+
+        Patch smartSet = Patch.smartDelta(seedPatch, targetSet);
+        final Path smartPath = Files.createTempFile("smart-content", ".zip");
+        writeSmartContent(seedPatch, smartSet, patchId, smartPath.toFile());
+        if (smartCache != null) {
+            SmartPatch smartPatch = smartCache.putSmartPatch(seedPatch, smartSet, smartPath.toFile());
+            if (smartPatch != null) {
+                return smartPatch;
+            }
+        }
 
-        final Path targetPath = Files.createTempFile("smart-content", ".zip");
+        CloseableDataSource dataSource = new CloseableDataSource(new FileDataSource(smartPath.toFile())) {
+            @Override
+            public void close() throws IOException {
+                smartPath.toFile().delete();
+            }
+        };
+        DataHandler dataHandler = new DataHandler(dataSource);
+        return SmartPatch.forInstall(smartSet, dataHandler);
+    }
+
+    private void precomputeSmartPatch(Patch seedPatch, Patch targetSet) throws IOException {
+        Patch smartSet = Patch.smartDelta(seedPatch, targetSet);
+        Path smartPath = Files.createTempFile("smart-content", ".zip");
+        try {
+            writeSmartContent(seedPatch, smartSet, targetSet.getPatchId(), smartPath.toFile());
+            addPrecomputedSmartPatch(seedPatch, smartSet, smartPath.toFile());
+            LOG.info("Precomputed smart patch from {} to {}", seedPatch.getPatchId(), targetSet.getPatchId());
+        } finally {
+            Files.deleteIfExists(smartPath);
+        }
+    }
+
+    /**
+     * Get the smart patch that was precomputed for the given seed and target
+     * @return The smart patch or null if there is none
+     */
+    protected SmartPatch getPrecomputedSmartPatch(Patch seedPatch, Patch targetSet) throws IOException {
+        return null;
+    }
+
+    /**
+     * Store the smart patch that was precomputed for the given seed
+     */
+    protected void addPrecomputedSmartPatch(Patch seedPatch, Patch smartSet, File smartFile) throws IOException {
+    }
+
+    /**
+     * Get the records of the latest version of each available patch by path
+     */
+    protected Map<Path, Record> getPathOwners() throws IOException {
+        Map<String, PatchId> latest = new HashMap<>();
+        for (PatchId auxid : queryAvailable(null)) {
+            PatchId other = latest.get(auxid.getName());
+            if (other == null || other.compareTo(auxid) < 0) {
+                latest.put(auxid.getName(), auxid);
+            }
+        }
+        Map<Path, Record> result = new HashMap<>();
+        for (PatchId auxid : latest.values()) {
+            for (Record rec : getPatch(auxid).getRecords()) {
+                result.put(rec.getPath(), rec);
+            }
+        }
+        return result;
+    }
+
+    protected void invalidateSmartPatches(String name) throws IOException {
+        if (smartCache != null) {
+            smartCache.invalidate(name);
+        }
+    }
+
+    private void writeSmartContent(Patch seedPatch, Patch smartSet, PatchId patchId, File targetFile) throws IOException {
 
         // Create a temporary zip file that only contains ADD && UPD records
         DataSource dataSource = getDataSource(patchId);
-        try (ZipInputStream zin = new ZipInputStream(dataSource.getInputStream())) {
-            try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(targetPath.toFile()))) {
-                byte[] buffer = new byte[64 * 1024];
-                ZipEntry entry = zin.getNextEntry();
-                while (entry != null) {
-                    Record rec = smartSet.getRecord(Paths.get(entry.getName()));
-                    if (!entry.isDirectory() && rec != null && (rec.getAction() == Action.ADD || rec.getAction() == Action.UPD)) {
+        Map<Path, File> deltaFiles = new HashMap<>();
+        try {
+            if (binaryDeltas && seedPatch != null && dataSource instanceof FileDataSource) {
+                createBinaryDeltas(seedPatch, smartSet, ((FileDataSource) dataSource).getFile(), deltaFiles);
+            }
+            boolean copied = false;
+            if (dataSource instanceof FileDataSource) {
+                try {
+                    copyRawEntries(smartSet, deltaFiles, ((FileDataSource) dataSource).getFile(), targetFile);
+                    copied = true;
+                } catch (ZipException ex) {
+                    LOG.debug("Cannot copy raw entries from {}: {}", patchId, ex.getMessage());
+                }
+            }
+            if (!copied) {
+                try (ZipInputStream zin = new ZipInputStream(dataSource.getInputStream())) {
+                    try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(targetFile))) {
+                        byte[] buffer = new byte[64 * 1024];
+                        ZipEntry entry = zin.getNextEntry();
+                        while (entry != null) {
+                            Path path = Paths.get(entry.getName());
+                            if (!entry.isDirectory() && isSmartContent(smartSet.getRecord(path)) && !deltaFiles.containsKey(path)) {
+                                zout.putNextEntry(new ZipEntry(entry.getName()));
+                                int read = zin.read(buffer);
+                                while (read > 0) {
+                                    zout.write(buffer, 0, read);
+                                    read = zin.read(buffer);
+                                }
+                            }
+                            entry = zin.getNextEntry();
+                        }
+                        for (Map.Entry<Path, File> delta : deltaFiles.entrySet()) {
+                            zout.putNextEntry(new ZipEntry(delta.getKey() + BinaryDelta.ENTRY_SUFFIX));
+                            try (InputStream input = new FileInputStream(delta.getValue())) {
+                                IOUtils.copy(input, zout);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (File file : deltaFiles.values()) {
+                file.delete();
+            }
+        }
+    }
+
+    // Copy the compressed entries verbatim, without inflating and deflating them again
+    private static void copyRawEntries(Patch smartSet, Map<Path, File> deltaFiles, File sourceFile, File targetFile) throws IOException {
+        try (RawZipFile zipFile = new RawZipFile(sourceFile); RawZipOutput zout = new RawZipOutput(targetFile)) {
+            for (RawZipFile.Entry entry : zipFile.getEntries()) {
+                Path path = Paths.get(entry.getName());
+                if (!entry.isDirectory() && isSmartContent(smartSet.getRecord(path)) && !deltaFiles.containsKey(path)) {
+                    zipFile.copyEntry(entry, zout);
+                }
+            }
+            for (Map.Entry<Path, File> entry : deltaFiles.entrySet()) {
+                try (InputStream input = new FileInputStream(entry.getValue())) {
+                    zout.putEntry(entry.getKey() + BinaryDelta.ENTRY_SUFFIX, input);
+                }
+            }
+        }
+    }
+
+    // Combine the base content with the one-off content, without extracting or recompressing the entries
+    private void mergeOneoffContent(PatchId oneoffId, DataHandler dataHandler, File targetFile) throws IOException {
+        DataSource baseSource = getDataSource(oneoffId);
+        DataSource oneoffSource = dataHandler.getDataSource();
+        Path oneoffPath = null;
+        try {
+            File oneoffFile;
+            if (oneoffSource instanceof FileDataSource) {
+                oneoffFile = ((FileDataSource) oneoffSource).getFile();
+            } else {
+                oneoffPath = Files.createTempFile("oneoff", ".zip");
+                try (InputStream input = dataHandler.getInputStream()) {
+                    Files.copy(input, oneoffPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+                oneoffFile = oneoffPath.toFile();
+            }
+            if (baseSource instanceof FileDataSource) {
+                try {
+                    mergeRawEntries(((FileDataSource) baseSource).getFile(), oneoffFile, targetFile);
+                    return;
+                } catch (ZipException ex) {
+                    LOG.debug("Cannot copy raw entries from {}: {}", oneoffId, ex.getMessage());
+                }
+            }
+            try (ZipFile oneoffZip = new ZipFile(oneoffFile); ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(targetFile))) {
+                try (ZipInputStream zin = new ZipInputStream(baseSource.getInputStream())) {
+                    ZipEntry entry = zin.getNextEntry();
+                    while (entry != null) {
+                        if (!entry.isDirectory() && oneoffZip.getEntry(entry.getName()) == null) {
+                            zout.putNextEntry(new ZipEntry(entry.getName()));
+                            IOUtils.copy(zin, zout);
+                        }
+                        entry = zin.getNextEntry();
+                    }
+                }
+                for (ZipEntry entry : Collections.list(oneoffZip.entries())) {
+                    if (!entry.isDirectory()) {
                         zout.putNextEntry(new ZipEntry(entry.getName()));
-                        int read = zin.read(buffer);
-                        while (read > 0) {
-                            zout.write(buffer, 0, read);
-                            read = zin.read(buffer);
+                        try (InputStream input = oneoffZip.getInputStream(entry)) {
+                            IOUtils.copy(input, zout);
                         }
                     }
-                    entry = zin.getNextEntry();
                 }
             }
+        } finally {
+            if (oneoffPath != null) {
+                Files.deleteIfExists(oneoffPath);
+            }
         }
+    }
 
-        DataSource datasource = new FileDataSource(targetPath.toFile());
-        return new CloseableDataSource(datasource) {
-            @Override
-            public void close() throws IOException {
-                targetPath.toFile().delete();
+    // One-off entries override base entries of the same name
+    private static void mergeRawEntries(File baseFile, File oneoffFile, File targetFile) throws IOException {
+        try (RawZipFile baseZip = new RawZipFile(baseFile); RawZipFile oneoffZip = new RawZipFile(oneoffFile); RawZipOutput zout = new RawZipOutput(targetFile)) {
+            Set<String> oneoffNames = new HashSet<>();
+            for (RawZipFile.Entry entry : oneoffZip.getEntries()) {
+                oneoffNames.add(entry.getName());
             }
-        };
+            for (RawZipFile.Entry entry : baseZip.getEntries()) {
+                if (!entry.isDirectory() && !oneoffNames.contains(entry.getName())) {
+                    baseZip.copyEntry(entry, zout);
+                }
+            }
+            for (RawZipFile.Entry entry : oneoffZip.getEntries()) {
+                if (!entry.isDirectory()) {
+                    oneoffZip.copyEntry(entry, zout);
+                }
+            }
+        }
+    }
+
+    // Create binary deltas for updated files, of which this repository contains the seed content
+    private void createBinaryDeltas(Patch seedPatch, Patch smartSet, File zipFile, Map<Path, File> deltaFiles) throws IOException {
+        PatchId seedId = seedPatch.getPatchId();
+        Patch basePatch = getPatch(seedId);
+        DataSource baseSource = basePatch != null ? getDataSource(seedId) : null;
+        if (!(baseSource instanceof FileDataSource)) {
+            return;
+        }
+        try (ZipFile baseZip = new ZipFile(((FileDataSource) baseSource).getFile()); ZipFile targetZip = new ZipFile(zipFile)) {
+            for (Record rec : smartSet.getRecords()) {
+                Path path = rec.getPath();
+                Record seedRec = seedPatch.getRecord(path);
+                Record baseRec = basePatch.getRecord(path);
+                if (rec.getAction() != Action.UPD || seedRec == null || baseRec == null || !seedRec.getChecksum().equals(baseRec.getChecksum())) {
+                    continue;
+                }
+                ZipEntry baseEntry = baseZip.getEntry(path.toString());
+                ZipEntry targetEntry = targetZip.getEntry(path.toString());
+                if (baseEntry == null || targetEntry == null || targetEntry.getSize() < DELTA_MIN_SIZE
+                        || baseEntry.getSize() > BinaryDelta.MAX_FILE_SIZE || targetEntry.getSize() > BinaryDelta.MAX_FILE_SIZE) {
+                    continue;
+                }
+                File deltaFile = createBinaryDelta(baseZip, baseEntry, targetZip, targetEntry);
+                if (deltaFile.length() < targetEntry.getCompressedSize() / 2) {
+                    deltaFiles.put(path, deltaFile);
+                } else {
+                    deltaFile.delete();
+                }
+            }
+        }
+    }
+
+    private static File createBinaryDelta(ZipFile baseZip, ZipEntry baseEntry, ZipFile targetZip, ZipEntry targetEntry) throws IOException {
+        Path basePath = Files.createTempFile("delta-base", ".tmp");
+        Path targetPath = Files.createTempFile("delta-target", ".tmp");
+        File deltaFile = Files.createTempFile("delta", BinaryDelta.ENTRY_SUFFIX).toFile();
+        try {
+            try (InputStream input = baseZip.getInputStream(baseEntry)) {
+                Files.copy(input, basePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (InputStream input = targetZip.getInputStream(targetEntry)) {
+                Files.copy(input, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (isArchive(targetEntry.getName())) {
+                try (OutputStream output = new FileOutputStream(deltaFile)) {
+                    BinaryDelta.diffArchive(basePath.toFile(), targetPath.toFile(), output);
+                    return deltaFile;
+                } catch (ZipException ex) {
+                    // fall back to the byte level delta
+                }
+            }
+            try (OutputStream output = new FileOutputStream(deltaFile)) {
+                BinaryDelta.diff(basePath.toFile(), targetPath.toFile(), output);
+            }
+            return deltaFile;
+        } catch (IOException | RuntimeException ex) {
+            deltaFile.delete();
+            throw ex;
+        } finally {
+            Files.deleteIfExists(basePath);
+            Files.deleteIfExists(targetPath);
+        }
+    }
+
+    private static boolean isArchive(String name) {
+        String lower = name.toLowerCase();
+        for (String suffix : ARCHIVE_SUFFIXES) {
+            if (lower.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSmartContent(Record rec) {
+        return rec != null && (rec.getAction() == Action.ADD || rec.getAction() == Action.UPD);
     }
 
     protected abstract PatchId addArchiveInternal(Patch patch, DataHandler dataHandler) throws IOException;
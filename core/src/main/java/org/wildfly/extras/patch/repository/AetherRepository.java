@@ -34,7 +34,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -69,7 +69,7 @@ public class AetherRepository extends AbstractRepository {
 
     private final AetherFactory factory;
 
-    public AetherRepository(Lock lock, AetherFactory factory) {
+    public AetherRepository(ReadWriteLock lock, AetherFactory factory) {
         super(lock, factory.getRepositoryURL());
         IllegalArgumentAssertion.assertNotNull(factory, "factory");
         this.factory = factory;
@@ -77,7 +77,7 @@ public class AetherRepository extends AbstractRepository {
 
     @Override
     public List<PatchId> queryAvailable(String prefix) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             RepositorySystem system = factory.getRepositorySystem();
             RepositorySystemSession session = factory.newRepositorySystemSession();
@@ -118,14 +118,14 @@ public class AetherRepository extends AbstractRepository {
         } catch (MalformedURLException ex) {
             throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public Patch getPatch(PatchId patchId) {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             RepositorySystem system = factory.getRepositorySystem();
             RepositorySystemSession session = factory.newRepositorySystemSession();
@@ -150,7 +150,7 @@ public class AetherRepository extends AbstractRepository {
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
@@ -28,7 +28,8 @@ import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -40,21 +41,40 @@ import org.slf4j.LoggerFactory;
 import org.wildfly.extras.patch.Patch;
 import org.wildfly.extras.patch.PatchId;
 import org.wildfly.extras.patch.PatchMetadata;
+import org.wildfly.extras.patch.PatchToolOptions;
+import org.wildfly.extras.patch.Record;
 import org.wildfly.extras.patch.Repository;
+import org.wildfly.extras.patch.SmartPatch;
 import org.wildfly.extras.patch.internal.MetadataParser;
+import org.wildfly.extras.patch.internal.PathIndex;
+import org.wildfly.extras.patch.internal.RepositoryIndex;
 import org.wildfly.extras.patch.utils.IOUtils;
 import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
 import org.wildfly.extras.patch.utils.PatchAssertion;
+import org.wildfly.extras.patch.utils.ProcessLock;
 
 public final class LocalFileRepository extends AbstractRepository {
 
     private static final Logger LOG = LoggerFactory.getLogger(LocalFileRepository.class);
 
+    public static final String CACHE_DIR = ".cache";
+    public static final String LOCK_FILE = "repository.lock";
+    // The smart patch cache is opt-in
+    public static final long DEFAULT_CACHE_SIZE = 0;
+
     private final Path rootPath;
+    private final boolean binaryDeltas;
+
+    public LocalFileRepository(ReadWriteLock lock, Path rootPath) {
+        this(lock, rootPath, PatchToolOptions.DEFAULT);
+    }
 
-    public LocalFileRepository(Lock lock, Path rootPath) {
-        super(lock, toRepositoryUrl(rootPath));
+    public LocalFileRepository(ReadWriteLock lock, Path rootPath, PatchToolOptions options) {
+        super(lock, toRepositoryUrl(rootPath), new ProcessLock(rootPath.resolve(LOCK_FILE), options.getLockTimeout()),
+                options.getSmartPatchCacheSize() > 0 ? new SmartPatchCache(rootPath.resolve(CACHE_DIR), options.getSmartPatchCacheSize(), options.isBinaryDeltas()) : null,
+                options.isPrecomputeDeltas(), options.isBinaryDeltas());
         this.rootPath = rootPath;
+        this.binaryDeltas = options.isBinaryDeltas();
 
         PatchAssertion.assertTrue(rootPath.toFile().isDirectory(), "Repository root does not exist: " + rootPath);
         LOG.debug("Repository location: {}", rootPath);
@@ -82,24 +102,36 @@ public final class LocalFileRepository extends AbstractRepository {
 
     @Override
     public List<PatchId> queryAvailable(final String prefix) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
-            return MetadataParser.queryAvailablePatches(rootPath, prefix, false);
+            lockProcess(true);
+            try {
+                return readIndex().queryAvailable(prefix, false);
+            } finally {
+                unlockProcess();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public Patch getPatch(PatchId patchId) {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
+        lock.readLock().lock();
         try {
-            return MetadataParser.readPatch(rootPath, patchId);
+            lockProcess(true);
+            try {
+                return MetadataParser.readPatch(rootPath, patchId);
+            } finally {
+                unlockProcess();
+            }
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
@@ -137,26 +169,136 @@ public final class LocalFileRepository extends AbstractRepository {
         // Write repository metadata
         MetadataParser.writePatch(rootPath, patch);
 
+        indexLock.lock();
+        try {
+            // Update the repository index
+            RepositoryIndex index = readIndex();
+            index.addPatch(patch);
+
+            // Update the path index when the patch is the latest version
+            if (patchId.equals(index.getLatest(patchId.getName()))) {
+                PathIndex.read(rootPath).updateOwner(patchId.getName(), patch);
+            }
+        } finally {
+            indexLock.unlock();
+        }
+
         return patchId;
     }
 
     @Override
     public boolean removeArchive(PatchId patchId) {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
+        ReadWriteLock nameLock = getNameLock(patchId.getName());
+        lock.readLock().lock();
+        nameLock.writeLock().lock();
         try {
-            File patchdir = MetadataParser.getMetadataDirectory(rootPath, patchId);
-            PatchAssertion.assertTrue(patchdir.isDirectory(), "Archive does not exist: " + patchId);
-            IOUtils.rmdirs(patchdir.toPath());
-            LOG.info("Removed {}", patchId);
-            return true;
+            lockProcess(false);
+            try {
+                File patchdir = MetadataParser.getMetadataDirectory(rootPath, patchId);
+                PatchAssertion.assertTrue(patchdir.isDirectory(), "Archive does not exist: " + patchId);
+                indexLock.lock();
+                try {
+                    RepositoryIndex index = readIndex();
+                    boolean latest = patchId.equals(index.getLatest(patchId.getName()));
+                    index.removePatch(patchId);
+                    if (latest) {
+                        PatchId nextId = index.getLatest(patchId.getName());
+                        PathIndex.read(rootPath).updateOwner(patchId.getName(), nextId != null ? MetadataParser.readPatch(rootPath, nextId) : null);
+                    }
+                } finally {
+                    indexLock.unlock();
+                }
+                IOUtils.rmdirs(patchdir.toPath());
+                invalidateSmartPatches(patchId.getName());
+                LOG.info("Removed {}", patchId);
+                return true;
+            } finally {
+                unlockProcess();
+            }
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            nameLock.writeLock().unlock();
+            lock.readLock().unlock();
         }
     }
 
+    /**
+     * Rebuild the repository index from the metadata files in the repository
+     * @return The list of available patches
+     */
+    public List<PatchId> rebuildIndex() {
+        lock.writeLock().lock();
+        try {
+            lockProcess(false);
+            try {
+                List<PatchId> result = RepositoryIndex.rebuild(rootPath).queryAvailable(null, false);
+                PathIndex.rebuild(rootPath);
+                LOG.info("Rebuilt index with {} patches", result.size());
+                return result;
+            } finally {
+                unlockProcess();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected PatchId getLatestVersion(String name) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        indexLock.lock();
+        try {
+            return readIndex().getLatest(name);
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Read the repository index, a missing or invalid index is rebuilt under the exclusive process lock.
+     * The index lock keeps the rebuild from racing the index updates of this process.
+     */
+    private RepositoryIndex readIndex() throws IOException {
+        indexLock.lock();
+        try {
+            RepositoryIndex index = RepositoryIndex.readIfValid(rootPath, RepositoryIndex.INDEX_FILE);
+            if (index == null) {
+                lockProcess(false);
+                try {
+                    index = RepositoryIndex.read(rootPath);
+                } finally {
+                    unlockProcess();
+                }
+            }
+            return index;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    @Override
+    protected Map<Path, Record> getPathOwners() throws IOException {
+        return PathIndex.read(rootPath).getOwners();
+    }
+
+    @Override
+    protected SmartPatch getPrecomputedSmartPatch(Patch seedPatch, Patch targetSet) throws IOException {
+        PatchId patchId = targetSet.getPatchId();
+        Path zipPath = SmartPatchCache.getZipPath(MetadataParser.getMetadataDirectory(rootPath, patchId).toPath(), seedPatch, patchId, binaryDeltas);
+        return SmartPatchCache.readSmartPatch(zipPath, targetSet, rootPath.resolve(CACHE_DIR).resolve(SmartPatchCache.HANDLES_DIR));
+    }
+
+    @Override
+    protected void addPrecomputedSmartPatch(Patch seedPatch, Patch smartSet, File smartFile) throws IOException {
+        PatchId patchId = smartSet.getPatchId();
+        Path zipPath = SmartPatchCache.getZipPath(MetadataParser.getMetadataDirectory(rootPath, patchId).toPath(), seedPatch, patchId, binaryDeltas);
+        SmartPatchCache.writeSmartPatch(zipPath, smartSet, smartFile);
+    }
+
     @Override
     protected DataSource getDataSource(PatchId patchId) {
         Path patchPath = getPatchPath(patchId);
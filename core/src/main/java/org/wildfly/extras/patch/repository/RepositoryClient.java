@@ -25,7 +25,10 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -33,6 +36,7 @@ import javax.activation.FileDataSource;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.Service;
 import javax.xml.ws.WebServiceException;
+import javax.xml.ws.handler.MessageContext;
 
 import org.wildfly.extras.patch.Patch;
 import org.wildfly.extras.patch.PatchId;
@@ -44,11 +48,16 @@ import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
 
 public final class RepositoryClient implements Repository {
 
-    private final Lock lock;
+    // A busy endpoint rejects requests with 503 and the seconds after which to retry
+    private static final int SC_SERVICE_UNAVAILABLE = 503;
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final Pattern RETRY_AFTER_MESSAGE = Pattern.compile("retry after (\\d+)s");
+
+    private final ReadWriteLock lock;
     private final URL endpointUrl;
     private final RepositoryService delegate;
 
-    public RepositoryClient(Lock lock, URL endpointUrl, String username, String password) {
+    public RepositoryClient(ReadWriteLock lock, URL endpointUrl, String username, String password) {
         IllegalArgumentAssertion.assertNotNull(endpointUrl, "endpointUrl");
         IllegalArgumentAssertion.assertNotNull(lock, "lock");
         this.endpointUrl = endpointUrl;
@@ -72,7 +81,7 @@ public final class RepositoryClient implements Repository {
 
     @Override
     public List<PatchId> queryAvailable(String prefix) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             List<PatchId> result = new ArrayList<>();
             String[] available = delegate.queryAvailable(prefix);
@@ -85,33 +94,33 @@ public final class RepositoryClient implements Repository {
         } catch (WebServiceException ex) {
             throw unwrap(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public PatchId getLatestAvailable(String prefix) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             String result = delegate.getLatestAvailable(prefix);
             return result != null ? PatchId.fromString(result) : null;
         } catch (WebServiceException ex) {
             throw unwrap(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public Patch getPatch(PatchId patchId) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             PatchAdapter result = delegate.getPatch(patchId.toString());
             return result != null ? result.toPatch() : null;
         } catch (WebServiceException ex) {
             throw unwrap(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
@@ -130,42 +139,50 @@ public final class RepositoryClient implements Repository {
 
     @Override
     public PatchId addArchive(PatchMetadata metadata, DataHandler dataHandler, boolean force) throws IOException {
-        lock.tryLock();
+        lock.writeLock().lock();
         try {
             String result = delegate.addArchive(PatchMetadataAdapter.fromPatchMetadata(metadata), dataHandler, force);
             return PatchId.fromString(result);
         } catch (WebServiceException ex) {
             throw unwrap(ex);
         } finally {
-            lock.unlock();
+            lock.writeLock().unlock();
         }
     }
 
     @Override
     public boolean removeArchive(PatchId removeId) {
-        lock.tryLock();
+        lock.writeLock().lock();
         try {
             return delegate.removeArchive(removeId.toString());
         } catch (WebServiceException ex) {
             throw unwrap(ex);
         } finally {
-            lock.unlock();
+            lock.writeLock().unlock();
         }
     }
 
     @Override
     public SmartPatch getSmartPatch(Patch seedPatch, PatchId patchId) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             return delegate.getSmartPatch(PatchAdapter.fromPatch(seedPatch), patchId.toString()).toSmartPatch();
         } catch (WebServiceException ex) {
             throw unwrap(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     private RuntimeException unwrap(WebServiceException ex) {
+        if (isServiceUnavailable(ex)) {
+            int retryAfter = getRetryAfter(ex);
+            String message = "Repository unavailable: " + endpointUrl;
+            if (retryAfter >= 0) {
+                message += ", retry after " + retryAfter + "s";
+            }
+            return new RepositoryUnavailableException(message, retryAfter, ex);
+        }
         RuntimeException result = ex;
         String message = ex.getMessage();
         String prefix = SecurityException.class.getName() + ": ";
@@ -175,4 +192,43 @@ public final class RepositoryClient implements Repository {
         }
         return result;
     }
+
+    // The status is in the response context or else in the message of the transport exception
+    private boolean isServiceUnavailable(WebServiceException ex) {
+        Object code = ((BindingProvider) delegate).getResponseContext().get(MessageContext.HTTP_RESPONSE_CODE);
+        if (Integer.valueOf(SC_SERVICE_UNAVAILABLE).equals(code)) {
+            return true;
+        }
+        for (Throwable th = ex; th != null; th = th.getCause()) {
+            String message = th.getMessage();
+            if (message != null && message.contains(SC_SERVICE_UNAVAILABLE + ": ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The delay is in the response headers or else in the fault message
+    @SuppressWarnings("unchecked")
+    private int getRetryAfter(WebServiceException ex) {
+        Map<String, List<String>> headers = (Map<String, List<String>>) ((BindingProvider) delegate).getResponseContext().get(MessageContext.HTTP_RESPONSE_HEADERS);
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (HEADER_RETRY_AFTER.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                    try {
+                        return Integer.parseInt(entry.getValue().get(0).trim());
+                    } catch (NumberFormatException nfe) {
+                        // An HTTP date is not supported
+                    }
+                }
+            }
+        }
+        for (Throwable th = ex; th != null; th = th.getCause()) {
+            Matcher matcher = RETRY_AFTER_MESSAGE.matcher(th.getMessage() != null ? th.getMessage() : "");
+            if (matcher.find()) {
+                return Integer.parseInt(matcher.group(1));
+            }
+        }
+        return -1;
+    }
 }
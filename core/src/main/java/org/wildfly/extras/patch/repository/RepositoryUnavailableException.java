@@ -0,0 +1,44 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.repository;
+
+/**
+ * Thrown when a remote repository is too busy to serve the request.
+ *
+ * The client may retry the request after the delay advised by the repository.
+ */
+@SuppressWarnings("serial")
+public final class RepositoryUnavailableException extends RuntimeException {
+
+    private final int retryAfter;
+
+    public RepositoryUnavailableException(String message, int retryAfter, Throwable cause) {
+        super(message, cause);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Get the seconds after which the request may be retried
+     * @return The advised delay or -1 if the repository did not advise one
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.repository;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.Record;
+import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.internal.MetadataParser;
+import org.wildfly.extras.patch.repository.AbstractRepository.CloseableDataSource;
+import org.wildfly.extras.patch.utils.BinaryDelta;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+
+/**
+ * A size limited on-disk cache of smart patch archives.
+ *
+ * Entries are keyed by the target patch id and the records of the seed patch.
+ * Least recently used entries are evicted when the cache grows beyond its maximum size.
+ *
+ * Smart patches are served from private handles on the cached archives, so that an entry
+ * can be evicted or invalidated while a previously returned smart patch is still being read.
+ */
+final class SmartPatchCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmartPatchCache.class);
+
+    private static final String ZIP_SUFFIX = ".zip";
+    private static final String DELTA_SUFFIX = ".delta";
+
+    static final String HANDLES_DIR = ".handles";
+
+    // Incomplete entries and temporary files older than this are left over from a failed write
+    private static final long STALE_FILE_AGE = 60 * 60 * 1000;
+
+    private final Path cachePath;
+    private final Path handlesPath;
+    private final long maxSize;
+    private final boolean binaryDeltas;
+    private final Map<Path, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize;
+
+    SmartPatchCache(Path cachePath, long maxSize, boolean binaryDeltas) {
+        IllegalArgumentAssertion.assertNotNull(cachePath, "cachePath");
+        IllegalArgumentAssertion.assertTrue(maxSize > 0, "Invalid cache size: " + maxSize);
+        this.cachePath = cachePath;
+        this.handlesPath = cachePath.resolve(HANDLES_DIR);
+        this.maxSize = maxSize;
+        this.binaryDeltas = binaryDeltas;
+        try {
+            loadEntries();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Get the path of a smart patch archive in the given directory
+     * @param binaryDeltas True if the archive may contain binary deltas against the seed patch
+     */
+    static Path getZipPath(Path dirPath, Patch seedPatch, PatchId patchId, boolean binaryDeltas) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update(patchId.toString().getBytes(StandardCharsets.UTF_8));
+        if (seedPatch != null && binaryDeltas) {
+            digest.update((" " + seedPatch.getPatchId() + " " + BinaryDelta.ENTRY_SUFFIX).getBytes(StandardCharsets.UTF_8));
+        }
+        if (seedPatch != null) {
+            for (Record rec : seedPatch.getRecords()) {
+                digest.update(("\n" + rec.getPath() + " " + rec.getChecksum()).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        String hash = String.format("%040x", new BigInteger(1, digest.digest()));
+        return dirPath.resolve(hash + ZIP_SUFFIX);
+    }
+
+    /**
+     * Read a smart patch from the given archive and its delta.
+     * The smart patch reads from a private handle in the given directory, which is deleted when the smart patch is closed.
+     * @return The smart patch or null if the archive does not exist
+     */
+    static SmartPatch readSmartPatch(Path zipPath, Patch targetSet, Path handlesPath) throws IOException {
+        Path deltaPath = getDeltaPath(zipPath);
+        if (!zipPath.toFile().isFile() || !deltaPath.toFile().isFile()) {
+            return null;
+        }
+        Patch delta = MetadataParser.readPatch(deltaPath.toFile());
+        Patch smartSet = Patch.create(targetSet.getMetadata(), delta.getRecords());
+        return SmartPatch.forInstall(smartSet, new DataHandler(openHandle(zipPath, handlesPath)));
+    }
+
+    // Hard link the archive to a private file that stays readable when the archive is deleted.
+    // Files that are open cannot be deleted through any of their links on Windows, so the archive is copied there.
+    private static DataSource openHandle(Path zipPath, Path handlesPath) throws IOException {
+        handlesPath.toFile().mkdirs();
+        final Path handlePath = Files.createTempFile(handlesPath, "smart-handle", ZIP_SUFFIX);
+        try {
+            boolean linked = false;
+            if (!LocalFileRepository.isWindows()) {
+                Files.delete(handlePath);
+                try {
+                    Files.createLink(handlePath, zipPath);
+                    linked = true;
+                } catch (UnsupportedOperationException | IOException ex) {
+                    LOG.debug("Cannot link {}: {}", zipPath, ex.toString());
+                }
+            }
+            if (!linked) {
+                Files.copy(zipPath, handlePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(handlePath);
+            throw ex;
+        }
+        return new CloseableDataSource(new FileDataSource(handlePath.toFile())) {
+            @Override
+            public void close() throws IOException {
+                Files.deleteIfExists(handlePath);
+            }
+        };
+    }
+
+    /**
+     * Move the given smart patch archive to the given path and write its delta next to it
+     */
+    static void writeSmartPatch(Path zipPath, Patch smartSet, File smartFile) throws IOException {
+        zipPath.getParent().toFile().mkdirs();
+        IOUtils.moveAtomic(smartFile.toPath(), zipPath);
+        Path tmpPath = Files.createTempFile(zipPath.getParent(), zipPath.getFileName().toString(), ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmpPath.toFile())) {
+                MetadataParser.writePatch(smartSet, fos, true);
+            }
+            IOUtils.moveAtomic(tmpPath, getDeltaPath(zipPath));
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    synchronized SmartPatch getSmartPatch(Patch seedPatch, Patch targetSet) throws IOException {
+        Path zipPath = getZipPath(seedPatch, targetSet.getPatchId());
+        if (entries.get(zipPath) == null) {
+            return null;
+        }
+        SmartPatch smartPatch = readSmartPatch(zipPath, targetSet, handlesPath);
+        if (smartPatch == null) {
+            removeEntry(zipPath);
+            return null;
+        }
+        Files.setLastModifiedTime(zipPath, FileTime.fromMillis(System.currentTimeMillis()));
+        LOG.debug("Smart patch cache hit: {}", zipPath);
+        return smartPatch;
+    }
+
+    /**
+     * Move the given smart patch archive into the cache
+     * @return The cached smart patch or null if the archive exceeds the cache size
+     */
+    synchronized SmartPatch putSmartPatch(Patch seedPatch, Patch smartSet, File smartFile) throws IOException {
+        if (smartFile.length() > maxSize) {
+            return null;
+        }
+        Path zipPath = getZipPath(seedPatch, smartSet.getPatchId());
+        writeSmartPatch(zipPath, smartSet, smartFile);
+
+        long size = Files.size(zipPath) + Files.size(getDeltaPath(zipPath));
+        Long oldSize = entries.put(zipPath, size);
+        totalSize += size - (oldSize != null ? oldSize : 0);
+
+        // Evict least recently used entries
+        Iterator<Map.Entry<Path, Long>> itentry = entries.entrySet().iterator();
+        while (totalSize > maxSize && itentry.hasNext()) {
+            Map.Entry<Path, Long> entry = itentry.next();
+            Path path = entry.getKey();
+            if (!path.equals(zipPath)) {
+                totalSize -= entry.getValue();
+                itentry.remove();
+                deleteFiles(path);
+                LOG.debug("Smart patch cache evict: {}", path);
+            }
+        }
+
+        return SmartPatch.forInstall(smartSet, new DataHandler(openHandle(zipPath, handlesPath)));
+    }
+
+    synchronized void invalidate(String name) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        Path namePath = cachePath.resolve(name);
+        Iterator<Map.Entry<Path, Long>> itentry = entries.entrySet().iterator();
+        while (itentry.hasNext()) {
+            Map.Entry<Path, Long> entry = itentry.next();
+            if (entry.getKey().startsWith(namePath)) {
+                totalSize -= entry.getValue();
+                itentry.remove();
+            }
+        }
+        IOUtils.rmdirs(namePath);
+    }
+
+    private void removeEntry(Path zipPath) throws IOException {
+        Long size = entries.remove(zipPath);
+        if (size != null) {
+            totalSize -= size;
+        }
+        deleteFiles(zipPath);
+    }
+
+    private void deleteFiles(Path zipPath) throws IOException {
+        Files.deleteIfExists(zipPath);
+        Files.deleteIfExists(getDeltaPath(zipPath));
+    }
+
+    private void loadEntries() throws IOException {
+        if (!cachePath.toFile().isDirectory()) {
+            return;
+        }
+        final List<Path> paths = new ArrayList<>();
+        final long staleTime = System.currentTimeMillis() - STALE_FILE_AGE;
+        Files.walkFileTree(cachePath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                return dir.equals(handlesPath) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                String name = path.getFileName().toString();
+                if (name.endsWith(ZIP_SUFFIX) && getDeltaPath(path).toFile().isFile()) {
+                    paths.add(path);
+                } else if (!name.endsWith(DELTA_SUFFIX) || !getZipPath(path).toFile().isFile()) {
+                    // Leave recent files alone, another process may still be writing the entry
+                    if (attrs.lastModifiedTime().toMillis() < staleTime) {
+                        Files.delete(path);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        final Map<Path, Long> modified = new LinkedHashMap<>();
+        for (Path path : paths) {
+            modified.put(path, path.toFile().lastModified());
+        }
+        Collections.sort(paths, new Comparator<Path>() {
+            @Override
+            public int compare(Path p1, Path p2) {
+                return modified.get(p1).compareTo(modified.get(p2));
+            }
+        });
+        for (Path path : paths) {
+            long size = Files.size(path) + Files.size(getDeltaPath(path));
+            entries.put(path, size);
+            totalSize += size;
+        }
+    }
+
+    private Path getZipPath(Patch seedPatch, PatchId patchId) {
+        Path dirPath = cachePath.resolve(patchId.getName()).resolve(patchId.getVersion().toString());
+        return getZipPath(dirPath, seedPatch, patchId, binaryDeltas);
+    }
+
+    private static Path getDeltaPath(Path zipPath) {
+        String name = zipPath.getFileName().toString();
+        return zipPath.resolveSibling(name.substring(0, name.length() - ZIP_SUFFIX.length()) + DELTA_SUFFIX);
+    }
+
+    private static Path getZipPath(Path deltaPath) {
+        String name = deltaPath.getFileName().toString();
+        return deltaPath.resolveSibling(name.substring(0, name.length() - DELTA_SUFFIX.length()) + ZIP_SUFFIX);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.repository;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+
+/**
+ * A fixed set of read/write locks that are selected by patch name.
+ *
+ * Operations on different patch names mostly use different locks and do not block each other.
+ */
+final class StripedLocks {
+
+    static final int DEFAULT_STRIPES = 32;
+
+    private final ReadWriteLock[] stripes;
+
+    StripedLocks(int size) {
+        IllegalArgumentAssertion.assertTrue(size > 0, "Invalid number of stripes: " + size);
+        stripes = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    ReadWriteLock get(String name) {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        return stripes[(name.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+}
@@ -20,32 +20,48 @@
 package org.wildfly.extras.patch.server;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wildfly.extras.patch.ManagedPath;
@@ -54,30 +70,66 @@ import org.wildfly.extras.patch.Patch;
 import org.wildfly.extras.patch.PatchId;
 import org.wildfly.extras.patch.PatchMetadata;
 import org.wildfly.extras.patch.PatchMetadataBuilder;
+import org.wildfly.extras.patch.PatchToolOptions;
 import org.wildfly.extras.patch.Record;
 import org.wildfly.extras.patch.Record.Action;
 import org.wildfly.extras.patch.Server;
 import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.VerificationReport;
 import org.wildfly.extras.patch.internal.MetadataParser;
+import org.wildfly.extras.patch.internal.RepositoryIndex;
+import org.wildfly.extras.patch.utils.BinaryDelta;
+import org.wildfly.extras.patch.utils.ChecksumCache;
 import org.wildfly.extras.patch.utils.IOUtils;
 import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
 import org.wildfly.extras.patch.utils.IllegalStateAssertion;
 import org.wildfly.extras.patch.utils.PatchAssertion;
+import org.wildfly.extras.patch.utils.ProcessLock;
 
 public abstract class AbstractServer implements Server {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractServer.class);
 
-    private static final String AUDIT_LOG = "audit.log";
+    static final String AUDIT_LOG = "audit.log";
+    private static final String WORKSPACE_LOCK = "workspace.lock";
+    private static final String CHECKSUM_CACHE = "checksums.cache";
+    static final String APPLIED_INDEX = "applied-patches.index";
+    private static final String STAGED_DIR = "staged";
+    private static final String STAGED_CONTENT = "content";
+    private static final String STAGED_PATCH = "staged-patch.metadata";
+    private static final String STAGED_SEED = "seed-patch.id";
+    // Entries larger than this are written through the file channel
+    private static final long LARGE_ENTRY_SIZE = 1024 * 1024;
+
+    public static final int DEFAULT_EXTRACT_THREADS = Runtime.getRuntime().availableProcessors();
 
-    private final Lock lock;
+    private final ReadWriteLock lock;
+    private final ProcessLock processLock;
     private final Path homePath;
+    private final int extractThreads;
+    private final boolean streamingInstall;
+    private final boolean stagedInstall;
+    private final ChecksumCache checksumCache;
+    private final ManagedPathsStore managedPathsStore;
+    private Journal journal;
+    private volatile boolean recovered;
 
-    public AbstractServer(Lock lock, Path homePath) {
+    public AbstractServer(ReadWriteLock lock, Path homePath) {
+        this(lock, homePath, PatchToolOptions.DEFAULT);
+    }
+
+    public AbstractServer(ReadWriteLock lock, Path homePath, PatchToolOptions options) {
         IllegalArgumentAssertion.assertNotNull(lock, "lock");
         IllegalArgumentAssertion.assertNotNull(homePath, "homePath");
+        IllegalArgumentAssertion.assertNotNull(options, "options");
         this.homePath = homePath.toAbsolutePath();
         this.lock = lock;
+        this.extractThreads = options.getExtractThreads();
+        this.streamingInstall = options.isStreamingInstall();
+        this.stagedInstall = options.isStagedInstall();
+        this.processLock = new ProcessLock(this.homePath.resolve(Paths.get("fusepatch", WORKSPACE_LOCK)), options.getLockTimeout());
+        this.checksumCache = new ChecksumCache(this.homePath.resolve(Paths.get("fusepatch", "workspace", CHECKSUM_CACHE)));
+        this.managedPathsStore = new ManagedPathsStore(this.homePath.resolve(Paths.get("fusepatch", "workspace")));
     }
 
     @Override
@@ -87,176 +139,411 @@ public abstract class AbstractServer implements Server {
 
     @Override
     public List<PatchId> queryAppliedPatches() {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
-            return MetadataParser.queryAvailablePatches(getWorkspace(), null, true);
+            lockShared();
+            try {
+                return readAppliedIndex().queryAvailable(null, true);
+            } finally {
+                processLock.unlock();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public List<ManagedPath> queryManagedPaths(String pattern) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
-            return queryManagedPaths(getWorkspace(), pattern);
+            lockShared();
+            try {
+                return managedPathsStore.query(pattern);
+            } finally {
+                processLock.unlock();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public Patch getPatch(String prefix) {
         IllegalArgumentAssertion.assertNotNull(prefix, "prefix");
-        lock.tryLock();
+        lock.readLock().lock();
         try {
-            List<PatchId> list = MetadataParser.queryAvailablePatches(getWorkspace(), prefix, true);
-            return list.isEmpty() ? null : getPatch(list.get(0));
+            lockShared();
+            try {
+                List<PatchId> list = readAppliedIndex().queryAvailable(prefix, true);
+                return list.isEmpty() ? null : getPatch(list.get(0));
+            } finally {
+                processLock.unlock();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public List<String> getAuditLog() {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
-            return readAuditLog(getWorkspace());
+            lockShared();
+            try {
+                return readAuditLog(getWorkspace());
+            } finally {
+                processLock.unlock();
+            }
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     @Override
     public Patch getPatch(PatchId patchId) {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
+        lock.readLock().lock();
         try {
-            return MetadataParser.readPatch(getWorkspace(), patchId);
+            lockShared();
+            try {
+                return MetadataParser.readPatch(getWorkspace(), patchId);
+            } finally {
+                processLock.unlock();
+            }
         } catch (IOException ex) {
             throw new IllegalStateException(ex);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
     }
 
+    @Override
+    public VerificationReport verify() {
+        lock.readLock().lock();
+        try {
+            lockShared();
+            try {
+                return verifyInternal();
+            } finally {
+                processLock.unlock();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private VerificationReport verifyInternal() throws IOException {
+        Path workspace = getWorkspace();
+        ManagedPaths managedPaths = managedPathsStore.read();
+
+        // Collect the expected checksums, a path that is recorded by more than one patch belongs to its latest owner
+        Map<Path, Long> expected = new HashMap<>();
+        for (PatchId patchId : readAppliedIndex().queryAvailable(null, true)) {
+            Patch patch = MetadataParser.readPatch(workspace, patchId);
+            for (Record rec : patch.getRecords()) {
+                Path path = rec.getPath();
+                ManagedPath mpath = managedPaths.getManagedPath(path);
+                List<PatchId> owners = mpath != null ? mpath.getOwners() : Collections.<PatchId>emptyList();
+                if (!expected.containsKey(path) || owners.isEmpty() || owners.get(owners.size() - 1).getName().equals(patchId.getName())) {
+                    expected.put(path, rec.getChecksum());
+                }
+            }
+        }
+
+        // Verify the server files in parallel
+        final Set<Path> missing = Collections.synchronizedSet(new HashSet<Path>());
+        final Set<Path> modified = Collections.synchronizedSet(new HashSet<Path>());
+        ExecutorService executor = new ForkJoinPool();
+        TaskGroup tasks = new TaskGroup(executor, Integer.MAX_VALUE);
+        try {
+            for (Map.Entry<Path, Long> entry : expected.entrySet()) {
+                final Path path = entry.getKey();
+                final long checksum = entry.getValue();
+                tasks.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Path file = homePath.resolve(path);
+                        if (!file.toFile().isFile()) {
+                            missing.add(path);
+                        } else if (checksumCache.getCRC32(file) != checksum) {
+                            modified.add(path);
+                        }
+                        return null;
+                    }
+                });
+            }
+            tasks.await();
+        } finally {
+            tasks.cancel();
+            executor.shutdown();
+        }
+        checksumCache.flush();
+
+        // Files in managed directories that are not recorded by any patch
+        Set<Path> unmanaged = new HashSet<>();
+        for (ManagedPath mpath : managedPaths.getManagedPaths()) {
+            File[] files = homePath.resolve(mpath.getPath()).toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Path path = mpath.getPath().resolve(file.getName());
+                    if (file.isFile() && !expected.containsKey(path) && managedPaths.getManagedPath(path) == null) {
+                        unmanaged.add(path);
+                    }
+                }
+            }
+        }
+
+        return VerificationReport.create(missing, modified, unmanaged);
+    }
+
     @Override
     public Patch applySmartPatch(SmartPatch smartPatch, boolean force) throws IOException {
         IllegalArgumentAssertion.assertNotNull(smartPatch, "smartPatch");
-        lock.tryLock();
+        lock.writeLock().lock();
         try {
-            // Do nothing on empty smart patch
-            if (smartPatch.getRecords().isEmpty()) {
-                LOG.warn("Patch {} has already been applied", smartPatch.getPatchId());
-                return null;
-            }
-
-            // Verify dependencies
-            List<PatchId> appliedPatches = queryAppliedPatches();
-            List<PatchId> unsatisfied = new ArrayList<>();
-            for (PatchId depId : smartPatch.getMetadata().getDependencies()) {
-                if (!appliedPatches.contains(depId)) {
-                    unsatisfied.add(depId);
+            processLock.lockExclusive();
+            try {
+                recoverJournal();
+                return applySmartPatchInternal(smartPatch, force, null);
+            } finally {
+                processLock.unlock();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public PatchId stageSmartPatch(SmartPatch smartPatch) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(smartPatch, "smartPatch");
+        PatchAssertion.assertFalse(smartPatch.isUninstall(), "Cannot stage an uninstall: " + smartPatch.getPatchId());
+        lock.writeLock().lock();
+        try {
+            processLock.lockExclusive();
+            try {
+                recoverJournal();
+
+                // Do nothing on empty smart patch
+                if (smartPatch.getRecords().isEmpty()) {
+                    LOG.warn("Patch {} has already been applied", smartPatch.getPatchId());
+                    return null;
+                }
+
+                // Replace a previously staged patch
+                Path stagedPath = getStagedPath();
+                IOUtils.rmdirs(stagedPath);
+                try {
+                    stageServerFiles(smartPatch, stagedPath.resolve(STAGED_CONTENT));
+
+                    // The seed tells whether the server is still in the state the patch was created for
+                    PatchId seedId = getAppliedPatchId(smartPatch.getPatchId().getName());
+                    Files.write(stagedPath.resolve(STAGED_SEED), (seedId != null ? seedId.toString() : "").getBytes(StandardCharsets.UTF_8));
+
+                    // The metadata is written last, it marks the staged content complete
+                    Journal.syncTree(stagedPath);
+                    try (FileOutputStream fos = new FileOutputStream(stagedPath.resolve(STAGED_PATCH).toFile())) {
+                        MetadataParser.writePatch(smartPatch.getPatch(), fos, true);
+                    }
+                    IOUtils.sync(stagedPath.resolve(STAGED_PATCH));
+                    IOUtils.sync(stagedPath);
+                } catch (IOException | RuntimeException ex) {
+                    IOUtils.rmdirs(stagedPath);
+                    throw ex;
                 }
+                LOG.info("Staged {}", smartPatch.getPatchId());
+                return smartPatch.getPatchId();
+            } finally {
+                processLock.unlock();
             }
-            PatchAssertion.assertTrue(unsatisfied.isEmpty(), "Unsatisfied dependencies: " + unsatisfied);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            PatchId patchId = smartPatch.getPatchId();
-            Patch serverSet = getPatch(patchId.getName());
-            PatchId serverId = serverSet != null ? serverSet.getPatchId() : null;
-
-            // Get the latest applied records
-            Map<Path, Record> serverRecords = new HashMap<>();
-            if (serverSet != null) {
-                for (Record rec : serverSet.getRecords()) {
-                    serverRecords.put(rec.getPath(), rec);
+    @Override
+    public PatchId getStagedPatch() {
+        lock.readLock().lock();
+        try {
+            lockShared();
+            try {
+                File metadataFile = getStagedPath().resolve(STAGED_PATCH).toFile();
+                return metadataFile.isFile() ? MetadataParser.readPatch(metadataFile).getPatchId() : null;
+            } finally {
+                processLock.unlock();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Patch commitStagedPatch(boolean force) throws IOException {
+        lock.writeLock().lock();
+        try {
+            processLock.lockExclusive();
+            try {
+                recoverJournal();
+
+                Path stagedPath = getStagedPath();
+                File metadataFile = stagedPath.resolve(STAGED_PATCH).toFile();
+                PatchAssertion.assertTrue(metadataFile.isFile(), "No staged patch in: " + stagedPath);
+                Patch stagedPatch = MetadataParser.readPatch(metadataFile);
+                PatchId patchId = stagedPatch.getPatchId();
+
+                // The staged patch only applies to the server state it was created for
+                String seedSpec = new String(Files.readAllBytes(stagedPath.resolve(STAGED_SEED)), StandardCharsets.UTF_8);
+                PatchId seedId = seedSpec.isEmpty() ? null : PatchId.fromString(seedSpec);
+                PatchId serverId = getAppliedPatchId(patchId.getName());
+                boolean unchanged = seedId != null ? seedId.equals(serverId) : serverId == null;
+                PatchAssertion.assertTrue(unchanged, "Server has changed since " + patchId + " was staged, applied is: " + serverId);
+
+                // The content is taken from the staging area, the data handler is never read
+                try (SmartPatch smartPatch = SmartPatch.forInstall(stagedPatch, new DataHandler(new FileDataSource(metadataFile)))) {
+                    return applySmartPatchInternal(smartPatch, force, stagedPath);
                 }
+            } finally {
+                processLock.unlock();
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            // Write log message
-            String message;
-            if (serverId == null) {
-                message = "Install " + patchId;
-            } else {
-                if (serverId.compareTo(patchId) < 0) {
-                    message = "Upgrade from " + serverId + " to " + patchId;
-                } else if (serverId.compareTo(patchId) == 0) {
-                    if (smartPatch.isUninstall()) {
-                        message = "Uninstall " + patchId;
-                    } else {
-                        message = "Reinstall " + patchId;
-                    }
+    // Must be called with the exclusive locks held, the content of a staged patch is taken from the given path
+    private Patch applySmartPatchInternal(SmartPatch smartPatch, boolean force, Path stagedPath) throws IOException {
+
+        // Do nothing on empty smart patch
+        if (smartPatch.getRecords().isEmpty()) {
+            LOG.warn("Patch {} has already been applied", smartPatch.getPatchId());
+            return null;
+        }
+
+        // Load the server state once
+        RepositoryIndex appliedIndex = readAppliedIndex();
+        ServerSnapshot snapshot = ServerSnapshot.load(homePath, getWorkspace(), appliedIndex, managedPathsStore, smartPatch);
+
+        // Verify dependencies
+        List<PatchId> appliedPatches = snapshot.getAppliedPatches();
+        List<PatchId> unsatisfied = new ArrayList<>();
+        for (PatchId depId : smartPatch.getMetadata().getDependencies()) {
+            if (!appliedPatches.contains(depId)) {
+                unsatisfied.add(depId);
+            }
+        }
+        PatchAssertion.assertTrue(unsatisfied.isEmpty(), "Unsatisfied dependencies: " + unsatisfied);
+
+        PatchId patchId = smartPatch.getPatchId();
+        Patch serverSet = snapshot.getServerPatch();
+        PatchId serverId = serverSet != null ? serverSet.getPatchId() : null;
+
+        // Get the latest applied records
+        Map<Path, Record> serverRecords = new HashMap<>();
+        if (serverSet != null) {
+            for (Record rec : serverSet.getRecords()) {
+                serverRecords.put(rec.getPath(), rec);
+            }
+        }
+
+        // Write log message
+        String message;
+        if (serverId == null) {
+            message = "Install " + patchId;
+        } else {
+            if (serverId.compareTo(patchId) < 0) {
+                message = "Upgrade from " + serverId + " to " + patchId;
+            } else if (serverId.compareTo(patchId) == 0) {
+                if (smartPatch.isUninstall()) {
+                    message = "Uninstall " + patchId;
                 } else {
-                    message = "Downgrade from " + serverId + " to " + patchId;
+                    message = "Reinstall " + patchId;
                 }
+            } else {
+                message = "Downgrade from " + serverId + " to " + patchId;
             }
-            LOG.info(message);
+        }
+        LOG.info(message);
 
-            // Remove all records in the remove set
-            for (Record rec : smartPatch.getRemoveSet()) {
-                Path path = homePath.resolve(rec.getPath());
-                if (!path.toFile().exists()) {
-                    LOG.warn("Attempt to delete a non existing file: {}", rec.getPath());
-                }
-                serverRecords.remove(rec.getPath());
+        // Remove all records in the remove set
+        for (Record rec : smartPatch.getRemoveSet()) {
+            if (!snapshot.exists(rec.getPath())) {
+                LOG.warn("Attempt to delete a non existing file: {}", rec.getPath());
             }
+            serverRecords.remove(rec.getPath());
+        }
 
-            // Replace records in the replace set
-            for (Record rec : smartPatch.getReplaceSet()) {
-                Path path = homePath.resolve(rec.getPath());
-                String filename = path.getFileName().toString();
-                if (!path.toFile().exists()) {
-                    LOG.warn("Attempt to replace a non existing file: {}", rec.getPath());
-                } else if (filename.endsWith(".xml") || filename.endsWith(".properties")) {
-                    Record exprec = serverRecords.get(rec.getPath());
-                    Long expcheck = exprec != null ? exprec.getChecksum() : 0L;
-                    Long wasCheck = IOUtils.getCRC32(path);
-                    if (!expcheck.equals(wasCheck)) {
-                        PatchAssertion.assertTrue(force, "Attempt to override an already modified file " + rec.getPath());
-                        LOG.warn("Overriding an already modified file: {}", rec.getPath());
-                    }
+        // Replace records in the replace set
+        for (Record rec : smartPatch.getReplaceSet()) {
+            Path path = homePath.resolve(rec.getPath());
+            String filename = path.getFileName().toString();
+            if (!snapshot.exists(rec.getPath())) {
+                LOG.warn("Attempt to replace a non existing file: {}", rec.getPath());
+            } else if (filename.endsWith(".xml") || filename.endsWith(".properties")) {
+                Record exprec = serverRecords.get(rec.getPath());
+                Long expcheck = exprec != null ? exprec.getChecksum() : 0L;
+                Long wasCheck = checksumCache.getCRC32(path, snapshot.getAttributes(rec.getPath()));
+                if (!expcheck.equals(wasCheck)) {
+                    PatchAssertion.assertTrue(force, "Attempt to override an already modified file " + rec.getPath());
+                    LOG.warn("Overriding an already modified file: {}", rec.getPath());
                 }
-                serverRecords.put(rec.getPath(), rec);
             }
+            serverRecords.put(rec.getPath(), rec);
+        }
 
-            // Add records in the add set
-            for (Record rec : smartPatch.getAddSet()) {
-                Path path = homePath.resolve(rec.getPath());
-                if (path.toFile().exists()) {
-                    Long expcheck = rec.getChecksum();
-                    Long wasCheck = IOUtils.getCRC32(path);
-                    if (!expcheck.equals(wasCheck)) {
-                        PatchAssertion.assertTrue(force, "Attempt to add an already existing file " + rec.getPath());
-                        LOG.warn("Overriding an already existing file: {}", rec.getPath());
-                    }
+        // Add records in the add set
+        for (Record rec : smartPatch.getAddSet()) {
+            Path path = homePath.resolve(rec.getPath());
+            if (snapshot.exists(rec.getPath())) {
+                Long expcheck = rec.getChecksum();
+                Long wasCheck = checksumCache.getCRC32(path, snapshot.getAttributes(rec.getPath()));
+                if (!expcheck.equals(wasCheck)) {
+                    PatchAssertion.assertTrue(force, "Attempt to add an already existing file " + rec.getPath());
+                    LOG.warn("Overriding an already existing file: {}", rec.getPath());
                 }
-                serverRecords.put(rec.getPath(), rec);
             }
+            serverRecords.put(rec.getPath(), rec);
+        }
 
-            // Update managed paths
-            ManagedPaths managedPaths = readManagedPaths(getWorkspace());
-            managedPaths.updatePaths(homePath, smartPatch, Action.ADD, Action.UPD);
+        // Update managed paths
+        ManagedPaths managedPaths = snapshot.getManagedPaths();
+        managedPaths.updatePaths(snapshot.getPathStates(), smartPatch, Action.ADD, Action.UPD);
 
+        Patch result;
+        if (stagedPath != null) {
+            journal = Journal.begin(getJournalPath(), homePath, getWorkspace(), stagedPath.resolve(STAGED_CONTENT));
+            IOUtils.rmdirs(stagedPath);
+        } else if (stagedInstall) {
+            journal = Journal.begin(getJournalPath(), homePath, getWorkspace());
+        }
+        try {
             // Update server files
             updateServerFiles(smartPatch, managedPaths);
 
             // Write managed paths
             managedPaths.updatePaths(homePath, smartPatch, Action.DEL);
-            writeManagedPaths(getWorkspace(), managedPaths);
-
-            Patch result;
+            managedPathsStore.write(managedPaths);
 
             // Update server side metadata
             if (!smartPatch.isUninstall()) {
 
                 // Remove higer versions on downgrade
                 if (serverId != null && serverId.compareTo(patchId) > 0) {
-                    for (PatchId auxId : MetadataParser.queryAvailablePatches(getWorkspace(), patchId.getName(), false)) {
-                        if (auxId.compareTo(patchId) > 0) {
+                    for (PatchId auxId : appliedIndex.queryAvailable(patchId.getName(), false)) {
+                        if (auxId.getName().equals(patchId.getName()) && auxId.compareTo(patchId) > 0) {
                             File packageDir = MetadataParser.getMetadataDirectory(getWorkspace(), auxId).getParentFile();
                             IOUtils.rmdirs(packageDir.toPath());
+                            removeAppliedVersions(appliedIndex, patchId.getName());
                         }
                     }
                 }
@@ -267,6 +554,7 @@ public abstract class AbstractServer implements Server {
                 }
                 result = Patch.create(smartPatch.getMetadata(), records);
                 MetadataParser.writePatch(getWorkspace(), result);
+                appliedIndex.addPatch(result);
             }
 
             // Remove metadata on uninstall
@@ -274,36 +562,46 @@ public abstract class AbstractServer implements Server {
                 result = Patch.create(smartPatch.getMetadata(), smartPatch.getRecords());
                 File packageDir = MetadataParser.getMetadataDirectory(getWorkspace(), patchId).getParentFile();
                 IOUtils.rmdirs(packageDir.toPath());
+                removeAppliedVersions(appliedIndex, patchId.getName());
             }
 
             // Write Audit log
             writeAuditLog(getWorkspace(), message, smartPatch);
 
-            // Run post install commands
-            if (!smartPatch.isUninstall()) {
-                Runtime runtime = Runtime.getRuntime();
-                File procdir = homePath.toFile();
-                for (String cmd : smartPatch.getMetadata().getPostCommands()) {
-                    LOG.info("Run: {}", cmd);
-                    String[] cmdarr = cmd.split("\\s");
-                    Process proc = runtime.exec(cmdarr, null, procdir);
-                    try {
-                        startStreaming(proc.getInputStream(), System.out);
-                        startStreaming(proc.getErrorStream(), System.err);
-                        if (proc.waitFor() != 0) {
-                            LOG.error("Command did not terminate normally: {}" + cmd);
-                            break;
-                        }
-                    } catch (InterruptedException ex) {
-                        // ignore
+            if (journal != null) {
+                journal.done();
+            }
+        } finally {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+                managedPathsStore.invalidate();
+            }
+        }
+        checksumCache.flush();
+
+        // Run post install commands
+        if (!smartPatch.isUninstall()) {
+            Runtime runtime = Runtime.getRuntime();
+            File procdir = homePath.toFile();
+            for (String cmd : smartPatch.getMetadata().getPostCommands()) {
+                LOG.info("Run: {}", cmd);
+                String[] cmdarr = cmd.split("\\s");
+                Process proc = runtime.exec(cmdarr, null, procdir);
+                try {
+                    startStreaming(proc.getInputStream(), System.out);
+                    startStreaming(proc.getErrorStream(), System.err);
+                    if (proc.waitFor() != 0) {
+                        LOG.error("Command did not terminate normally: {}" + cmd);
+                        break;
                     }
+                } catch (InterruptedException ex) {
+                    // ignore
                 }
             }
-
-            return result;
-        } finally {
-            lock.unlock();
         }
+
+        return result;
     }
 
     @Override
@@ -323,9 +621,36 @@ public abstract class AbstractServer implements Server {
         return thread;
     }
 
-    protected void updateServerFiles(SmartPatch smartPatch, ManagedPaths managedPaths) throws IOException {
+    protected void updateServerFiles(final SmartPatch smartPatch, ManagedPaths managedPaths) throws IOException {
+
+        // The content of a staged patch has been moved to the journal
+        if (journal != null && journal.hasStagedContent()) {
+            Set<Path> stagedPaths = new HashSet<>();
+            for (Record rec : smartPatch.getAddSet()) {
+                stagedPaths.add(rec.getPath());
+            }
+            for (Record rec : smartPatch.getReplaceSet()) {
+                stagedPaths.add(rec.getPath());
+            }
+            Set<Path> missingPaths = new HashSet<>();
+            for (Path path : stagedPaths) {
+                if (!journal.getStagingPath().resolve(path).toFile().isFile()) {
+                    missingPaths.add(path);
+                }
+            }
+            IllegalStateAssertion.assertTrue(missingPaths.isEmpty(), "Staged content does not contain expected paths: " + missingPaths);
+            installStagedFiles(smartPatch, managedPaths, journal.getStagingPath(), stagedPaths);
+            return;
+        }
+
+        if (streamingInstall && !smartPatch.isUninstall()) {
+            streamServerFiles(smartPatch, managedPaths);
+            return;
+        }
 
         File tmpFile = Files.createTempFile(getWorkspace(), "smartpatch", ".zip").toFile();
+        Map<Path, File> deltaFiles = new HashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(extractThreads);
 
         try {
 
@@ -337,138 +662,463 @@ public abstract class AbstractServer implements Server {
             for (Record rec : smartPatch.getReplaceSet()) {
                 addupdPaths.add(rec.getPath());
             }
-            if (!smartPatch.isUninstall()) {
-                try (FileOutputStream output = new FileOutputStream(tmpFile)) {
-                    InputStream input = smartPatch.getDataHandler().getInputStream();
-                    IOUtils.copy(input, output);
+            if (smartPatch.isUninstall()) {
+                IllegalStateAssertion.assertTrue(addupdPaths.isEmpty(), "Patch file does not contain expected paths: " + addupdPaths);
+                installStagedFiles(smartPatch, managedPaths, null, Collections.<Path>emptySet());
+                return;
+            }
+
+            try (FileOutputStream output = new FileOutputStream(tmpFile)) {
+                InputStream input = smartPatch.getDataHandler().getInputStream();
+                IOUtils.copy(input, output);
+            }
+
+            try (final ZipFile zipFile = new ZipFile(tmpFile)) {
+
+                // Collect the content and delta entries from the central directory
+                Map<Path, Long> checksums = new HashMap<>();
+                for (Record rec : smartPatch.getReplaceSet()) {
+                    checksums.put(rec.getPath(), rec.getChecksum());
                 }
-                try (ZipInputStream zip = new ZipInputStream(new FileInputStream(tmpFile))) {
-                    ZipEntry entry = zip.getNextEntry();
-                    while (entry != null) {
-                        if (!entry.isDirectory()) {
-                            Path path = Paths.get(entry.getName());
+                Map<Path, ZipEntry> deltaEntries = new HashMap<>();
+                List<ZipEntry> contentEntries = new ArrayList<>();
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        String name = entry.getName();
+                        if (name.endsWith(BinaryDelta.ENTRY_SUFFIX)) {
+                            Path path = Paths.get(name.substring(0, name.length() - BinaryDelta.ENTRY_SUFFIX.length()));
+                            if (checksums.containsKey(path)) {
+                                deltaEntries.put(path, entry);
+                                addupdPaths.remove(path);
+                            }
+                        } else {
+                            Path path = Paths.get(name);
                             addupdPaths.remove(path);
+                            if (smartPatch.isReplacePath(path) || smartPatch.isAddPath(path)) {
+                                contentEntries.add(entry);
+                            }
                         }
-                        entry = zip.getNextEntry();
                     }
                 }
+
+                // Apply binary deltas to staged files before any server file is modified
+                final Set<Path> mismatches = Collections.synchronizedSet(new HashSet<Path>());
+                Set<Path> stagedDeltas = new HashSet<>();
+                TaskGroup tasks = new TaskGroup(executor, Integer.MAX_VALUE);
+                for (Map.Entry<Path, ZipEntry> entry : deltaEntries.entrySet()) {
+                    final Path path = entry.getKey();
+                    final ZipEntry deltaEntry = entry.getValue();
+                    final File stagedFile;
+                    if (journal != null) {
+                        stagedFile = journal.getStagingPath().resolve(path).toFile();
+                        stagedFile.getParentFile().mkdirs();
+                        stagedDeltas.add(path);
+                    } else {
+                        stagedFile = Files.createTempFile(getWorkspace(), "delta", ".tmp").toFile();
+                        deltaFiles.put(path, stagedFile);
+                    }
+                    final long checksum = checksums.get(path);
+                    tasks.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            try (InputStream input = zipFile.getInputStream(deltaEntry)) {
+                                if (!BinaryDelta.apply(homePath.resolve(path).toFile(), input, stagedFile, checksum)) {
+                                    mismatches.add(path);
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+                tasks.await();
+                if (!mismatches.isEmpty()) {
+                    throw new DeltaMismatchException(mismatches);
+                }
+                IllegalStateAssertion.assertTrue(addupdPaths.isEmpty(), "Patch file does not contain expected paths: " + addupdPaths);
+
+                if (journal != null) {
+
+                    // Stage the replace and add sets and switch over through the journal
+                    Path stagingPath = journal.getStagingPath();
+                    extractEntries(zipFile, contentEntries, stagingPath, tasks);
+                    Set<Path> stagedPaths = new HashSet<>(stagedDeltas);
+                    for (ZipEntry entry : contentEntries) {
+                        stagedPaths.add(Paths.get(entry.getName()));
+                    }
+                    installStagedFiles(smartPatch, managedPaths, stagingPath, stagedPaths);
+
+                } else {
+
+                    // Remove all files in the remove set
+                    removeServerFiles(smartPatch, managedPaths);
+
+                    // Extract the replace and add sets in parallel
+                    extractEntries(zipFile, contentEntries, homePath, tasks);
+                }
             }
-            IllegalStateAssertion.assertTrue(addupdPaths.isEmpty(), "Patch file does not contain expected paths: " + addupdPaths);
 
-            // Remove all files in the remove set
-            for (Record rec : smartPatch.getRemoveSet()) {
-                Path path = rec.getPath();
-                removeServerFile(managedPaths, path);
+            // Move the files that were patched with binary deltas into place
+            for (Map.Entry<Path, File> entry : deltaFiles.entrySet()) {
+                File file = homePath.resolve(entry.getKey()).toFile();
+                boolean executable = file.canExecute();
+                Files.move(entry.getValue().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                file.setExecutable(executable);
+            }
+        } finally {
+            executor.shutdown();
+            tmpFile.delete();
+            for (File file : deltaFiles.values()) {
+                file.delete();
             }
+        }
+    }
 
-            // Handle replace and add sets
-            if (!smartPatch.isUninstall()) {
-                try (ZipInputStream zip = new ZipInputStream(new FileInputStream(tmpFile))) {
-                    byte[] buffer = new byte[1024];
-                    ZipEntry entry = zip.getNextEntry();
-                    while (entry != null) {
-                        if (!entry.isDirectory()) {
-                            Path path = Paths.get(entry.getName());
-                            if (smartPatch.isReplacePath(path) || smartPatch.isAddPath(path)) {
-                                File file = homePath.resolve(path).toFile();
-                                file.getParentFile().mkdirs();
-                                try (FileOutputStream fos = new FileOutputStream(file)) {
-                                    int read = zip.read(buffer);
-                                    while (read > 0) {
-                                        fos.write(buffer, 0, read);
-                                        read = zip.read(buffer);
-                                    }
-                                }
-                                if (file.getName().endsWith(".sh") || file.getName().endsWith(".bat")) {
-                                    file.setExecutable(true);
+    // Stage the content while it arrives and move it into place when all expected paths are staged
+    private void streamServerFiles(SmartPatch smartPatch, ManagedPaths managedPaths) throws IOException {
+
+        Path stagingPath = journal != null ? journal.getStagingPath() : Files.createTempDirectory(getStagingParent(), "staging");
+        try {
+            Set<Path> stagedPaths = stageServerFiles(smartPatch, stagingPath);
+            installStagedFiles(smartPatch, managedPaths, stagingPath, stagedPaths);
+        } finally {
+            if (journal == null) {
+                IOUtils.rmdirs(stagingPath);
+            }
+        }
+    }
+
+    // Stage the content and the binary deltas while they arrive, no server file is modified
+    private Set<Path> stageServerFiles(SmartPatch smartPatch, Path stagingPath) throws IOException {
+
+        stagingPath.toFile().mkdirs();
+        ExecutorService executor = Executors.newFixedThreadPool(extractThreads);
+        TaskGroup tasks = new TaskGroup(executor, 4 * extractThreads);
+
+        try {
+
+            Map<Path, Long> checksums = new HashMap<>();
+            for (Record rec : smartPatch.getAddSet()) {
+                checksums.put(rec.getPath(), rec.getChecksum());
+            }
+            for (Record rec : smartPatch.getReplaceSet()) {
+                checksums.put(rec.getPath(), rec.getChecksum());
+            }
+
+            // Binary deltas and content are staged, no server file is modified yet
+            Set<Path> stagedPaths = new HashSet<>();
+            Set<Path> mismatches = new HashSet<>();
+            try (ZipInputStream zip = new ZipInputStream(smartPatch.getDataHandler().getInputStream())) {
+                ZipEntry entry = zip.getNextEntry();
+                while (entry != null) {
+                    if (!entry.isDirectory()) {
+                        String name = entry.getName();
+                        if (name.endsWith(BinaryDelta.ENTRY_SUFFIX)) {
+                            Path path = Paths.get(name.substring(0, name.length() - BinaryDelta.ENTRY_SUFFIX.length()));
+                            if (smartPatch.isReplacePath(path)) {
+                                File stagedFile = stagingPath.resolve(path).toFile();
+                                stagedFile.getParentFile().mkdirs();
+                                if (!BinaryDelta.apply(homePath.resolve(path).toFile(), zip, stagedFile, checksums.get(path))) {
+                                    mismatches.add(path);
                                 }
+                                stagedPaths.add(path);
+                            }
+                        } else {
+                            Path path = Paths.get(name);
+                            Long checksum = checksums.get(path);
+                            if (checksum != null) {
+                                stageEntry(zip, path, stagingPath.resolve(path).toFile(), checksum, tasks);
+                                stagedPaths.add(path);
                             }
                         }
-                        entry = zip.getNextEntry();
                     }
+                    entry = zip.getNextEntry();
                 }
             }
+            tasks.await();
+            if (!mismatches.isEmpty()) {
+                throw new DeltaMismatchException(mismatches);
+            }
+            Set<Path> missingPaths = new HashSet<>(checksums.keySet());
+            missingPaths.removeAll(stagedPaths);
+            IllegalStateAssertion.assertTrue(missingPaths.isEmpty(), "Patch file does not contain expected paths: " + missingPaths);
+            return stagedPaths;
         } finally {
-            tmpFile.delete();
+            tasks.cancel();
+            executor.shutdown();
         }
     }
 
-    private void removeServerFile(ManagedPaths managedPaths, Path path) throws IOException {
+    // Remove the files in the remove set and move the staged files into place
+    private void installStagedFiles(SmartPatch smartPatch, ManagedPaths managedPaths, Path stagingPath, Set<Path> stagedPaths) throws IOException {
 
-        ManagedPath managedPath = managedPaths.getManagedPath(path);
-        List<PatchId> owners = managedPath.getOwners();
-        if (!owners.contains(Server.SERVER_ID)) {
-            Path pathToRemove = homePath.resolve(path);
+        // Record the switch-over before any server file is modified
+        if (journal != null) {
+            List<Path> removePaths = new ArrayList<>();
+            for (Record rec : smartPatch.getRemoveSet()) {
+                removePaths.add(rec.getPath());
+            }
+            journal.commit(smartPatch.getPatchId(), removePaths, stagedPaths);
+        }
+
+        // Replaced files keep their executable bit, like files that are overwritten in place
+        Set<Path> executables = new HashSet<>();
+        for (Path path : stagedPaths) {
+            File file = homePath.resolve(path).toFile();
+            if (file.canExecute() || file.getName().endsWith(".sh") || file.getName().endsWith(".bat")) {
+                executables.add(path);
+            }
+        }
+
+        // Remove all files in the remove set
+        removeServerFiles(smartPatch, managedPaths);
+
+        // Move the staged files into place
+        for (Path path : stagedPaths) {
+            File file = homePath.resolve(path).toFile();
+            boolean executable = executables.contains(path);
+            if (journal != null) {
+                journal.moveIntoPlace(path);
+            } else {
+                file.getParentFile().mkdirs();
+                Files.move(stagingPath.resolve(path), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            file.setExecutable(executable);
+        }
+    }
+
+    // Extract the entries in parallel, the target directories are created up front.
+    // No entry may resolve outside of the root path.
+    private static void extractEntries(final ZipFile zipFile, List<ZipEntry> entries, Path rootPath, TaskGroup tasks) throws IOException {
+        Path normalizedRoot = rootPath.toAbsolutePath().normalize();
+        final Map<ZipEntry, File> targetFiles = new HashMap<>();
+        for (ZipEntry entry : entries) {
+            Path path = normalizedRoot.resolve(entry.getName()).normalize();
+            IllegalStateAssertion.assertTrue(path.startsWith(normalizedRoot) && !path.equals(normalizedRoot), "Invalid entry path: " + entry.getName());
+            targetFiles.put(entry, path.toFile());
+        }
+        Set<File> targetDirs = new HashSet<>();
+        for (File file : targetFiles.values()) {
+            targetDirs.add(file.getParentFile());
+        }
+        for (File dir : targetDirs) {
+            dir.mkdirs();
+        }
+        for (final ZipEntry entry : entries) {
+            tasks.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    File file = targetFiles.get(entry);
+                    extractEntry(zipFile, entry, file);
+                    if (file.getName().endsWith(".sh") || file.getName().endsWith(".bat")) {
+                        file.setExecutable(true);
+                    }
+                    return null;
+                }
+            });
+        }
+        tasks.await();
+    }
+
+    // Verify the checksum of an entry while it is read from the stream and write it to the staged file.
+    // Small entries are written by the pool, so that reading the stream continues meanwhile.
+    private static void stageEntry(InputStream input, Path path, final File stagedFile, long checksum, TaskGroup tasks) throws IOException {
+        stagedFile.getParentFile().mkdirs();
+        CRC32 crc = new CRC32();
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read = input.read(buffer);
+        while (read > 0 && content.size() < LARGE_ENTRY_SIZE) {
+            crc.update(buffer, 0, read);
+            content.write(buffer, 0, read);
+            read = input.read(buffer);
+        }
+        if (read > 0) {
+            try (FileOutputStream output = new FileOutputStream(stagedFile)) {
+                content.writeTo(output);
+                while (read > 0) {
+                    crc.update(buffer, 0, read);
+                    output.write(buffer, 0, read);
+                    read = input.read(buffer);
+                }
+            }
+        } else {
+            tasks.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try (FileOutputStream output = new FileOutputStream(stagedFile)) {
+                        content.writeTo(output);
+                    }
+                    return null;
+                }
+            });
+        }
+        IllegalStateAssertion.assertTrue(crc.getValue() == checksum, "Checksum mismatch for: " + path);
+    }
+
+    // A missing or invalid index is rebuilt under the exclusive process lock
+    private RepositoryIndex readAppliedIndex() throws IOException {
+        RepositoryIndex index = RepositoryIndex.readIfValid(getWorkspace(), APPLIED_INDEX);
+        if (index == null) {
+            processLock.lockExclusive();
             try {
-                Files.deleteIfExists(pathToRemove);
-            } catch (Exception e) {
-                // Something prevented the file being deleted, so try again on VM exit
-                File file = pathToRemove.toFile();
-                file.deleteOnExit();
-                LOG.warn("Deleting {} on exit due to: {}", file.getAbsoluteFile(), e.getMessage());
+                index = RepositoryIndex.read(getWorkspace(), APPLIED_INDEX);
+            } finally {
+                processLock.unlock();
             }
         }
+        return index;
+    }
 
-        // Recursively remove managed dirs that are empty
-        Path parent = path.getParent();
-        if (parent != null && managedPaths.getManagedPath(parent) != null) {
-            File dir = homePath.resolve(parent).toFile();
-            if (dir.isDirectory() && dir.list().length == 0) {
-                removeServerFile(managedPaths, parent);
+    // Remove all versions of the given patch name from the applied index
+    private void removeAppliedVersions(RepositoryIndex appliedIndex, String name) throws IOException {
+        for (PatchId patchId : appliedIndex.queryAvailable(name, false)) {
+            if (patchId.getName().equals(name)) {
+                appliedIndex.removePatch(patchId);
             }
         }
     }
 
-    private Path getWorkspace() {
-        Path path = homePath.resolve(Paths.get("fusepatch", "workspace"));
+    private Path getJournalPath() {
+        return homePath.resolve(Paths.get("fusepatch", Journal.JOURNAL_DIR));
+    }
+
+    private Path getStagedPath() {
+        return homePath.resolve(Paths.get("fusepatch", STAGED_DIR));
+    }
+
+    private PatchId getAppliedPatchId(String name) throws IOException {
+        for (PatchId patchId : readAppliedIndex().queryAvailable(name, true)) {
+            if (patchId.getName().equals(name)) {
+                return patchId;
+            }
+        }
+        return null;
+    }
+
+    // Roll back a commit that was interrupted in a previous process, before this instance first reads the workspace
+    private void lockShared() throws IOException {
+        if (!recovered) {
+            synchronized (this) {
+                if (!recovered) {
+                    processLock.lockExclusive();
+                    try {
+                        recoverJournal();
+                    } finally {
+                        processLock.unlock();
+                    }
+                }
+            }
+        }
+        processLock.lockShared();
+    }
+
+    // Must be called with the exclusive locks held
+    private void recoverJournal() throws IOException {
+        Path journalPath = getJournalPath();
+        if (journalPath.toFile().exists()) {
+            Journal.recover(journalPath, homePath, getWorkspace());
+            managedPathsStore.invalidate();
+        }
+        recovered = true;
+    }
+
+    private Path getStagingParent() {
+        Path path = homePath.resolve("fusepatch");
         path.toFile().mkdirs();
         return path;
     }
 
-    private List<ManagedPath> queryManagedPaths(Path rootPath, String pattern) {
-        try {
-            List<ManagedPath> result = new ArrayList<>();
-            ManagedPaths mpaths = readManagedPaths(rootPath);
-            for (ManagedPath aux : mpaths.getManagedPaths()) {
-                String path = aux.getPath().toString();
-                if (pattern == null || path.startsWith(pattern)) {
-                    result.add(aux);
+    private static void extractEntry(ZipFile zipFile, ZipEntry entry, File file) throws IOException {
+        try (InputStream input = zipFile.getInputStream(entry)) {
+            if (entry.getSize() > LARGE_ENTRY_SIZE) {
+                // Let the file channel pull large entries in big chunks
+                try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+                    ReadableByteChannel source = Channels.newChannel(input);
+                    long position = 0;
+                    long count = channel.transferFrom(source, position, LARGE_ENTRY_SIZE);
+                    while (count > 0) {
+                        position += count;
+                        count = channel.transferFrom(source, position, LARGE_ENTRY_SIZE);
+                    }
+                }
+            } else {
+                try (FileOutputStream output = new FileOutputStream(file)) {
+                    IOUtils.copy(input, output);
                 }
             }
-            return Collections.unmodifiableList(result);
-        } catch (IOException ex) {
-            throw new IllegalStateException(ex);
         }
     }
 
-    private ManagedPaths readManagedPaths(Path rootPath) throws IOException {
-        IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
-        List<ManagedPath> managedPaths = new ArrayList<>();
-        File metadataFile = rootPath.resolve(MetadataParser.MANAGED_PATHS).toFile();
-        if (metadataFile.exists()) {
-            try (BufferedReader br = new BufferedReader(new FileReader(metadataFile))) {
-                String line = br.readLine();
-                while (line != null) {
-                    managedPaths.add(ManagedPath.fromString(line));
-                    line = br.readLine();
+    // Remove the files in the remove set, then the managed directories that became empty
+    private void removeServerFiles(SmartPatch smartPatch, ManagedPaths managedPaths) throws IOException {
+        Set<Path> managedDirs = new HashSet<>();
+        for (Record rec : smartPatch.getRemoveSet()) {
+            Path path = rec.getPath();
+            removeServerFile(managedPaths, path);
+
+            // Collect the chain of managed parent dirs
+            Path parent = path.getParent();
+            while (parent != null && managedPaths.getManagedPath(parent) != null && managedDirs.add(parent)) {
+                parent = parent.getParent();
+            }
+        }
+        pruneManagedDirs(managedPaths, managedDirs);
+    }
+
+    // Remove the given managed dirs that are empty in one pass, deepest first so that a parent sees its children removed
+    private void pruneManagedDirs(ManagedPaths managedPaths, Collection<Path> managedDirs) {
+        List<Path> dirs = new ArrayList<>(managedDirs);
+        Collections.sort(dirs, new Comparator<Path>() {
+            @Override
+            public int compare(Path p1, Path p2) {
+                return p2.getNameCount() - p1.getNameCount();
+            }
+        });
+        for (Path dir : dirs) {
+            if (!managedPaths.getManagedPath(dir).getOwners().contains(Server.SERVER_ID)) {
+                try {
+                    Files.deleteIfExists(homePath.resolve(dir));
+                } catch (DirectoryNotEmptyException ex) {
+                    // still in use
+                } catch (IOException ex) {
+                    File file = homePath.resolve(dir).toFile();
+                    file.deleteOnExit();
+                    LOG.warn("Deleting {} on exit due to: {}", file.getAbsoluteFile(), ex.getMessage());
                 }
             }
         }
-        return new ManagedPaths(managedPaths);
     }
 
-    private void writeManagedPaths(Path rootPath, ManagedPaths managedPaths) throws IOException {
-        IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
-        IllegalArgumentAssertion.assertNotNull(managedPaths, "managedPaths");
-        File metadataFile = rootPath.resolve(MetadataParser.MANAGED_PATHS).toFile();
-        metadataFile.getParentFile().mkdirs();
-        try (PrintWriter pw = new PrintWriter(new FileWriter(metadataFile))) {
-            for (ManagedPath path : managedPaths.getManagedPaths()) {
-                pw.println(path.toString());
+    private void removeServerFile(ManagedPaths managedPaths, Path path) throws IOException {
+
+        ManagedPath managedPath = managedPaths.getManagedPath(path);
+        List<PatchId> owners = managedPath.getOwners();
+        if (!owners.contains(Server.SERVER_ID)) {
+            Path pathToRemove = homePath.resolve(path);
+            try {
+                if (journal != null && pathToRemove.toFile().isFile()) {
+                    journal.remove(path);
+                } else {
+                    Files.deleteIfExists(pathToRemove);
+                }
+            } catch (Exception e) {
+                // Something prevented the file being deleted, so try again on VM exit
+                File file = pathToRemove.toFile();
+                file.deleteOnExit();
+                LOG.warn("Deleting {} on exit due to: {}", file.getAbsoluteFile(), e.getMessage());
             }
         }
     }
 
+    private Path getWorkspace() {
+        Path path = homePath.resolve(Paths.get("fusepatch", "workspace"));
+        path.toFile().mkdirs();
+        return path;
+    }
+
+
     private void writeAuditLog(Path rootPath, String message, SmartPatch smartPatch) throws IOException {
         IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
         IllegalArgumentAssertion.assertNotNull(message, "message");
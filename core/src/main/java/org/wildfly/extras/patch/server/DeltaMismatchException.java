@@ -0,0 +1,46 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Thrown when binary deltas in a smart patch cannot be applied to the server files.
+ *
+ * No server file has been modified when this exception is thrown.
+ */
+@SuppressWarnings("serial")
+public final class DeltaMismatchException extends IOException {
+
+    private final Set<Path> paths;
+
+    public DeltaMismatchException(Set<Path> paths) {
+        super("Cannot apply binary delta to: " + paths);
+        this.paths = Collections.unmodifiableSet(new HashSet<>(paths));
+    }
+
+    public Set<Path> getPaths() {
+        return paths;
+    }
+}
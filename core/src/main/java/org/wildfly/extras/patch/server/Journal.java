@@ -0,0 +1,334 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.internal.MetadataParser;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+import org.wildfly.extras.patch.utils.IllegalStateAssertion;
+
+/**
+ * The journal of a staged patch commit.
+ *
+ * The patch content is staged next to the server first, either by the same operation or ahead of
+ * time by a separate stage operation. The journal then records the server files
+ * that are removed or replaced and is marked committed, before any server file is modified.
+ * Removed and replaced files are moved to a backup, and the workspace metadata of the patch is
+ * kept as a snapshot. The journal is marked done when the workspace metadata has been written.
+ *
+ * The staged files and the snapshot are forced to disk before the commit is recorded, and the
+ * directories of the moved files and the workspace metadata are forced to disk before it is marked done.
+ *
+ * A commit that is not done is rolled back, either when the journal is closed or by the recovery
+ * of the next server instance.
+ */
+final class Journal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+
+    static final String JOURNAL_DIR = "journal";
+
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final String STAGING_DIR = "staging";
+    private static final String BACKUP_DIR = "backup";
+    private static final String METADATA_DIR = "metadata";
+
+    private static final String NAME_PREFIX = "NAME ";
+    private static final String AUDIT_PREFIX = "AUDIT ";
+    private static final String DELETE_PREFIX = "DEL ";
+    private static final String MOVE_PREFIX = "MOV ";
+    private static final String COMMIT = "COMMIT";
+
+    // The workspace files that are updated by any patch
+    private static final String[] WORKSPACE_FILES = { MetadataParser.MANAGED_PATHS, ManagedPathsStore.CHANGES_FILE, AbstractServer.APPLIED_INDEX };
+    private static final String DONE = "DONE";
+
+    private final Path journalPath;
+    private final Path homePath;
+    private final Path workspace;
+    private final Set<Path> modifiedDirs = new HashSet<>();
+    private final boolean stagedContent;
+    private String name;
+    private boolean committed;
+
+    static Journal begin(Path journalPath, Path homePath, Path workspace) throws IOException {
+        IllegalStateAssertion.assertFalse(journalPath.toFile().exists(), "Journal already exists: " + journalPath);
+        Journal journal = new Journal(journalPath, homePath, workspace, false);
+        journal.getStagingPath().toFile().mkdirs();
+        return journal;
+    }
+
+    /**
+     * Begin a journal that takes over content which has been staged ahead of the commit
+     */
+    static Journal begin(Path journalPath, Path homePath, Path workspace, Path stagedContent) throws IOException {
+        IllegalStateAssertion.assertFalse(journalPath.toFile().exists(), "Journal already exists: " + journalPath);
+        IllegalStateAssertion.assertTrue(stagedContent.toFile().isDirectory(), "Staged content does not exist: " + stagedContent);
+        Journal journal = new Journal(journalPath, homePath, workspace, true);
+        journalPath.toFile().mkdirs();
+        IOUtils.moveAtomic(stagedContent, journal.getStagingPath());
+        return journal;
+    }
+
+    /**
+     * Roll back a commit that is not done and remove the journal
+     */
+    static void recover(Path journalPath, Path homePath, Path workspace) throws IOException {
+        File journalFile = journalPath.resolve(JOURNAL_FILE).toFile();
+        if (journalFile.isFile()) {
+            List<String> lines = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+            if (lines.contains(COMMIT) && !lines.contains(DONE)) {
+                LOG.warn("Roll back incomplete patch commit: {}", journalPath);
+                rollback(journalPath, homePath, workspace, lines);
+            }
+            Files.delete(journalFile.toPath());
+        }
+        IOUtils.rmdirs(journalPath);
+    }
+
+    private Journal(Path journalPath, Path homePath, Path workspace, boolean stagedContent) {
+        IllegalArgumentAssertion.assertNotNull(journalPath, "journalPath");
+        IllegalArgumentAssertion.assertNotNull(homePath, "homePath");
+        IllegalArgumentAssertion.assertNotNull(workspace, "workspace");
+        this.journalPath = journalPath;
+        this.homePath = homePath;
+        this.workspace = workspace;
+        this.stagedContent = stagedContent;
+    }
+
+    Path getStagingPath() {
+        return journalPath.resolve(STAGING_DIR);
+    }
+
+    /**
+     * True if the staging area holds content that was staged ahead of the commit
+     */
+    boolean hasStagedContent() {
+        return stagedContent;
+    }
+
+    /**
+     * Record the server files that are removed and the staged files that are moved into place
+     */
+    void commit(PatchId patchId, Collection<Path> removePaths, Collection<Path> stagedPaths) throws IOException {
+        IllegalStateAssertion.assertFalse(committed, "Journal already committed: " + journalPath);
+
+        // Keep a snapshot of the workspace metadata that is updated by the patch
+        name = patchId.getName();
+        Path metadataPath = journalPath.resolve(METADATA_DIR);
+        copyTree(workspace.resolve(name), metadataPath.resolve(name));
+        for (String file : WORKSPACE_FILES) {
+            copyTree(workspace.resolve(file), metadataPath.resolve(file));
+        }
+        long auditLength = workspace.resolve(AbstractServer.AUDIT_LOG).toFile().length();
+
+        // The staged files and the snapshot must survive a crash once the commit is recorded
+        syncTree(journalPath);
+        IOUtils.sync(journalPath.getParent());
+
+        try (FileOutputStream fos = new FileOutputStream(journalPath.resolve(JOURNAL_FILE).toFile())) {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+            pw.println(NAME_PREFIX + name);
+            pw.println(AUDIT_PREFIX + auditLength);
+            for (Path path : removePaths) {
+                pw.println(DELETE_PREFIX + path);
+            }
+            for (Path path : stagedPaths) {
+                pw.println(MOVE_PREFIX + path);
+            }
+            pw.println(COMMIT);
+            pw.flush();
+            fos.getFD().sync();
+        }
+        IOUtils.sync(journalPath);
+        committed = true;
+    }
+
+    /**
+     * Move a server file to the backup
+     */
+    void remove(Path path) throws IOException {
+        IllegalStateAssertion.assertTrue(committed, "Journal not committed: " + journalPath);
+        Path backupPath = journalPath.resolve(BACKUP_DIR).resolve(path);
+        backupPath.getParent().toFile().mkdirs();
+        IOUtils.moveAtomic(homePath.resolve(path), backupPath);
+        modifiedDirs.add(backupPath.getParent());
+        modifiedDirs.add(homePath.resolve(path).getParent());
+    }
+
+    /**
+     * Move a staged file into place, an existing server file is moved to the backup
+     */
+    void moveIntoPlace(Path path) throws IOException {
+        IllegalStateAssertion.assertTrue(committed, "Journal not committed: " + journalPath);
+        Path targetPath = homePath.resolve(path);
+        if (targetPath.toFile().exists()) {
+            remove(path);
+        }
+        targetPath.getParent().toFile().mkdirs();
+        IOUtils.moveAtomic(getStagingPath().resolve(path), targetPath);
+        modifiedDirs.add(targetPath.getParent());
+    }
+
+    /**
+     * Mark the commit done, after which it is no longer rolled back
+     */
+    void done() throws IOException {
+        IllegalStateAssertion.assertTrue(committed, "Journal not committed: " + journalPath);
+
+        // The moved files and the workspace metadata must survive a crash once the commit is done
+        for (Path dir : modifiedDirs) {
+            if (dir.toFile().isDirectory()) {
+                IOUtils.sync(dir);
+            }
+        }
+        for (String file : WORKSPACE_FILES) {
+            if (workspace.resolve(file).toFile().exists()) {
+                IOUtils.sync(workspace.resolve(file));
+            }
+        }
+        if (workspace.resolve(name).toFile().exists()) {
+            syncTree(workspace.resolve(name));
+        }
+        IOUtils.sync(workspace);
+        try (FileOutputStream fos = new FileOutputStream(journalPath.resolve(JOURNAL_FILE).toFile(), true)) {
+            fos.write((DONE + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        recover(journalPath, homePath, workspace);
+    }
+
+    private static void rollback(Path journalPath, Path homePath, Path workspace, List<String> lines) throws IOException {
+        String name = null;
+        long auditLength = 0;
+        List<String> operations = new ArrayList<>();
+        for (String line : lines) {
+            if (line.startsWith(NAME_PREFIX)) {
+                name = line.substring(NAME_PREFIX.length());
+            } else if (line.startsWith(AUDIT_PREFIX)) {
+                auditLength = Long.parseLong(line.substring(AUDIT_PREFIX.length()));
+            } else if (line.startsWith(DELETE_PREFIX) || line.startsWith(MOVE_PREFIX)) {
+                operations.add(line);
+            }
+        }
+        IllegalStateAssertion.assertNotNull(name, "Invalid journal: " + journalPath);
+
+        // Undo the operations in reverse order, the state of the staged and backup files tells how far they got
+        Collections.reverse(operations);
+        for (String op : operations) {
+            Path path = Paths.get(op.substring(4));
+            Path targetPath = homePath.resolve(path);
+            Path backupPath = journalPath.resolve(BACKUP_DIR).resolve(path);
+            if (op.startsWith(MOVE_PREFIX) && !journalPath.resolve(STAGING_DIR).resolve(path).toFile().exists()) {
+                Files.deleteIfExists(targetPath);
+            }
+            if (backupPath.toFile().exists()) {
+                targetPath.getParent().toFile().mkdirs();
+                IOUtils.moveAtomic(backupPath, targetPath);
+            }
+        }
+
+        // Restore the workspace metadata
+        Path metadataPath = journalPath.resolve(METADATA_DIR);
+        IOUtils.rmdirs(workspace.resolve(name));
+        copyTree(metadataPath.resolve(name), workspace.resolve(name));
+        for (String file : WORKSPACE_FILES) {
+            Files.deleteIfExists(workspace.resolve(file));
+            copyTree(metadataPath.resolve(file), workspace.resolve(file));
+        }
+        Path auditPath = workspace.resolve(AbstractServer.AUDIT_LOG);
+        if (auditPath.toFile().length() > auditLength) {
+            try (FileChannel channel = FileChannel.open(auditPath, StandardOpenOption.WRITE)) {
+                channel.truncate(auditLength);
+            }
+        }
+    }
+
+    // Force the files of a tree to disk, each directory after its entries
+    static void syncTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                IOUtils.sync(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                IOUtils.sync(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Copy a file or directory tree, if it exists
+    private static void copyTree(final Path source, final Path target) throws IOException {
+        if (source.toFile().exists()) {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    target.resolve(source.relativize(dir)).toFile().mkdirs();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path targetFile = target.resolve(source.relativize(file));
+                    targetFile.getParent().toFile().mkdirs();
+                    Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+}
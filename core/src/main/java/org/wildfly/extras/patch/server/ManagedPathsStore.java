@@ -0,0 +1,298 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.wildfly.extras.patch.ManagedPath;
+import org.wildfly.extras.patch.ManagedPaths;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.internal.MetadataParser;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+import org.wildfly.extras.patch.utils.IllegalStateAssertion;
+
+/**
+ * The store of managed server paths in the workspace.
+ *
+ * The paths are kept in the sorted {@code managed-paths.metadata} file and an append-only
+ * change log. A write only appends the paths that changed, as a batch that is terminated
+ * by an end marker. Incomplete batches are ignored on read. When the change log outgrows the
+ * sorted file, both are compacted into a new sorted file.
+ *
+ * The parsed paths are kept in memory for as long as neither file changes on disk.
+ */
+final class ManagedPathsStore {
+
+    static final String CHANGES_FILE = "managed-paths.changes";
+
+    // The change log is compacted when it contains more than this number of lines and more lines than the sorted file
+    private static final int COMPACT_THRESHOLD = 256;
+
+    private static final String PUT_PREFIX = "PUT ";
+    private static final String DELETE_PREFIX = "DEL ";
+    private static final String END_MARKER = "END";
+
+    private static final String REGEX_SYNTAX = "regex:";
+    private static final String GLOB_SYNTAX = "glob:";
+    private static final String GLOB_CHARS = "*?[{\\";
+    private static final String REGEX_CHARS = "\\.[]{}()*+?^$|";
+    private static final String REGEX_QUANTIFIERS = "*+?{";
+
+    private final Path workspace;
+    private final TreeMap<String, ManagedPath> managedPaths = new TreeMap<>();
+    private int baseCount;
+    private int changeCount;
+    private boolean incomplete;
+    private String stamp;
+
+    ManagedPathsStore(Path workspace) {
+        IllegalArgumentAssertion.assertNotNull(workspace, "workspace");
+        this.workspace = workspace;
+    }
+
+    /**
+     * Get a modifiable copy of the managed paths
+     */
+    synchronized ManagedPaths read() throws IOException {
+        refresh();
+        return new ManagedPaths(new ArrayList<>(managedPaths.values()));
+    }
+
+    /**
+     * Get the managed paths that match the given pattern.
+     *
+     * A pattern that starts with {@code regex:} is a regular expression, a pattern that contains one of
+     * {@code *?[{} is a glob and any other pattern is a path prefix. Only the range of paths that start with
+     * the literal prefix of the pattern is scanned. A regular expression that contains an alternation scans all paths.
+     */
+    synchronized List<ManagedPath> query(String pattern) throws IOException {
+        refresh();
+        if (pattern == null) {
+            return Collections.unmodifiableList(new ArrayList<>(managedPaths.values()));
+        }
+        PathMatcher matcher = null;
+        String prefix = pattern;
+        if (pattern.startsWith(REGEX_SYNTAX)) {
+            String regex = pattern.substring(REGEX_SYNTAX.length());
+            matcher = FileSystems.getDefault().getPathMatcher(pattern);
+            // Any branch of an alternation may start with another prefix
+            prefix = regex.indexOf('|') < 0 ? getLiteralPrefix(regex, REGEX_CHARS, REGEX_QUANTIFIERS) : "";
+        } else if (getLiteralPrefix(pattern, GLOB_CHARS, "").length() < pattern.length()) {
+            matcher = FileSystems.getDefault().getPathMatcher(GLOB_SYNTAX + pattern);
+            prefix = getLiteralPrefix(pattern, GLOB_CHARS, "");
+        }
+        List<ManagedPath> result = new ArrayList<>();
+        for (ManagedPath mpath : managedPaths.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            if (matcher == null || matcher.matches(mpath.getPath())) {
+                result.add(mpath);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Append the paths that differ from the stored paths to the change log
+     */
+    synchronized void write(ManagedPaths updated) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(updated, "updated");
+        refresh();
+
+        Map<String, ManagedPath> updatedPaths = new HashMap<>();
+        List<String> lines = new ArrayList<>();
+        for (ManagedPath mpath : updated.getManagedPaths()) {
+            String key = mpath.getPath().toString();
+            updatedPaths.put(key, mpath);
+            if (!mpath.equals(managedPaths.get(key))) {
+                lines.add(PUT_PREFIX + mpath);
+            }
+        }
+        for (String key : managedPaths.keySet()) {
+            if (!updatedPaths.containsKey(key)) {
+                lines.add(DELETE_PREFIX + key);
+            }
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        managedPaths.clear();
+        managedPaths.putAll(updatedPaths);
+        changeCount += lines.size();
+        if (incomplete || changeCount > COMPACT_THRESHOLD && changeCount > baseCount) {
+            compact();
+        } else {
+            File changesFile = workspace.resolve(CHANGES_FILE).toFile();
+            try (FileOutputStream fos = new FileOutputStream(changesFile, true)) {
+                PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos));
+                for (String line : lines) {
+                    pw.println(line);
+                }
+                pw.println(END_MARKER);
+                pw.flush();
+                fos.getFD().sync();
+            }
+        }
+        stamp = getStamp();
+    }
+
+    /**
+     * Drop the paths in memory, so that they are read again on next access
+     */
+    synchronized void invalidate() {
+        stamp = null;
+    }
+
+    // The pattern up to the first special character, a quantifier also applies to the character before it
+    private static String getLiteralPrefix(String pattern, String specialChars, String quantifiers) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char ch = pattern.charAt(i);
+            if (specialChars.indexOf(ch) >= 0) {
+                return pattern.substring(0, quantifiers.indexOf(ch) >= 0 ? Math.max(0, i - 1) : i);
+            }
+        }
+        return pattern;
+    }
+
+    // Rewrite the sorted file from memory and remove the change log
+    private void compact() throws IOException {
+        Path basePath = workspace.resolve(MetadataParser.MANAGED_PATHS);
+        Path tmpPath = Files.createTempFile(workspace, MetadataParser.MANAGED_PATHS, ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmpPath.toFile())) {
+                PrintWriter pw = new PrintWriter(new OutputStreamWriter(fos));
+                for (ManagedPath mpath : managedPaths.values()) {
+                    pw.println(mpath);
+                }
+                pw.flush();
+                fos.getFD().sync();
+            }
+            IOUtils.moveAtomic(tmpPath, basePath);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+        Files.deleteIfExists(workspace.resolve(CHANGES_FILE));
+        baseCount = managedPaths.size();
+        changeCount = 0;
+        incomplete = false;
+    }
+
+    // Read both files again when either of them changed
+    private void refresh() throws IOException {
+        String current = getStamp();
+        if (current.equals(stamp)) {
+            return;
+        }
+        managedPaths.clear();
+        baseCount = 0;
+        changeCount = 0;
+        incomplete = false;
+        Map<String, PatchId> patchIds = new HashMap<>();
+        File baseFile = workspace.resolve(MetadataParser.MANAGED_PATHS).toFile();
+        if (baseFile.isFile()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(baseFile))) {
+                String line = br.readLine();
+                while (line != null) {
+                    if (line.length() > 0) {
+                        ManagedPath mpath = parse(line, patchIds);
+                        managedPaths.put(mpath.getPath().toString(), mpath);
+                        baseCount++;
+                    }
+                    line = br.readLine();
+                }
+            }
+        }
+        File changesFile = workspace.resolve(CHANGES_FILE).toFile();
+        if (changesFile.isFile()) {
+            try (BufferedReader br = new BufferedReader(new FileReader(changesFile))) {
+                List<String> batch = new ArrayList<>();
+                String line = br.readLine();
+                while (line != null) {
+                    if (END_MARKER.equals(line)) {
+                        for (String change : batch) {
+                            if (change.startsWith(PUT_PREFIX)) {
+                                ManagedPath mpath = parse(change.substring(PUT_PREFIX.length()), patchIds);
+                                managedPaths.put(mpath.getPath().toString(), mpath);
+                            } else {
+                                IllegalStateAssertion.assertTrue(change.startsWith(DELETE_PREFIX), "Invalid managed path change: " + change);
+                                managedPaths.remove(change.substring(DELETE_PREFIX.length()));
+                            }
+                        }
+                        changeCount += batch.size();
+                        batch.clear();
+                    } else {
+                        batch.add(line);
+                    }
+                    line = br.readLine();
+                }
+                // A batch without end marker was not completely written, the next write compacts it away
+                incomplete = !batch.isEmpty();
+            }
+        }
+        stamp = current;
+    }
+
+    // Parse a line of the form 'path [owner, owner]', equal owners share the same patch id
+    private static ManagedPath parse(String line, Map<String, PatchId> patchIds) {
+        int index = line.indexOf(' ');
+        int end = line.lastIndexOf(']');
+        IllegalStateAssertion.assertTrue(index > 0 && end > index, "Invalid managed path: " + line);
+        List<PatchId> owners = new ArrayList<>();
+        int start = line.indexOf('[', index) + 1;
+        while (start < end) {
+            int next = line.indexOf(',', start);
+            if (next < 0 || next > end) {
+                next = end;
+            }
+            String idspec = line.substring(start, next).trim();
+            PatchId patchId = patchIds.get(idspec);
+            if (patchId == null) {
+                patchId = PatchId.fromString(idspec);
+                patchIds.put(idspec, patchId);
+            }
+            owners.add(patchId);
+            start = next + 1;
+        }
+        return ManagedPath.create(Paths.get(line.substring(0, index)), owners);
+    }
+
+    private String getStamp() {
+        File baseFile = workspace.resolve(MetadataParser.MANAGED_PATHS).toFile();
+        File changesFile = workspace.resolve(CHANGES_FILE).toFile();
+        return baseFile.length() + ":" + baseFile.lastModified() + ":" + changesFile.length() + ":" + changesFile.lastModified();
+    }
+}
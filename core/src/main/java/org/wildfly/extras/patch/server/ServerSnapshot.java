@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.wildfly.extras.patch.ManagedPath;
+import org.wildfly.extras.patch.ManagedPaths;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.Record.Action;
+import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.internal.MetadataParser;
+import org.wildfly.extras.patch.internal.RepositoryIndex;
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+import org.wildfly.extras.patch.utils.PathStates;
+
+/**
+ * The server state that a smart patch is applied to.
+ *
+ * The workspace metadata and the states of the server files that the patch touches are
+ * loaded once, before any server file is modified. A {@code ServerSnapshot} is immutable.
+ */
+final class ServerSnapshot {
+
+    private final List<PatchId> appliedPatches;
+    private final Patch serverPatch;
+    private final List<ManagedPath> managedPaths;
+    private final PathStates pathStates;
+
+    static ServerSnapshot load(Path homePath, Path workspace, RepositoryIndex appliedIndex, ManagedPathsStore managedPathsStore, SmartPatch smartPatch) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(homePath, "homePath");
+        IllegalArgumentAssertion.assertNotNull(workspace, "workspace");
+        IllegalArgumentAssertion.assertNotNull(appliedIndex, "appliedIndex");
+        IllegalArgumentAssertion.assertNotNull(managedPathsStore, "managedPathsStore");
+        IllegalArgumentAssertion.assertNotNull(smartPatch, "smartPatch");
+
+        // The applied version of the patch, if any
+        List<PatchId> appliedPatches = appliedIndex.queryAvailable(null, true);
+        Patch serverPatch = null;
+        for (PatchId patchId : appliedPatches) {
+            if (patchId.getName().equals(smartPatch.getPatchId().getName())) {
+                serverPatch = MetadataParser.readPatch(workspace, patchId);
+            }
+        }
+
+        // The states of the touched server files and their parent directories
+        PathStates pathStates = PathStates.stat(homePath, ManagedPaths.getAffectedPaths(smartPatch, Action.values()));
+
+        return new ServerSnapshot(appliedPatches, serverPatch, managedPathsStore.read().getManagedPaths(), pathStates);
+    }
+
+    private ServerSnapshot(List<PatchId> appliedPatches, Patch serverPatch, List<ManagedPath> managedPaths, PathStates pathStates) {
+        this.appliedPatches = appliedPatches;
+        this.serverPatch = serverPatch;
+        this.managedPaths = managedPaths;
+        this.pathStates = pathStates;
+    }
+
+    /**
+     * Get the latest applied version of each patch
+     */
+    List<PatchId> getAppliedPatches() {
+        return appliedPatches;
+    }
+
+    /**
+     * Get the applied version of the patch or null
+     */
+    Patch getServerPatch() {
+        return serverPatch;
+    }
+
+    /**
+     * Get a modifiable copy of the managed paths
+     */
+    ManagedPaths getManagedPaths() {
+        return new ManagedPaths(managedPaths);
+    }
+
+    /**
+     * Get the states of the touched server files and their parent directories
+     */
+    PathStates getPathStates() {
+        return pathStates;
+    }
+
+    /**
+     * True if the server file for the given record path exists
+     */
+    boolean exists(Path path) {
+        return pathStates.exists(path);
+    }
+
+    /**
+     * Get the attributes of the server file for the given record path or null if it does not exist
+     */
+    BasicFileAttributes getAttributes(Path path) {
+        return pathStates.getAttributes(path);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
+
+/**
+ * A group of tasks that run on an executor and fail together.
+ *
+ * After the first failure the tasks that did not start yet are skipped.
+ * Submitting blocks while the maximum number of tasks is pending.
+ */
+final class TaskGroup {
+
+    private final ExecutorService executor;
+    private final Semaphore pending;
+    private final AtomicBoolean failed = new AtomicBoolean();
+    private final List<Future<Void>> futures = new ArrayList<>();
+
+    TaskGroup(ExecutorService executor, int maxPending) {
+        IllegalArgumentAssertion.assertNotNull(executor, "executor");
+        IllegalArgumentAssertion.assertTrue(maxPending > 0, "Invalid max pending tasks: " + maxPending);
+        this.executor = executor;
+        this.pending = new Semaphore(maxPending);
+    }
+
+    void submit(final Callable<Void> task) throws IOException {
+        try {
+            pending.acquire();
+        } catch (InterruptedException ex) {
+            failed.set(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while submitting task");
+        }
+        futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    if (!failed.get()) {
+                        task.call();
+                    }
+                    return null;
+                } catch (Exception | Error ex) {
+                    failed.set(true);
+                    throw ex;
+                } finally {
+                    pending.release();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Wait for all tasks and rethrow the first failure
+     */
+    void await() throws IOException {
+        Throwable failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                failed.set(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for tasks");
+            } catch (ExecutionException ex) {
+                if (failure == null) {
+                    failure = ex.getCause();
+                }
+            }
+        }
+        futures.clear();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * Skip the pending tasks and wait for the running tasks to finish
+     */
+    void cancel() {
+        failed.set(true);
+        try {
+            await();
+        } catch (IOException | RuntimeException ex) {
+            // ignore
+        }
+    }
+}
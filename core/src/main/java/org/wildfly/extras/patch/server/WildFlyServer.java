@@ -33,13 +33,14 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wildfly.extras.patch.ManagedPaths;
+import org.wildfly.extras.patch.PatchToolOptions;
 import org.wildfly.extras.patch.SmartPatch;
 import org.wildfly.extras.patch.utils.IllegalStateAssertion;
 
@@ -49,10 +50,14 @@ public final class WildFlyServer extends AbstractServer {
 
     public static final String MODULE_LAYER = "fuse";
 
-    public WildFlyServer(Lock lock, Path homePath) {
+    public WildFlyServer(ReadWriteLock lock, Path homePath) {
         super(lock, assertHomePath(homePath));
     }
 
+    public WildFlyServer(ReadWriteLock lock, Path homePath, PatchToolOptions options) {
+        super(lock, assertHomePath(homePath), options);
+    }
+
     private static Path assertHomePath(Path homePath) {
         if (homePath == null) {
             homePath = getDefaultServerPath();
@@ -0,0 +1,360 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A binary delta between a base file and a target file.
+ *
+ * The delta is a sequence of operations that either copy a range of the base file or insert literal data.
+ * Matching ranges are found with a rolling checksum over fixed size blocks of the base file.
+ * For zip archives the matching ranges can also be derived from the entries that are unchanged between both archives.
+ * The delta carries the length and CRC of both files, so that it can only be applied to the base it was created from.
+ * Both files are read into memory to create the delta, files larger than {@link #MAX_FILE_SIZE} are not supported.
+ */
+public final class BinaryDelta {
+
+    public static final String ENTRY_SUFFIX = ".fpdelta";
+
+    public static final long MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+    static final int MAGIC = 0x46504431;
+    static final int BLOCK_SIZE = 1024;
+
+    static final byte OP_END = 0;
+    static final byte OP_COPY = 1;
+    static final byte OP_DATA = 2;
+
+    // Hide ctor
+    private BinaryDelta() {
+    }
+
+    public static void diff(File baseFile, File targetFile, OutputStream output) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(baseFile, "baseFile");
+        IllegalArgumentAssertion.assertNotNull(targetFile, "targetFile");
+        IllegalArgumentAssertion.assertNotNull(output, "output");
+        ByteBuffer base = readFile(baseFile);
+        ByteBuffer target = readFile(targetFile);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(output));
+        writeHeader(baseFile, targetFile, dos);
+        Map<Integer, Integer> blocks = indexBlocks(base, Collections.singletonList(new int[] { 0, base.limit() }));
+        writeOperations(base, blocks, target, 0, target.limit(), dos);
+        dos.writeByte(OP_END);
+        dos.flush();
+    }
+
+    /**
+     * Create a delta between two zip archives (e.g. jar files) on the entry level.
+     *
+     * Entries that are unchanged in the target archive copy their compressed data from the base archive.
+     * The local headers, changed entries and the central directory of the target are included as literal data.
+     * The resulting delta has the same format as the one created by {@link #diff(File, File, OutputStream)}.
+     *
+     * @throws java.util.zip.ZipException if one of the files cannot be read as a zip archive
+     */
+    public static void diffArchive(File baseFile, File targetFile, OutputStream output) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(baseFile, "baseFile");
+        IllegalArgumentAssertion.assertNotNull(targetFile, "targetFile");
+        IllegalArgumentAssertion.assertNotNull(output, "output");
+        try (RawZipFile baseZip = new RawZipFile(baseFile); RawZipFile targetZip = new RawZipFile(targetFile)) {
+            ByteBuffer base = readFile(baseFile);
+            ByteBuffer target = readFile(targetFile);
+
+            Map<String, RawZipFile.Entry> baseEntries = new HashMap<>();
+            for (RawZipFile.Entry entry : baseZip.getEntries()) {
+                baseEntries.put(entry.getName(), entry);
+            }
+
+            // Process the target entries in the order of their data in the file
+            List<RawZipFile.Entry> targetEntries = new ArrayList<>(targetZip.getEntries());
+            Collections.sort(targetEntries, new Comparator<RawZipFile.Entry>() {
+                @Override
+                public int compare(RawZipFile.Entry e1, RawZipFile.Entry e2) {
+                    return Long.compare(e1.getLocalHeaderOffset(), e2.getLocalHeaderOffset());
+                }
+            });
+
+            // Match the unchanged entries as {pos, from, length}
+            List<int[]> copies = new ArrayList<>();
+            int literal = 0;
+            for (RawZipFile.Entry entry : targetEntries) {
+                RawZipFile.Entry baseEntry = baseEntries.get(entry.getName());
+                int length = (int) entry.getCompressedSize();
+                if (entry.getLocalHeaderOffset() < literal || baseEntry == null || length == 0 || baseEntry.getCrc() != entry.getCrc() || baseEntry.getMethod() != entry.getMethod()
+                        || baseEntry.getCompressedSize() != length || baseEntry.getSize() != entry.getSize()) {
+                    continue;
+                }
+                int from = (int) baseZip.getDataOffset(baseEntry);
+                int pos = (int) targetZip.getDataOffset(entry);
+                if (pos < literal || !matches(base, from, target, pos, length)) {
+                    continue;
+                }
+
+                // Extend the match in both directions, which usually covers the unchanged headers
+                while (pos > literal && from > 0 && base.get(from - 1) == target.get(pos - 1)) {
+                    pos--;
+                    from--;
+                    length++;
+                }
+                length += matchLength(base, from + length, target, pos + length, Math.min(base.limit() - from, target.limit() - pos) - length);
+                copies.add(new int[] { pos, from, length });
+                literal = pos + length;
+            }
+
+            // The ranges in between are matched block wise against the base content that is not copied
+            Map<Integer, Integer> blocks = indexBlocks(base, getUncopiedRanges(copies, base.limit()));
+
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(output));
+            writeHeader(baseFile, targetFile, dos);
+            literal = 0;
+            for (int[] copy : copies) {
+                writeOperations(base, blocks, target, literal, copy[0], dos);
+                dos.writeByte(OP_COPY);
+                dos.writeLong(copy[1]);
+                dos.writeInt(copy[2]);
+                literal = copy[0] + copy[2];
+            }
+            writeOperations(base, blocks, target, literal, target.limit(), dos);
+            dos.writeByte(OP_END);
+            dos.flush();
+        }
+    }
+
+    /**
+     * Apply the delta to the base file and write the result to the target file
+     * @param checksum The expected CRC of the result
+     * @return false if the base file does not match the delta or the result does not match the checksum
+     */
+    public static boolean apply(File baseFile, InputStream delta, File targetFile, long checksum) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(baseFile, "baseFile");
+        IllegalArgumentAssertion.assertNotNull(delta, "delta");
+        IllegalArgumentAssertion.assertNotNull(targetFile, "targetFile");
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(delta));
+        IllegalStateAssertion.assertEquals(MAGIC, dis.readInt(), "Invalid delta");
+        long baseLength = dis.readLong();
+        long baseCrc = dis.readLong();
+        long targetLength = dis.readLong();
+        long targetCrc = dis.readLong();
+        if (!baseFile.isFile() || baseFile.length() != baseLength || IOUtils.getCRC32(baseFile.toPath()) != baseCrc) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        long length = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (RandomAccessFile base = new RandomAccessFile(baseFile, "r"); OutputStream output = new FileOutputStream(targetFile)) {
+            byte op = dis.readByte();
+            while (op != OP_END) {
+                long remaining;
+                if (op == OP_COPY) {
+                    base.seek(dis.readLong());
+                    remaining = dis.readInt();
+                } else {
+                    IllegalStateAssertion.assertEquals(OP_DATA, op, "Invalid delta operation");
+                    remaining = dis.readInt();
+                }
+                while (remaining > 0) {
+                    int len = (int) Math.min(buffer.length, remaining);
+                    if (op == OP_COPY) {
+                        base.readFully(buffer, 0, len);
+                    } else {
+                        dis.readFully(buffer, 0, len);
+                    }
+                    output.write(buffer, 0, len);
+                    crc.update(buffer, 0, len);
+                    remaining -= len;
+                    length += len;
+                }
+                op = dis.readByte();
+            }
+        } catch (EOFException ex) {
+            return false;
+        }
+        return length == targetLength && crc.getValue() == targetCrc && targetCrc == checksum;
+    }
+
+    // Read the whole file into a heap buffer, which unlike a mapping holds no reference to the file
+    private static ByteBuffer readFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            IllegalArgumentAssertion.assertTrue(size <= MAX_FILE_SIZE, "File too large for delta: " + file);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            int read = 0;
+            while (read >= 0 && buffer.hasRemaining()) {
+                read = channel.read(buffer);
+            }
+            IllegalStateAssertion.assertFalse(buffer.hasRemaining(), "Cannot read file: " + file);
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    private static void writeHeader(File baseFile, File targetFile, DataOutputStream dos) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeLong(baseFile.length());
+        dos.writeLong(IOUtils.getCRC32(baseFile.toPath()));
+        dos.writeLong(targetFile.length());
+        dos.writeLong(IOUtils.getCRC32(targetFile.toPath()));
+    }
+
+    // Index the blocks in the given {start, end} ranges of the base file by their rolling checksum
+    private static Map<Integer, Integer> indexBlocks(ByteBuffer base, List<int[]> ranges) {
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int[] range : ranges) {
+            for (int offset = range[0]; offset + BLOCK_SIZE <= range[1]; offset += BLOCK_SIZE) {
+                Integer key = checksum(base, offset);
+                if (!blocks.containsKey(key)) {
+                    blocks.put(key, offset);
+                }
+            }
+        }
+        return blocks;
+    }
+
+    // Get the {start, end} ranges of the base file that are not covered by the given copies
+    private static List<int[]> getUncopiedRanges(List<int[]> copies, int baseLength) {
+        List<int[]> sorted = new ArrayList<>(copies);
+        Collections.sort(sorted, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] c1, int[] c2) {
+                return Integer.compare(c1[1], c2[1]);
+            }
+        });
+        List<int[]> result = new ArrayList<>();
+        int start = 0;
+        for (int[] copy : sorted) {
+            if (copy[1] > start) {
+                result.add(new int[] { start, copy[1] });
+            }
+            start = Math.max(start, copy[1] + copy[2]);
+        }
+        if (start < baseLength) {
+            result.add(new int[] { start, baseLength });
+        }
+        return result;
+    }
+
+    // Write the operations for the given range of the target file
+    private static void writeOperations(ByteBuffer base, Map<Integer, Integer> blocks, ByteBuffer target, int rangeStart, int rangeEnd, DataOutputStream dos) throws IOException {
+        int literal = rangeStart;
+        int pos = rangeStart;
+        int a = 0;
+        int b = 0;
+        boolean valid = false;
+        while (pos + BLOCK_SIZE <= rangeEnd) {
+            if (!valid) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    int val = target.get(pos + i) & 0xFF;
+                    a += val;
+                    b += (BLOCK_SIZE - i) * val;
+                }
+                valid = true;
+            }
+            Integer offset = blocks.get((a & 0xFFFF) | (b << 16));
+            if (offset != null && matches(base, offset, target, pos, BLOCK_SIZE)) {
+
+                // Extend the match in both directions
+                int start = pos;
+                int from = offset;
+                while (start > literal && from > 0 && base.get(from - 1) == target.get(start - 1)) {
+                    start--;
+                    from--;
+                }
+                int end = pos + BLOCK_SIZE;
+                int to = offset + BLOCK_SIZE;
+                end += matchLength(base, to, target, end, Math.min(rangeEnd - end, base.limit() - to));
+                writeData(target, literal, start, dos);
+                dos.writeByte(OP_COPY);
+                dos.writeLong(from);
+                dos.writeInt(end - start);
+                pos = literal = end;
+                valid = false;
+            } else if (pos + BLOCK_SIZE < rangeEnd) {
+                int out = target.get(pos) & 0xFF;
+                int in = target.get(pos + BLOCK_SIZE) & 0xFF;
+                a += in - out;
+                b += a - BLOCK_SIZE * out;
+                pos++;
+            } else {
+                break;
+            }
+        }
+        writeData(target, literal, rangeEnd, dos);
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            int val = buffer.get(offset + i) & 0xFF;
+            a += val;
+            b += (BLOCK_SIZE - i) * val;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    private static boolean matches(ByteBuffer base, int from, ByteBuffer target, int pos, int length) {
+        return matchLength(base, from, target, pos, length) == length;
+    }
+
+    // Get the number of equal bytes at the given positions, comparing eight bytes at a time
+    private static int matchLength(ByteBuffer base, int from, ByteBuffer target, int pos, int maxLength) {
+        int length = 0;
+        while (length + 8 <= maxLength && base.getLong(from + length) == target.getLong(pos + length)) {
+            length += 8;
+        }
+        while (length < maxLength && base.get(from + length) == target.get(pos + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeData(ByteBuffer target, int start, int end, DataOutputStream dos) throws IOException {
+        if (start < end) {
+            dos.writeByte(OP_DATA);
+            dos.writeInt(end - start);
+            for (int i = start; i < end; i++) {
+                dos.write(target.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache of file checksums.
+ *
+ * Each entry is keyed by the file path and validated against the size, modification time and
+ * file key (i.e. the inode) of the file, so that an unchanged file is not read again.
+ * Files that were modified within the timestamp granularity are not cached, because a later
+ * modification may not change their attributes. The cache is read when it is first used
+ * and written atomically on {@link #flush()}. An unreadable cache file is ignored.
+ */
+public final class ChecksumCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChecksumCache.class);
+
+    // Files modified more recently than this are not cached
+    private static final long MODIFIED_GRANULARITY = 2000;
+
+    private final Path cachePath;
+    private Map<String, Entry> entries;
+    private boolean modified;
+
+    /**
+     * @param cachePath The cache file, which is created on flush when it does not exist
+     */
+    public ChecksumCache(Path cachePath) {
+        IllegalArgumentAssertion.assertNotNull(cachePath, "cachePath");
+        this.cachePath = cachePath;
+    }
+
+    /**
+     * Get the CRC32 checksum of the given file, which is only computed when the file has changed
+     */
+    public long getCRC32(Path path) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(path, "path");
+        return getCRC32(path, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    /**
+     * Get the CRC32 checksum of the given file with attributes that were read before
+     */
+    public long getCRC32(Path path, BasicFileAttributes attrs) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(path, "path");
+        IllegalArgumentAssertion.assertNotNull(attrs, "attrs");
+        String key = path.toAbsolutePath().normalize().toString();
+        Entry entry;
+        synchronized (this) {
+            entry = getEntries().get(key);
+        }
+        if (entry != null && entry.matches(attrs)) {
+            return entry.checksum;
+        }
+
+        long now = System.currentTimeMillis();
+        long checksum = IOUtils.getCRC32(path);
+        BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+        entry = new Entry(checksum, attrs);
+        synchronized (this) {
+            if (entry.matches(after) && entry.lastModified < now - MODIFIED_GRANULARITY) {
+                entries.put(key, entry);
+            } else {
+                entries.remove(key);
+            }
+            modified = true;
+        }
+        return checksum;
+    }
+
+    /**
+     * Write the cache file when entries have changed, entries of files that no longer exist are dropped
+     */
+    public synchronized void flush() throws IOException {
+        if (!modified) {
+            return;
+        }
+        cachePath.toAbsolutePath().getParent().toFile().mkdirs();
+        Path tmpPath = Files.createTempFile(cachePath.toAbsolutePath().getParent(), cachePath.getFileName().toString(), ".tmp");
+        try {
+            try (PrintWriter pw = new PrintWriter(tmpPath.toFile())) {
+                for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                    if (new File(mapEntry.getKey()).isFile()) {
+                        pw.println(mapEntry.getValue() + " " + mapEntry.getKey());
+                    }
+                }
+            }
+            IOUtils.moveAtomic(tmpPath, cachePath);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+        modified = false;
+    }
+
+    private synchronized Map<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new HashMap<>();
+            File cacheFile = cachePath.toFile();
+            if (cacheFile.isFile()) {
+                try (BufferedReader br = new BufferedReader(new FileReader(cacheFile))) {
+                    String line = br.readLine();
+                    while (line != null) {
+                        String[] toks = line.split(" ", 5);
+                        if (toks.length == 5) {
+                            Entry entry = new Entry(Long.parseLong(toks[0]), Long.parseLong(toks[1]), Long.parseLong(toks[2]), toks[3]);
+                            entries.put(toks[4], entry);
+                        }
+                        line = br.readLine();
+                    }
+                } catch (IOException | NumberFormatException ex) {
+                    LOG.warn("Cannot read checksum cache: {}", cachePath);
+                    entries.clear();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static final class Entry {
+
+        private final long checksum;
+        private final long size;
+        private final long lastModified;
+        private final String fileKey;
+
+        Entry(long checksum, BasicFileAttributes attrs) {
+            this(checksum, attrs.size(), attrs.lastModifiedTime().toMillis(), getFileKey(attrs));
+        }
+
+        Entry(long checksum, long size, long lastModified, String fileKey) {
+            this.checksum = checksum;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis() && fileKey.equals(getFileKey(attrs));
+        }
+
+        // The file key does not contain spaces, a missing key is written as a dash
+        private static String getFileKey(BasicFileAttributes attrs) {
+            Object fileKey = attrs.fileKey();
+            return fileKey != null ? fileKey.toString().replace(' ', '_') : "-";
+        }
+
+        @Override
+        public String toString() {
+            return checksum + " " + size + " " + lastModified + " " + fileKey;
+        }
+    }
+}
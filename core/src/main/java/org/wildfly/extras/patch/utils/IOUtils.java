@@ -19,19 +19,30 @@
  */
 package org.wildfly.extras.patch.utils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.zip.CRC32;
 
 public class IOUtils {
 
+    // The file content is streamed through a buffer that is reused by each thread
+    private static final ThreadLocal<byte[]> checksumBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
     public static void writeWithFlush(final byte[] content, final OutputStream output) throws IOException {
         IllegalArgumentAssertion.assertNotNull(content, "content");
         IllegalArgumentAssertion.assertNotNull(output, "output");
@@ -94,13 +105,44 @@ public class IOUtils {
         }
     }
 
+    public static void moveAtomic(final Path source, final Path target) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(source, "source");
+        IllegalArgumentAssertion.assertNotNull(target, "target");
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Force the given file or directory to the storage device.
+     * Directories that cannot be opened on this platform are skipped.
+     */
+    public static void sync(Path path) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(path, "path");
+        boolean directory = Files.isDirectory(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            if (!directory) {
+                throw ex;
+            }
+        }
+    }
+
     public static long getCRC32 (Path path) throws IOException {
         IllegalArgumentAssertion.assertNotNull(path, "path");
         IllegalStateAssertion.assertTrue(path.toFile().isFile(), "Invalid file path: " + path);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Files.copy(path, baos);
         CRC32 crc32 = new CRC32();
-        crc32.update(baos.toByteArray());
+        byte[] buffer = checksumBuffer.get();
+        try (InputStream input = Files.newInputStream(path)) {
+            int read = input.read(buffer);
+            while (read > 0) {
+                crc32.update(buffer, 0, read);
+                read = input.read(buffer);
+            }
+        }
         return crc32.getValue();
     }
 }
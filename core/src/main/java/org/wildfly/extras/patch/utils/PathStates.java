@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.utils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The attributes of a set of paths, each of which is read once.
+ *
+ * Large sets are read in parallel. A path that cannot be read does not exist, like with {@link java.io.File#exists()}.
+ * Paths that are not part of the set are read on demand.
+ * A {@code PathStates} is immutable.
+ */
+public final class PathStates {
+
+    // Sets larger than this are read in parallel
+    private static final int PARALLEL_THRESHOLD = 1024;
+
+    private final Path rootPath;
+    private final Map<Path, BasicFileAttributes> attributes;
+
+    /**
+     * Read the attributes of the given paths, which are relative to the root path
+     */
+    public static PathStates stat(final Path rootPath, Collection<Path> paths) {
+        IllegalArgumentAssertion.assertNotNull(rootPath, "rootPath");
+        IllegalArgumentAssertion.assertNotNull(paths, "paths");
+        final List<Path> pathList = new ArrayList<>(paths);
+        final BasicFileAttributes[] attrs = new BasicFileAttributes[pathList.size()];
+        if (pathList.size() <= PARALLEL_THRESHOLD) {
+            for (int i = 0; i < attrs.length; i++) {
+                attrs[i] = readAttributes(rootPath.resolve(pathList.get(i)));
+            }
+        } else {
+            ExecutorService executor = new ForkJoinPool();
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                int chunkSize = Math.max(PARALLEL_THRESHOLD / 4, attrs.length / (4 * Runtime.getRuntime().availableProcessors()));
+                for (int start = 0; start < attrs.length; start += chunkSize) {
+                    final int from = start;
+                    final int to = Math.min(start + chunkSize, attrs.length);
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            for (int i = from; i < to; i++) {
+                                attrs[i] = readAttributes(rootPath.resolve(pathList.get(i)));
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException(ex.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        for (int i = 0; i < attrs.length; i++) {
+            attributes.put(pathList.get(i), attrs[i]);
+        }
+        return new PathStates(rootPath, attributes);
+    }
+
+    private PathStates(Path rootPath, Map<Path, BasicFileAttributes> attributes) {
+        this.rootPath = rootPath;
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * Get the attributes of the given path or null if it does not exist
+     */
+    public BasicFileAttributes getAttributes(Path path) {
+        IllegalArgumentAssertion.assertNotNull(path, "path");
+        if (attributes.containsKey(path)) {
+            return attributes.get(path);
+        }
+        return readAttributes(rootPath.resolve(path));
+    }
+
+    public boolean exists(Path path) {
+        return getAttributes(path) != null;
+    }
+
+    public boolean isFile(Path path) {
+        BasicFileAttributes attrs = getAttributes(path);
+        return attrs != null && attrs.isRegularFile();
+    }
+
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
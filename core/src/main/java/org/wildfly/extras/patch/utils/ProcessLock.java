@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A lock on a file that coordinates access to a directory between processes.
+ *
+ * Readers hold a shared lock and writers an exclusive lock on the file. The lock is only
+ * meant to exclude other processes. Within a process, access is coordinated by other locks,
+ * so that any number of threads share the file lock that is held by the process and
+ * readers in this process never delay writers in this process. The file lock is held
+ * exclusively for as long as any thread of this process holds an exclusive lock, and
+ * it is upgraded in place when a writer arrives while threads of this process hold shared locks.
+ * Other instances for the same file are treated like other processes.
+ * Acquiring the lock fails with an {@link IOException} when it cannot be obtained within the timeout.
+ */
+public final class ProcessLock {
+
+    public static final long DEFAULT_TIMEOUT = 60000;
+
+    private static final long RETRY_INTERVAL = 50;
+
+    // The region that readers and writers lock
+    private static final long LOCK_POSITION = 0;
+    // The region that is held while the lock region is locked or upgraded, so that no other process gets in between
+    private static final long GATE_POSITION = 1;
+
+    private final Path lockPath;
+    private final long timeout;
+    private final ThreadLocal<Deque<Boolean>> threadHolds = new ThreadLocal<Deque<Boolean>>() {
+        @Override
+        protected Deque<Boolean> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    private FileChannel channel;
+    private FileLock fileLock;
+    private int holds;
+    private int writers;
+
+    /**
+     * @param lockPath The lock file, which is created when it does not exist
+     * @param timeout The time in milliseconds to wait for the lock
+     */
+    public ProcessLock(Path lockPath, long timeout) {
+        IllegalArgumentAssertion.assertNotNull(lockPath, "lockPath");
+        IllegalArgumentAssertion.assertTrue(timeout >= 0, "Invalid timeout: " + timeout);
+        this.lockPath = lockPath;
+        this.timeout = timeout;
+    }
+
+    public Path getLockPath() {
+        return lockPath;
+    }
+
+    public synchronized void lockShared() throws IOException {
+        if (fileLock == null) {
+            acquire(true, System.currentTimeMillis() + timeout);
+        }
+        threadHolds.get().push(Boolean.TRUE);
+        holds++;
+    }
+
+    public synchronized void lockExclusive() throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        if (fileLock == null) {
+            acquire(false, deadline);
+        } else if (fileLock.isShared()) {
+            upgrade(deadline);
+        }
+        threadHolds.get().push(Boolean.FALSE);
+        holds++;
+        writers++;
+    }
+
+    public synchronized void unlock() throws IOException {
+        Deque<Boolean> threadHold = threadHolds.get();
+        IllegalStateAssertion.assertFalse(threadHold.isEmpty(), "Lock not held by current thread: " + lockPath);
+        boolean shared = threadHold.pop();
+        if (!shared) {
+            writers--;
+        }
+        if (--holds == 0) {
+            try {
+                fileLock.release();
+                channel.close();
+            } finally {
+                fileLock = null;
+                channel = null;
+            }
+        } else if (writers == 0 && !fileLock.isShared()) {
+            downgrade();
+        }
+    }
+
+    private void acquire(boolean shared, long deadline) throws IOException {
+        lockPath.toFile().getParentFile().mkdirs();
+        FileChannel fc = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = null;
+            while (lock == null) {
+                FileLock gate = tryLock(fc, GATE_POSITION, false);
+                if (gate != null) {
+                    try {
+                        lock = tryLock(fc, LOCK_POSITION, shared);
+                    } finally {
+                        gate.release();
+                    }
+                }
+                if (lock == null) {
+                    // Keep the monitor, so that no other thread of this process locks the file meanwhile
+                    awaitRetry(deadline, shared);
+                }
+            }
+            channel = fc;
+            fileLock = lock;
+        } catch (IOException | RuntimeException ex) {
+            fc.close();
+            throw ex;
+        }
+    }
+
+    private void upgrade(long deadline) throws IOException {
+        FileLock gate = tryLock(channel, GATE_POSITION, false);
+        while (gate == null) {
+            awaitRetry(deadline, false);
+            gate = tryLock(channel, GATE_POSITION, false);
+        }
+        try {
+            // Other processes cannot lock the file while the gate is held, so only their readers need to drain
+            fileLock.release();
+            FileLock lock = tryLock(channel, LOCK_POSITION, false);
+            try {
+                while (lock == null) {
+                    awaitRetry(deadline, false);
+                    lock = tryLock(channel, LOCK_POSITION, false);
+                }
+            } finally {
+                if (lock == null) {
+                    // Keep the shared lock for the readers of this process
+                    fileLock = channel.lock(LOCK_POSITION, 1, true);
+                }
+            }
+            fileLock = lock;
+        } finally {
+            gate.release();
+        }
+    }
+
+    private void downgrade() throws IOException {
+        // Remain exclusive when the gate is busy, the lock is released with the last reader anyway
+        FileLock gate = tryLock(channel, GATE_POSITION, false);
+        if (gate != null) {
+            try {
+                fileLock.release();
+                fileLock = channel.lock(LOCK_POSITION, 1, true);
+            } finally {
+                gate.release();
+            }
+        }
+    }
+
+    private void awaitRetry(long deadline, boolean shared) throws IOException {
+        if (System.currentTimeMillis() >= deadline) {
+            throw new IOException("Cannot obtain " + (shared ? "shared" : "exclusive") + " lock on " + lockPath + " within " + timeout + "ms");
+        }
+        try {
+            Thread.sleep(RETRY_INTERVAL);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for lock on " + lockPath);
+        }
+    }
+
+    private static FileLock tryLock(FileChannel fc, long position, boolean shared) throws IOException {
+        try {
+            return fc.tryLock(position, 1, shared);
+        } catch (OverlappingFileLockException ex) {
+            // Held through another instance in this process
+            return null;
+        }
+    }
+}
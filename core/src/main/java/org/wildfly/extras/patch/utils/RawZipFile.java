@@ -0,0 +1,230 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * A zip file that gives access to the raw (still compressed) entry data.
+ *
+ * Entries are read from the central directory and can be copied verbatim to a {@link RawZipOutput}.
+ * Zip64 archives are not supported and result in a {@link ZipException}.
+ */
+public final class RawZipFile implements Closeable {
+
+    static final int LOCSIG = 0x04034b50;
+    static final int EXTSIG = 0x08074b50;
+    static final int CENSIG = 0x02014b50;
+    static final int ENDSIG = 0x06054b50;
+
+    static final int LOCHDR = 30;
+    static final int CENHDR = 46;
+    static final int ENDHDR = 22;
+
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGICCOUNT = 0xFFFF;
+
+    private final FileChannel channel;
+    private final List<Entry> entries;
+
+    public RawZipFile(File file) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(file, "file");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Copy the local header, the compressed data and the data descriptor of the given entry
+     */
+    public void copyEntry(Entry entry, RawZipOutput output) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(entry, "entry");
+        IllegalArgumentAssertion.assertNotNull(output, "output");
+        long offset = entry.getLocalHeaderOffset();
+        long dataEnd = getDataOffset(entry) + entry.getCompressedSize();
+        long length = dataEnd - offset;
+        if ((entry.getFlags() & 8) != 0) {
+            length += read(dataEnd, 4).getInt(0) == EXTSIG ? 16 : 12;
+        }
+        output.putRawEntry(entry, channel, offset, length);
+    }
+
+    /**
+     * Get the file offset of the compressed data of the given entry
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(entry, "entry");
+        long offset = entry.getLocalHeaderOffset();
+        ByteBuffer header = read(offset, LOCHDR);
+        if (header.getInt(0) != LOCSIG) {
+            throw new ZipException("Invalid local header for: " + entry.getName());
+        }
+        return offset + LOCHDR + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        long size = channel.size();
+        if (size < ENDHDR) {
+            throw new ZipException("Not a zip file");
+        }
+        int length = (int) Math.min(size, ENDHDR + 0xFFFF);
+        long start = size - length;
+        ByteBuffer buffer = read(start, length);
+        int endpos = length - ENDHDR;
+        while (endpos >= 0 && buffer.getInt(endpos) != ENDSIG) {
+            endpos--;
+        }
+        if (endpos < 0) {
+            throw new ZipException("Cannot find end of central directory");
+        }
+        int total = buffer.getShort(endpos + 10) & 0xFFFF;
+        long cenSize = buffer.getInt(endpos + 12) & 0xFFFFFFFFL;
+        long cenOffset = buffer.getInt(endpos + 16) & 0xFFFFFFFFL;
+        if (total == ZIP64_MAGICCOUNT || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+            throw new ZipException("Zip64 not supported");
+        }
+        if (cenOffset + cenSize != start + endpos) {
+            throw new ZipException("Invalid central directory location");
+        }
+
+        List<Entry> result = new ArrayList<>(total);
+        ByteBuffer cen = read(cenOffset, (int) cenSize);
+        int pos = 0;
+        for (int i = 0; i < total; i++) {
+            if (pos + CENHDR > cen.limit() || cen.getInt(pos) != CENSIG) {
+                throw new ZipException("Invalid central directory header");
+            }
+            int hlen = CENHDR + (cen.getShort(pos + 28) & 0xFFFF) + (cen.getShort(pos + 30) & 0xFFFF) + (cen.getShort(pos + 32) & 0xFFFF);
+            if (pos + hlen > cen.limit()) {
+                throw new ZipException("Invalid central directory header");
+            }
+            byte[] header = new byte[hlen];
+            cen.position(pos);
+            cen.get(header);
+            result.add(new Entry(header));
+            pos += hlen;
+        }
+        return result;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static final class Entry {
+
+        private final byte[] header;
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(byte[] header) throws ZipException {
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            this.header = header;
+            this.flags = buffer.getShort(8) & 0xFFFF;
+            this.method = buffer.getShort(10) & 0xFFFF;
+            this.crc = buffer.getInt(16) & 0xFFFFFFFFL;
+            this.compressedSize = buffer.getInt(20) & 0xFFFFFFFFL;
+            this.size = buffer.getInt(24) & 0xFFFFFFFFL;
+            this.localHeaderOffset = buffer.getInt(42) & 0xFFFFFFFFL;
+            this.name = new String(header, CENHDR, buffer.getShort(28) & 0xFFFF, StandardCharsets.UTF_8);
+            if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                throw new ZipException("Zip64 not supported: " + name);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        byte[] getHeader() {
+            return header;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A zip file writer that copies entries verbatim from a {@link RawZipFile}.
+ *
+ * Copied entries are never recompressed. New entries are deflated and followed by a data descriptor.
+ * The central directory is written on close.
+ */
+public final class RawZipOutput implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private int count;
+
+    public RawZipOutput(File file) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(file, "file");
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    void putRawEntry(RawZipFile.Entry entry, FileChannel source, long position, long length) throws IOException {
+        long offset = channel.position();
+        if (offset >= RawZipFile.ZIP64_MAGIC || count == RawZipFile.ZIP64_MAGICCOUNT - 1) {
+            throw new ZipException("Zip64 not supported");
+        }
+        long transferred = 0;
+        while (transferred < length) {
+            long bytes = source.transferTo(position + transferred, length - transferred, channel);
+            if (bytes <= 0) {
+                throw new EOFException("Unexpected end of entry: " + entry.getName());
+            }
+            transferred += bytes;
+        }
+        byte[] header = entry.getHeader().clone();
+        ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) offset);
+        central.write(header);
+        count++;
+    }
+
+    public void putEntry(String name, InputStream input) throws IOException {
+        IllegalArgumentAssertion.assertNotNull(name, "name");
+        IllegalArgumentAssertion.assertNotNull(input, "input");
+        long offset = channel.position();
+        if (offset >= RawZipFile.ZIP64_MAGIC || count == RawZipFile.ZIP64_MAGICCOUNT - 1) {
+            throw new ZipException("Zip64 not supported");
+        }
+        byte[] namebytes = name.getBytes(StandardCharsets.UTF_8);
+        int flags = 0x0808;
+        int dostime = getDosTime(System.currentTimeMillis());
+
+        ByteBuffer header = ByteBuffer.allocate(RawZipFile.LOCHDR + namebytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(RawZipFile.LOCSIG);
+        header.putShort((short) 20);
+        header.putShort((short) flags);
+        header.putShort((short) ZipEntry.DEFLATED);
+        header.putInt(dostime);
+        header.putInt(0);
+        header.putInt(0);
+        header.putInt(0);
+        header.putShort((short) namebytes.length);
+        header.putShort((short) 0);
+        header.put(namebytes);
+        header.flip();
+        write(header);
+
+        // Deflate the entry data
+        CRC32 crc = new CRC32();
+        long size = 0;
+        long csize = 0;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            byte[] inbuf = new byte[64 * 1024];
+            byte[] outbuf = new byte[64 * 1024];
+            int read = input.read(inbuf);
+            while (read >= 0) {
+                if (read > 0) {
+                    crc.update(inbuf, 0, read);
+                    size += read;
+                    deflater.setInput(inbuf, 0, read);
+                    while (!deflater.needsInput()) {
+                        csize += deflate(deflater, outbuf);
+                    }
+                }
+                read = input.read(inbuf);
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                csize += deflate(deflater, outbuf);
+            }
+        } finally {
+            deflater.end();
+        }
+        if (size >= RawZipFile.ZIP64_MAGIC || csize >= RawZipFile.ZIP64_MAGIC) {
+            throw new ZipException("Zip64 not supported");
+        }
+
+        ByteBuffer descriptor = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        descriptor.putInt(RawZipFile.EXTSIG);
+        descriptor.putInt((int) crc.getValue());
+        descriptor.putInt((int) csize);
+        descriptor.putInt((int) size);
+        descriptor.flip();
+        write(descriptor);
+
+        ByteBuffer cen = ByteBuffer.allocate(RawZipFile.CENHDR + namebytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        cen.putInt(RawZipFile.CENSIG);
+        cen.putShort((short) 20);
+        cen.putShort((short) 20);
+        cen.putShort((short) flags);
+        cen.putShort((short) ZipEntry.DEFLATED);
+        cen.putInt(dostime);
+        cen.putInt((int) crc.getValue());
+        cen.putInt((int) csize);
+        cen.putInt((int) size);
+        cen.putShort((short) namebytes.length);
+        cen.putShort((short) 0);
+        cen.putShort((short) 0);
+        cen.putShort((short) 0);
+        cen.putShort((short) 0);
+        cen.putInt(0);
+        cen.putInt((int) offset);
+        cen.put(namebytes);
+        central.write(cen.array());
+        count++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long cenOffset = channel.position();
+            if (cenOffset >= RawZipFile.ZIP64_MAGIC) {
+                throw new ZipException("Zip64 not supported");
+            }
+            ByteBuffer end = ByteBuffer.allocate(RawZipFile.ENDHDR).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(RawZipFile.ENDSIG);
+            end.putShort((short) 0);
+            end.putShort((short) 0);
+            end.putShort((short) count);
+            end.putShort((short) count);
+            end.putInt(central.size());
+            end.putInt((int) cenOffset);
+            end.putShort((short) 0);
+            end.flip();
+            write(ByteBuffer.wrap(central.toByteArray()));
+            write(end);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int deflate(Deflater deflater, byte[] outbuf) throws IOException {
+        int len = deflater.deflate(outbuf);
+        if (len > 0) {
+            write(ByteBuffer.wrap(outbuf, 0, len));
+        }
+        return len;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int getDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16
+                | cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -19,6 +19,7 @@
  */
 package org.wildfly.extras.patch.repository;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.zip.ZipInputStream;
@@ -37,4 +38,8 @@ public final class ParserAccess {
         }
     }
 
+    public static Patch getPatch(File zipFile) throws IOException {
+        PatchId patchId = PatchId.fromURL(zipFile.toURI().toURL());
+        return MetadataParser.buildPatchFromZip(patchId, Record.Action.ADD, zipFile);
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.Server;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class AppliedPatchIndexTest {
+
+    final static Path repoPath = Paths.get("target/repos/AppliedPatchIndexTest/repo");
+    final static Path serverPath = Paths.get("target/servers/AppliedPatchIndexTest/srv1");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(repoPath);
+        repoPath.toFile().mkdirs();
+        IOUtils.rmdirs(serverPath);
+        serverPath.toFile().mkdirs();
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).build();
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo100());
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo110());
+    }
+
+    @Test
+    public void testAppliedIndex() throws Exception {
+
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).serverPath(serverPath).build();
+        Server server = patchTool.getServer();
+        PatchId id100 = PatchId.fromString("foo-1.0.0");
+        PatchId id110 = PatchId.fromString("foo-1.1.0");
+
+        patchTool.install(id100, false);
+        patchTool.update("foo", false);
+        Assert.assertEquals(Arrays.asList(id110, id100), getIndexedPatches());
+        Assert.assertEquals(Collections.singletonList(id110), server.queryAppliedPatches());
+        Assert.assertEquals(id110, server.getPatch("foo").getPatchId());
+
+        // Downgrade removes the higher versions
+        patchTool.install(id100, false);
+        Assert.assertEquals(Collections.singletonList(id100), getIndexedPatches());
+
+        // A missing index is rebuilt from the metadata files
+        Files.delete(getIndexPath());
+        Assert.assertEquals(Collections.singletonList(id100), server.queryAppliedPatches());
+        Assert.assertEquals(Collections.singletonList(id100), getIndexedPatches());
+
+        patchTool.uninstall(id100);
+        Assert.assertTrue(getIndexedPatches().isEmpty());
+        Assert.assertTrue(server.queryAppliedPatches().isEmpty());
+    }
+
+    private static Path getIndexPath() {
+        return serverPath.resolve("fusepatch/workspace/applied-patches.index");
+    }
+
+    private static List<PatchId> getIndexedPatches() throws Exception {
+        List<PatchId> result = new ArrayList<>();
+        for (String line : Files.readAllLines(getIndexPath(), StandardCharsets.UTF_8)) {
+            if (!line.startsWith("#")) {
+                result.add(PatchId.fromString(line.split(" ")[0]));
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
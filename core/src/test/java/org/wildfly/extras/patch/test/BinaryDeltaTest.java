@@ -0,0 +1,279 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.shrinkwrap.api.GenericArchive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.ByteArrayAsset;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.utils.BinaryDelta;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class BinaryDeltaTest {
+
+    final static Path repoPath = Paths.get("target/repos/BinaryDeltaTest/repo");
+    final static Path[] serverPaths = new Path[3];
+    final static Path binPath = Paths.get("lib/bin-data.bin");
+    final static Path jarPath = Paths.get("lib/jar-data.jar");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(repoPath);
+        repoPath.toFile().mkdirs();
+        for (int i = 0; i < serverPaths.length; i++) {
+            serverPaths[i] = Paths.get("target/servers/BinaryDeltaTest/srv" + (i + 1));
+            IOUtils.rmdirs(serverPaths[i]);
+            serverPaths[i].toFile().mkdirs();
+        }
+        PatchTool patchTool = getPatchTool(null);
+        patchTool.getRepository().addArchive(getZipUrlBin100());
+        patchTool.getRepository().addArchive(getZipUrlBin110());
+        patchTool.getRepository().addArchive(getZipUrlJar100());
+        patchTool.getRepository().addArchive(getZipUrlJar110());
+    }
+
+    @Test
+    public void testBinaryDeltaUpdate() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[0]);
+        patchTool.install(PatchId.fromString("bin-1.0.0"), false);
+        Path serverFile = serverPaths[0].resolve(binPath);
+        Assert.assertArrayEquals(getContent(false), Files.readAllBytes(serverFile));
+
+        // Verify that the smart patch carries a delta instead of the full file
+        Patch seedPatch = patchTool.getServer().getPatch(PatchId.fromString("bin-1.0.0"));
+        try (SmartPatch smartPatch = patchTool.getRepository().getSmartPatch(seedPatch, PatchId.fromString("bin-1.1.0"))) {
+            Archives.assertActionPathEquals("UPD lib/bin-data.bin", smartPatch.getRecords().get(0));
+            try (ZipInputStream zip = new ZipInputStream(smartPatch.getDataHandler().getInputStream())) {
+                ZipEntry entry = zip.getNextEntry();
+                Assert.assertEquals(binPath + BinaryDelta.ENTRY_SUFFIX, entry.getName());
+                Assert.assertNull(zip.getNextEntry());
+            }
+        }
+
+        Patch curSet = patchTool.update("bin", false);
+        Assert.assertEquals(PatchId.fromString("bin-1.1.0"), curSet.getPatchId());
+        Assert.assertArrayEquals(getContent(true), Files.readAllBytes(serverFile));
+    }
+
+    @Test
+    public void testDeltaMismatch() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[1]);
+        patchTool.install(PatchId.fromString("bin-1.0.0"), false);
+
+        // Modify the server file, so that the delta cannot be applied
+        Path serverFile = serverPaths[1].resolve(binPath);
+        byte[] bytes = getContent(false);
+        bytes[0] ^= 1;
+        Files.write(serverFile, bytes);
+
+        // The full file is requested when the delta does not match
+        Patch curSet = patchTool.update("bin", false);
+        Assert.assertEquals(PatchId.fromString("bin-1.1.0"), curSet.getPatchId());
+        Assert.assertArrayEquals(getContent(true), Files.readAllBytes(serverFile));
+    }
+
+    @Test
+    public void testJarDeltaUpdate() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[2]);
+        patchTool.install(PatchId.fromString("jar-1.0.0"), false);
+        Path serverFile = serverPaths[2].resolve(jarPath);
+        Assert.assertArrayEquals(getJarContent(false), Files.readAllBytes(serverFile));
+
+        // Verify that the delta only carries the changed jar entry
+        Patch seedPatch = patchTool.getServer().getPatch(PatchId.fromString("jar-1.0.0"));
+        try (SmartPatch smartPatch = patchTool.getRepository().getSmartPatch(seedPatch, PatchId.fromString("jar-1.1.0"))) {
+            Archives.assertActionPathEquals("UPD lib/jar-data.jar", smartPatch.getRecords().get(0));
+            try (ZipInputStream zip = new ZipInputStream(smartPatch.getDataHandler().getInputStream())) {
+                ZipEntry entry = zip.getNextEntry();
+                Assert.assertEquals(jarPath + BinaryDelta.ENTRY_SUFFIX, entry.getName());
+                ByteArrayOutputStream delta = new ByteArrayOutputStream();
+                IOUtils.copy(zip, delta);
+                Assert.assertTrue("Delta too large: " + delta.size(), delta.size() < getJarContent(true).length / 4);
+                Assert.assertNull(zip.getNextEntry());
+            }
+        }
+
+        Patch curSet = patchTool.update("jar", false);
+        Assert.assertEquals(PatchId.fromString("jar-1.1.0"), curSet.getPatchId());
+        Assert.assertArrayEquals(getJarContent(true), Files.readAllBytes(serverFile));
+    }
+
+    @Test
+    public void testDiffReleasesFiles() throws Exception {
+
+        Path basePath = repoPath.getParent().resolve("base.bin");
+        Path targetPath = repoPath.getParent().resolve("target.bin");
+        Files.write(basePath, getContent(false));
+        Files.write(targetPath, getContent(true));
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        BinaryDelta.diff(basePath.toFile(), targetPath.toFile(), delta);
+
+        // The files can be replaced and deleted right away
+        Files.write(targetPath, new byte[0]);
+        Files.delete(targetPath);
+        Assert.assertTrue(BinaryDelta.apply(basePath.toFile(), new ByteArrayInputStream(delta.toByteArray()), targetPath.toFile(), getChecksum(getContent(true))));
+        Assert.assertArrayEquals(getContent(true), Files.readAllBytes(targetPath));
+
+        // Files above the size limit are rejected
+        try (RandomAccessFile raf = new RandomAccessFile(targetPath.toFile(), "rw")) {
+            raf.setLength(BinaryDelta.MAX_FILE_SIZE + 1);
+        }
+        try {
+            BinaryDelta.diff(basePath.toFile(), targetPath.toFile(), new ByteArrayOutputStream());
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        Files.delete(basePath);
+        Files.delete(targetPath);
+    }
+
+    private static long getChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static PatchTool getPatchTool(Path serverPath) throws IOException {
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchToolBuilder builder = new PatchToolBuilder().repositoryURL(repoURL).binaryDeltas(true);
+        if (serverPath != null) {
+            builder.serverPath(serverPath);
+        }
+        return builder.build();
+    }
+
+    private static byte[] getContent(boolean modified) {
+        byte[] bytes = new byte[256 * 1024];
+        new Random(100).nextBytes(bytes);
+        if (modified) {
+            Arrays.fill(bytes, 1000, 1100, (byte) 0);
+            bytes[200000] ^= 1;
+        }
+        return bytes;
+    }
+
+    private static byte[] getJarContent(boolean modified) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            for (int i = 0; i < 8; i++) {
+                byte[] bytes = new byte[16 * 1024];
+                new Random(i).nextBytes(bytes);
+                if (modified && i == 3) {
+                    bytes[100] ^= 1;
+                }
+                ZipEntry entry = new ZipEntry("org/acme/Class" + i + ".class");
+                entry.setTime(0);
+                zos.putNextEntry(entry);
+                zos.write(bytes);
+                zos.closeEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * bin-1.0.0.zip
+     *
+     * lib/bin-data.bin
+     */
+    static URL getZipUrlBin100() throws IOException {
+        File targetFile = Paths.get("target/bin-1.0.0.zip").toFile();
+        if (!targetFile.exists()) {
+            GenericArchive archive = ShrinkWrap.create(GenericArchive.class);
+            archive.add(new ByteArrayAsset(getContent(false)), binPath.toString());
+            archive.as(ZipExporter.class).exportTo(targetFile, true);
+        }
+        return targetFile.toURI().toURL();
+    }
+
+    /**
+     * bin-1.1.0.zip
+     *
+     * lib/bin-data.bin
+     */
+    static URL getZipUrlBin110() throws IOException {
+        File targetFile = Paths.get("target/bin-1.1.0.zip").toFile();
+        if (!targetFile.exists()) {
+            GenericArchive archive = ShrinkWrap.create(GenericArchive.class);
+            archive.add(new ByteArrayAsset(getContent(true)), binPath.toString());
+            archive.as(ZipExporter.class).exportTo(targetFile, true);
+        }
+        return targetFile.toURI().toURL();
+    }
+
+    /**
+     * jar-1.0.0.zip
+     *
+     * lib/jar-data.jar
+     */
+    static URL getZipUrlJar100() throws IOException {
+        File targetFile = Paths.get("target/jar-1.0.0.zip").toFile();
+        if (!targetFile.exists()) {
+            GenericArchive archive = ShrinkWrap.create(GenericArchive.class);
+            archive.add(new ByteArrayAsset(getJarContent(false)), jarPath.toString());
+            archive.as(ZipExporter.class).exportTo(targetFile, true);
+        }
+        return targetFile.toURI().toURL();
+    }
+
+    /**
+     * jar-1.1.0.zip
+     *
+     * lib/jar-data.jar
+     */
+    static URL getZipUrlJar110() throws IOException {
+        File targetFile = Paths.get("target/jar-1.1.0.zip").toFile();
+        if (!targetFile.exists()) {
+            GenericArchive archive = ShrinkWrap.create(GenericArchive.class);
+            archive.add(new ByteArrayAsset(getJarContent(true)), jarPath.toString());
+            archive.as(ZipExporter.class).exportTo(targetFile, true);
+        }
+        return targetFile.toURI().toURL();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.utils.ChecksumCache;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class ChecksumCacheTest {
+
+    final static Path workPath = Paths.get("target/ChecksumCacheTest");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(workPath);
+        workPath.toFile().mkdirs();
+    }
+
+    @Test
+    public void testUnchangedFileNotRead() throws Exception {
+
+        File file = workPath.resolve("unchanged.txt").toFile();
+        writeFile(file, "aaaa");
+        long lastModified = System.currentTimeMillis() - 10000;
+        file.setLastModified(lastModified);
+        long checksum = IOUtils.getCRC32(file.toPath());
+
+        Path cachePath = workPath.resolve("unchanged.cache");
+        ChecksumCache cache = new ChecksumCache(cachePath);
+        Assert.assertEquals(checksum, cache.getCRC32(file.toPath()));
+        cache.flush();
+        Assert.assertTrue(cachePath.toFile().isFile());
+
+        // Content that changes without changing the file attributes is not read again
+        writeFile(file, "bbbb");
+        file.setLastModified(lastModified);
+        cache = new ChecksumCache(cachePath);
+        Assert.assertEquals(checksum, cache.getCRC32(file.toPath()));
+
+        // A changed size invalidates the entry
+        writeFile(file, "bbbbb");
+        file.setLastModified(lastModified);
+        Assert.assertEquals(IOUtils.getCRC32(file.toPath()), cache.getCRC32(file.toPath()));
+    }
+
+    @Test
+    public void testRecentlyModifiedFileNotCached() throws Exception {
+
+        File file = workPath.resolve("recent.txt").toFile();
+        writeFile(file, "aaaa");
+        long checksum = IOUtils.getCRC32(file.toPath());
+
+        Path cachePath = workPath.resolve("recent.cache");
+        ChecksumCache cache = new ChecksumCache(cachePath);
+        Assert.assertEquals(checksum, cache.getCRC32(file.toPath()));
+        cache.flush();
+
+        long lastModified = file.lastModified();
+        writeFile(file, "bbbb");
+        file.setLastModified(lastModified);
+        cache = new ChecksumCache(cachePath);
+        Assert.assertEquals(IOUtils.getCRC32(file.toPath()), cache.getCRC32(file.toPath()));
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(content.getBytes());
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.Repository;
+import org.wildfly.extras.patch.internal.DefaultPatchTool;
+import org.wildfly.extras.patch.internal.PathIndex;
+import org.wildfly.extras.patch.repository.LocalFileRepository;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.ProcessLock;
+
+public class ConcurrentAccessTest {
+
+    final static Path[] repoPaths = new Path[5];
+    final static Path serverPath = Paths.get("target/servers/ConcurrentAccessTest/srv1");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        for (int i = 0; i < repoPaths.length; i++) {
+            repoPaths[i] = Paths.get("target/repos/ConcurrentAccessTest/repo" + (i + 1));
+            IOUtils.rmdirs(repoPaths[i]);
+            repoPaths[i].toFile().mkdirs();
+        }
+        IOUtils.rmdirs(serverPath);
+        serverPath.toFile().mkdirs();
+    }
+
+    @Test
+    public void testReadWriteLock() throws Exception {
+
+        URL repoURL = repoPaths[0].toFile().toURI().toURL();
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        PatchTool patchTool = new PatchToolBuilder().customLock(lock).repositoryURL(repoURL).build();
+        final Repository repo = patchTool.getRepository();
+        repo.addArchive(Archives.getZipUrlFoo100());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Queries and additions proceed while another reader holds the lock
+            lock.readLock().lock();
+            try {
+                Future<List<PatchId>> queryFuture = executor.submit(new Callable<List<PatchId>>() {
+                    @Override
+                    public List<PatchId> call() throws Exception {
+                        return repo.queryAvailable(null);
+                    }
+                });
+                Assert.assertEquals(1, queryFuture.get(10, TimeUnit.SECONDS).size());
+
+                Future<PatchId> addFuture = executor.submit(new Callable<PatchId>() {
+                    @Override
+                    public PatchId call() throws Exception {
+                        return repo.addArchive(Archives.getZipUrlFoo110());
+                    }
+                });
+                Assert.assertEquals(PatchId.fromString("foo-1.1.0"), addFuture.get(10, TimeUnit.SECONDS));
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // Queries wait for the writer
+            Future<List<PatchId>> queryFuture;
+            lock.writeLock().lock();
+            try {
+                queryFuture = executor.submit(new Callable<List<PatchId>>() {
+                    @Override
+                    public List<PatchId> call() throws Exception {
+                        return repo.queryAvailable(null);
+                    }
+                });
+                try {
+                    queryFuture.get(200, TimeUnit.MILLISECONDS);
+                    Assert.fail("TimeoutException expected");
+                } catch (TimeoutException ex) {
+                    // expected
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            Assert.assertEquals(2, queryFuture.get(10, TimeUnit.SECONDS).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+
+        URL repoURL = repoPaths[1].toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).build();
+        final Repository repo = patchTool.getRepository();
+
+        // Archives with different names are added concurrently
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<PatchId>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final URL url = getZipUrl("concurrent" + i + "-1.0.0");
+                futures.add(executor.submit(new Callable<PatchId>() {
+                    @Override
+                    public PatchId call() throws Exception {
+                        return repo.addArchive(url);
+                    }
+                }));
+            }
+            for (Future<PatchId> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // No index update got lost
+        Assert.assertEquals(8, repo.queryAvailable(null).size());
+        Assert.assertEquals(8, PathIndex.read(repoPaths[1]).getOwners().size());
+    }
+
+    @Test
+    public void testProcessLock() throws Exception {
+
+        URL repoURL = repoPaths[2].toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).lockTimeout(200).build();
+        Repository repo = patchTool.getRepository();
+        repo.addArchive(Archives.getZipUrlFoo100());
+
+        Path lockPath = repoPaths[2].resolve(LocalFileRepository.LOCK_FILE);
+        Assert.assertTrue(lockPath.toFile().isFile());
+
+        // Another lock on the same file stands in for another process
+        ProcessLock otherLock = new ProcessLock(lockPath, 0);
+        otherLock.lockExclusive();
+        try {
+            repo.queryAvailable(null);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+        } finally {
+            otherLock.unlock();
+        }
+
+        Assert.assertEquals(1, repo.queryAvailable(null).size());
+    }
+
+    @Test
+    public void testInstallWithSlowFetch() throws Exception {
+
+        URL repoURL = repoPaths[4].toFile().toURI().toURL();
+        // A fair lock lets the waiting install apply first
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+        final PatchTool patchTool = new PatchToolBuilder().customLock(lock).repositoryURL(repoURL).serverPath(serverPath).build();
+        final Repository repo = patchTool.getRepository();
+        repo.addArchive(Archives.getZipUrlFoo100());
+        repo.addArchive(Archives.getZipUrlFoo110());
+
+        // A repository that blocks the first fetch of a smart patch
+        final CountDownLatch fetching = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger fetchCount = new AtomicInteger();
+        Repository slowRepo = (Repository) Proxy.newProxyInstance(Repository.class.getClassLoader(), new Class<?>[] { Repository.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getSmartPatch") && fetchCount.incrementAndGet() == 1) {
+                    fetching.countDown();
+                    proceed.await(10, TimeUnit.SECONDS);
+                }
+                try {
+                    return method.invoke(repo, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        });
+        final PatchTool slowTool = new DefaultPatchTool(lock, patchTool.getServer(), slowRepo);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Patch> slowFuture = executor.submit(new Callable<Patch>() {
+                @Override
+                public Patch call() throws Exception {
+                    return slowTool.install(PatchId.fromString("foo-1.1.0"), false);
+                }
+            });
+            Assert.assertTrue(fetching.await(10, TimeUnit.SECONDS));
+
+            // The server can be queried while the smart patch is fetched
+            Assert.assertTrue(patchTool.getServer().queryAppliedPatches().isEmpty());
+
+            // Another install fetches its smart patch and waits to apply it
+            Future<Patch> future = executor.submit(new Callable<Patch>() {
+                @Override
+                public Patch call() throws Exception {
+                    return patchTool.install(PatchId.fromString("foo-1.0.0"), false);
+                }
+            });
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!lock.hasQueuedThreads() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("Install waits for the write lock", lock.hasQueuedThreads());
+            proceed.countDown();
+            Assert.assertEquals(PatchId.fromString("foo-1.0.0"), future.get(10, TimeUnit.SECONDS).getPatchId());
+
+            // The smart patch is fetched again for the changed seed
+            Assert.assertEquals(PatchId.fromString("foo-1.1.0"), slowFuture.get(10, TimeUnit.SECONDS).getPatchId());
+            Assert.assertEquals(2, fetchCount.get());
+            Assert.assertEquals(Arrays.asList(PatchId.fromString("foo-1.1.0")), patchTool.getServer().queryAppliedPatches());
+        } finally {
+            proceed.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testProcessLockWithLongReader() throws Exception {
+
+        Path lockPath = repoPaths[2].resolve("reader.lock");
+        final ProcessLock processLock = new ProcessLock(lockPath, 200);
+        final CountDownLatch readerLocked = new CountDownLatch(1);
+        final CountDownLatch readerDone = new CountDownLatch(1);
+
+        // A long running reader, like a smart patch that is being streamed
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Void> readerFuture = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    processLock.lockShared();
+                    try {
+                        readerLocked.countDown();
+                        readerDone.await(10, TimeUnit.SECONDS);
+                    } finally {
+                        processLock.unlock();
+                    }
+                    return null;
+                }
+            });
+            Assert.assertTrue(readerLocked.await(10, TimeUnit.SECONDS));
+
+            // A writer in the same process does not wait for the reader
+            ProcessLock otherLock = new ProcessLock(lockPath, 0);
+            processLock.lockExclusive();
+            try {
+                // Other readers in the same process do not wait for the writer
+                Future<Void> queryFuture = executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        processLock.lockShared();
+                        processLock.unlock();
+                        return null;
+                    }
+                });
+                queryFuture.get(10, TimeUnit.SECONDS);
+
+                // Other processes are excluded while the writer holds the lock
+                try {
+                    otherLock.lockShared();
+                    Assert.fail("IOException expected");
+                } catch (IOException ex) {
+                    // expected
+                }
+            } finally {
+                processLock.unlock();
+            }
+
+            // Writers of other processes still wait for the reader
+            try {
+                otherLock.lockExclusive();
+                Assert.fail("IOException expected");
+            } catch (IOException ex) {
+                // expected
+            }
+
+            readerDone.countDown();
+            readerFuture.get(10, TimeUnit.SECONDS);
+
+            otherLock.lockExclusive();
+            otherLock.unlock();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAddWithLongReader() throws Exception {
+
+        URL repoURL = repoPaths[3].toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).lockTimeout(1000).build();
+        final Repository repo = patchTool.getRepository();
+        repo.addArchive(Archives.getZipUrlFoo100());
+
+        // Archives with a different name are added while smart patches are being generated
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final AtomicBoolean done = new AtomicBoolean();
+            Future<Integer> readerFuture = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int count = 0;
+                    do {
+                        repo.getSmartPatch(null, PatchId.fromString("foo-1.0.0")).close();
+                        count++;
+                    } while (!done.get());
+                    return count;
+                }
+            });
+            for (int i = 0; i < 8; i++) {
+                repo.addArchive(getZipUrl("bar" + i + "-1.0.0"));
+            }
+            done.set(true);
+            Assert.assertTrue(readerFuture.get(10, TimeUnit.SECONDS) > 0);
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(9, repo.queryAvailable(null).size());
+    }
+
+    private static URL getZipUrl(String patchId) throws IOException {
+        File targetFile = Paths.get("target/" + patchId + ".zip").toFile();
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(targetFile))) {
+            zos.putNextEntry(new ZipEntry("lib/" + patchId + ".jar"));
+            zos.write(patchId.getBytes());
+        }
+        return targetFile.toURI().toURL();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchMetadata;
+import org.wildfly.extras.patch.PatchMetadataBuilder;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.Record;
+import org.wildfly.extras.patch.Record.Action;
+import org.wildfly.extras.patch.Server;
+import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class ExtractContentTest {
+
+    final static Path repoPath = Paths.get("target/repos/ExtractContentTest/repo");
+    final static Path workPath = Paths.get("target/repos/ExtractContentTest/work");
+    final static Path serversPath = Paths.get("target/servers/ExtractContentTest");
+    final static Path[] serverPaths = new Path[3];
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(serversPath);
+        IOUtils.rmdirs(repoPath);
+        repoPath.toFile().mkdirs();
+        IOUtils.rmdirs(workPath);
+        workPath.toFile().mkdirs();
+        for (int i = 0; i < serverPaths.length; i++) {
+            serverPaths[i] = serversPath.resolve("srv" + (i + 1));
+            serverPaths[i].toFile().mkdirs();
+        }
+    }
+
+    @Test
+    public void testEntryOutsideServer() throws Exception {
+
+        Server server = getPatchTool(serverPaths[0], 2).getServer();
+
+        // An entry without a record is ignored, a record cannot point outside of the server
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        content.put("config/valid.properties", "a=1".getBytes());
+        content.put("../stray.txt", "stray".getBytes());
+        File zipFile = writeZip("slip-1.0.0.zip", content);
+        Patch patch = createPatch(PatchId.fromString("slip-1.0.0"), content, "config/valid.properties");
+        try (SmartPatch smartPatch = SmartPatch.forInstall(patch, new DataHandler(new FileDataSource(zipFile)))) {
+            server.applySmartPatch(smartPatch, false);
+        }
+        Assert.assertTrue(serverPaths[0].resolve("config/valid.properties").toFile().exists());
+        Assert.assertFalse(serverPaths[0].resolve("../stray.txt").toFile().exists());
+
+        content.put("../escape.txt", "escape".getBytes());
+        zipFile = writeZip("slip-1.1.0.zip", content);
+        patch = createPatch(PatchId.fromString("slip-1.1.0"), content, "config/valid.properties", "../escape.txt");
+        try (SmartPatch smartPatch = SmartPatch.forInstall(patch, new DataHandler(new FileDataSource(zipFile)))) {
+            server.applySmartPatch(smartPatch, false);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            String message = ex.getMessage();
+            Assert.assertTrue(message, message.contains("Invalid entry path: ../escape.txt"));
+        }
+        Assert.assertFalse(serverPaths[0].resolve("../escape.txt").toFile().exists());
+    }
+
+    @Test
+    public void testLargeEntry() throws Exception {
+
+        Server server = getPatchTool(serverPaths[1], 2).getServer();
+
+        // Random content does not compress, the entry stays larger than the channel chunk
+        byte[] bytes = new byte[3 * 1024 * 1024 + 17];
+        new Random(11).nextBytes(bytes);
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        content.put("lib/large.jar", bytes);
+        content.put("lib/small.jar", "small".getBytes());
+        File zipFile = writeZip("large-1.0.0.zip", content);
+        Patch patch = createPatch(PatchId.fromString("large-1.0.0"), content, "lib/large.jar", "lib/small.jar");
+        try (SmartPatch smartPatch = SmartPatch.forInstall(patch, new DataHandler(new FileDataSource(zipFile)))) {
+            server.applySmartPatch(smartPatch, false);
+        }
+        assertContent(serverPaths[1], content);
+    }
+
+    @Test
+    public void testParallelExtract() throws Exception {
+
+        Server server = getPatchTool(serverPaths[2], 4).getServer();
+
+        // Many entries in a few directories, extracted by several threads
+        Random random = new Random(17);
+        Map<String, byte[]> content = new LinkedHashMap<>();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            byte[] bytes = new byte[random.nextInt(64 * 1024)];
+            random.nextBytes(bytes);
+            String path = "modules/dir" + (i % 8) + "/sub" + (i % 3) + "/file" + i + ".jar";
+            content.put(path, bytes);
+            paths.add(path);
+        }
+        content.put("bin/run.sh", "#!/bin/sh".getBytes());
+        paths.add("bin/run.sh");
+        File zipFile = writeZip("parallel-1.0.0.zip", content);
+        Patch patch = createPatch(PatchId.fromString("parallel-1.0.0"), content, paths.toArray(new String[paths.size()]));
+        try (SmartPatch smartPatch = SmartPatch.forInstall(patch, new DataHandler(new FileDataSource(zipFile)))) {
+            server.applySmartPatch(smartPatch, false);
+        }
+        assertContent(serverPaths[2], content);
+        Assert.assertTrue(serverPaths[2].resolve("bin/run.sh").toFile().canExecute());
+    }
+
+    private static Patch createPatch(PatchId patchId, Map<String, byte[]> content, String... paths) {
+        PatchMetadata metadata = new PatchMetadataBuilder().patchId(patchId).build();
+        List<Record> records = new ArrayList<>();
+        for (String path : paths) {
+            CRC32 crc = new CRC32();
+            crc.update(content.get(path));
+            records.add(Record.create(patchId, Action.ADD, Paths.get(path), crc.getValue()));
+        }
+        return Patch.create(metadata, records);
+    }
+
+    private static File writeZip(String name, Map<String, byte[]> content) throws IOException {
+        File zipFile = workPath.resolve(name).toFile();
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                zos.putNextEntry(new ZipEntry(entry.getKey()));
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        }
+        return zipFile;
+    }
+
+    private static void assertContent(Path serverPath, Map<String, byte[]> content) throws IOException {
+        for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+            Path path = serverPath.resolve(entry.getKey());
+            Assert.assertArrayEquals(entry.getKey(), entry.getValue(), Files.readAllBytes(path));
+        }
+    }
+
+    private static PatchTool getPatchTool(Path serverPath, int extractThreads) throws IOException {
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        return new PatchToolBuilder().repositoryURL(repoURL).serverPath(serverPath).extractThreads(extractThreads).build();
+    }
+}
@@ -20,27 +20,44 @@
 package org.wildfly.extras.patch.test;
 
 import java.io.File;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipInputStream;
+
+import javax.activation.DataHandler;
+import javax.activation.URLDataSource;
 
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.wildfly.extras.patch.Patch;
 import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchMetadata;
+import org.wildfly.extras.patch.PatchMetadataBuilder;
 import org.wildfly.extras.patch.PatchTool;
 import org.wildfly.extras.patch.PatchToolBuilder;
 import org.wildfly.extras.patch.Repository;
+import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.internal.PathIndex;
+import org.wildfly.extras.patch.internal.RepositoryIndex;
+import org.wildfly.extras.patch.repository.LocalFileRepository;
 import org.wildfly.extras.patch.utils.IOUtils;
 
 public class LocalRepositoryTest extends AbstractRepositoryTest {
 
+    static final long CACHE_SIZE = 256L * 1024 * 1024;
+
     @BeforeClass
     public static void setUp() throws Exception {
-        repoURL = new URL[6];
+        repoURL = new URL[12];
         for (int i = 0; i < repoURL.length; i++) {
             Path path = Paths.get("target/repos/LocalRepositoryTest/repo" + (i + 1));
             repoURL[i] = path.toFile().toURI().toURL();
@@ -93,4 +110,217 @@ public class LocalRepositoryTest extends AbstractRepositoryTest {
         // Verify that the file got removed
         Assert.assertFalse("File got removed", targetFile.exists());
     }
+
+    @Test
+    public void testRebuildIndex() throws Exception {
+
+        PatchTool patchTool = getPatchTool(repoURL[6]);
+        LocalFileRepository repo = (LocalFileRepository) patchTool.getRepository();
+        Path rootPath = new File(repoURL[6].toURI()).toPath();
+
+        repo.addArchive(Archives.getZipUrlFoo100());
+        repo.addArchive(Archives.getZipUrlFoo110());
+        Path indexPath = rootPath.resolve(RepositoryIndex.INDEX_FILE);
+        Assert.assertTrue("Index exists", indexPath.toFile().isFile());
+
+        RepositoryIndex.Entry entry = RepositoryIndex.read(rootPath).getEntry(PatchId.fromString("foo-1.0.0"));
+        Assert.assertEquals(4, entry.getRecordCount());
+
+        // Index gets recreated when missing
+        Files.delete(indexPath);
+        Assert.assertEquals(2, repo.queryAvailable(null).size());
+        Assert.assertTrue("Index exists", indexPath.toFile().isFile());
+
+        // Index gets rebuilt when it does not match its trailer
+        List<String> lines = new ArrayList<>(Files.readAllLines(indexPath, StandardCharsets.UTF_8));
+        Assert.assertTrue(lines.remove(lines.size() - 2).startsWith("foo-1.1.0"));
+        Files.write(indexPath, lines, StandardCharsets.UTF_8);
+        Assert.assertEquals(2, repo.queryAvailable(null).size());
+        Assert.assertEquals(lines.size() + 1, Files.readAllLines(indexPath, StandardCharsets.UTF_8).size());
+
+        // Index drifts when content is removed behind its back
+        IOUtils.rmdirs(rootPath.resolve(Paths.get("foo", "1.1.0")));
+        Assert.assertEquals(2, repo.queryAvailable(null).size());
+
+        Assert.assertEquals(1, repo.rebuildIndex().size());
+        Assert.assertEquals(PatchId.fromString("foo-1.0.0"), repo.getLatestAvailable("foo"));
+    }
+
+    @Test
+    public void testPathIndex() throws Exception {
+
+        PatchTool patchTool = getPatchTool(repoURL[9]);
+        Repository repo = patchTool.getRepository();
+        Path rootPath = new File(repoURL[9].toURI()).toPath();
+        Path propsPath = Paths.get("config/propsA.properties");
+        Path removePath = Paths.get("config/remove-me.properties");
+
+        // The latest version owns the paths
+        repo.addArchive(Archives.getZipUrlFoo100());
+        repo.addArchive(Archives.getZipUrlFoo110());
+        PathIndex index = PathIndex.read(rootPath);
+        Assert.assertEquals(PatchId.fromString("foo-1.1.0"), index.getOwner(propsPath).getPatchId());
+        Assert.assertNull(index.getOwner(removePath));
+
+        // Ownership falls back to the previous version on remove
+        repo.removeArchive(PatchId.fromString("foo-1.1.0"));
+        index = PathIndex.read(rootPath);
+        Assert.assertEquals(PatchId.fromString("foo-1.0.0"), index.getOwner(propsPath).getPatchId());
+        Assert.assertEquals(PatchId.fromString("foo-1.0.0"), index.getOwner(removePath).getPatchId());
+
+        // Index gets recreated when missing
+        Path indexPath = rootPath.resolve(PathIndex.INDEX_FILE);
+        Files.delete(indexPath);
+        index = PathIndex.read(rootPath);
+        Assert.assertTrue("Index exists", indexPath.toFile().isFile());
+        Assert.assertEquals(4, index.getOwners().size());
+    }
+
+    @Test
+    public void testSmartPatchCache() throws Exception {
+
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL[7]).smartPatchCacheSize(CACHE_SIZE).build();
+        Repository repo = patchTool.getRepository();
+        Path cachePath = new File(repoURL[7].toURI()).toPath().resolve(LocalFileRepository.CACHE_DIR);
+
+        repo.addArchive(Archives.getZipUrlFoo100());
+        repo.addArchive(Archives.getZipUrlFoo110());
+        Patch seedPatch = repo.getPatch(PatchId.fromString("foo-1.0.0"));
+        PatchId targetId = PatchId.fromString("foo-1.1.0");
+
+        // Repeated requests are served from the same cached archive
+        File versionDir = cachePath.resolve(Paths.get("foo", "1.1.0")).toFile();
+        try (SmartPatch smartPatch = repo.getSmartPatch(seedPatch, targetId)) {
+            Assert.assertEquals(4, smartPatch.getRecords().size());
+        }
+        List<String> cachedFiles = Arrays.asList(versionDir.list());
+        Assert.assertEquals(2, cachedFiles.size());
+        try (SmartPatch smartPatch = repo.getSmartPatch(seedPatch, targetId)) {
+            Assert.assertEquals(Patch.smartDelta(seedPatch, repo.getPatch(targetId)).getRecords(), smartPatch.getRecords());
+            Archives.assertActionPathEquals("UPD config/propsA.properties", smartPatch.getRecords().get(0));
+        }
+        Assert.assertEquals(cachedFiles, Arrays.asList(versionDir.list()));
+
+        // Closed smart patches release their handles
+        Assert.assertEquals(0, cachePath.resolve(".handles").toFile().list().length);
+
+        // Loading the cache keeps recent temporary files of other writers and deletes stale ones
+        File recentFile = new File(versionDir, "recent.zip.tmp");
+        File staleFile = new File(versionDir, "stale.zip.tmp");
+        Assert.assertTrue(recentFile.createNewFile());
+        Assert.assertTrue(staleFile.createNewFile());
+        Assert.assertTrue(staleFile.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+        repo = new PatchToolBuilder().repositoryURL(repoURL[7]).smartPatchCacheSize(CACHE_SIZE).build().getRepository();
+        Assert.assertTrue("Recent file kept", recentFile.exists());
+        Assert.assertFalse("Stale file deleted", staleFile.exists());
+        Assert.assertTrue(recentFile.delete());
+
+        // Removing an archive invalidates the cached entries for that name
+        repo.removeArchive(targetId);
+        Assert.assertFalse("Cache invalidated", cachePath.resolve("foo").toFile().exists());
+    }
+
+    @Test
+    public void testSmartPatchReadAfterEviction() throws Exception {
+
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL[10]).smartPatchCacheSize(CACHE_SIZE).build();
+        Repository repo = patchTool.getRepository();
+        Path cachePath = new File(repoURL[10].toURI()).toPath().resolve(LocalFileRepository.CACHE_DIR);
+
+        repo.addArchive(Archives.getZipUrlFoo100());
+        repo.addArchive(Archives.getZipUrlFoo110());
+        Patch seedPatch = repo.getPatch(PatchId.fromString("foo-1.0.0"));
+        PatchId targetId = PatchId.fromString("foo-1.1.0");
+
+        // Cache the full archive and measure its entry
+        repo.getSmartPatch(null, targetId).close();
+        File versionDir = cachePath.resolve(Paths.get("foo", "1.1.0")).toFile();
+        long entrySize = 0;
+        for (File file : versionDir.listFiles()) {
+            entrySize += file.length();
+        }
+
+        // The smaller delta evicts the full archive from a cache that fits one entry
+        patchTool = new PatchToolBuilder().repositoryURL(repoURL[10]).smartPatchCacheSize(entrySize).build();
+        repo = patchTool.getRepository();
+        try (SmartPatch fullPatch = repo.getSmartPatch(null, targetId)) {
+            try (SmartPatch deltaPatch = repo.getSmartPatch(seedPatch, targetId)) {
+                Assert.assertEquals(2, versionDir.list().length);
+                Assert.assertEquals(3, countEntries(fullPatch));
+
+                // Invalidate the delta while it is unread
+                repo.removeArchive(targetId);
+                Assert.assertFalse("Cache invalidated", versionDir.exists());
+                Assert.assertEquals(4, deltaPatch.getRecords().size());
+                Assert.assertEquals(2, countEntries(deltaPatch));
+            }
+        }
+        Assert.assertEquals(0, cachePath.resolve(".handles").toFile().list().length);
+    }
+
+    @Test
+    public void testPrecomputeDeltasWithPrefixName() throws Exception {
+
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL[11]).smartPatchCacheSize(0).precomputeDeltas(true).build();
+        Repository repo = patchTool.getRepository();
+
+        // The name foo is a prefix of foo-cdi, which has the higher version
+        repo.addArchive(Archives.getZipUrlFoo100());
+        PatchMetadata metadata = new PatchMetadataBuilder().patchId(PatchId.fromString("foo-cdi-2.0.0")).build();
+        repo.addArchive(metadata, new DataHandler(new URLDataSource(Archives.getZipUrlBar100())), false);
+        Assert.assertEquals(PatchId.fromString("foo-cdi-2.0.0"), repo.getLatestAvailable("foo"));
+
+        // The delta is precomputed from the previous version of foo
+        repo.addArchive(Archives.getZipUrlFoo110());
+        Patch seedPatch = repo.getPatch(PatchId.fromString("foo-1.0.0"));
+        try (SmartPatch smartPatch = repo.getSmartPatch(seedPatch, PatchId.fromString("foo-1.1.0"))) {
+            String name = smartPatch.getDataHandler().getDataSource().getName();
+            Assert.assertTrue("Precomputed: " + name, name.startsWith("smart-handle"));
+            Assert.assertEquals(4, smartPatch.getRecords().size());
+        }
+    }
+
+    private int countEntries(SmartPatch smartPatch) throws Exception {
+        int count = 0;
+        try (InputStream input = smartPatch.getDataHandler().getInputStream(); ZipInputStream zip = new ZipInputStream(input)) {
+            while (zip.getNextEntry() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testPrecomputeDeltas() throws Exception {
+
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL[8]).smartPatchCacheSize(0).precomputeDeltas(true).build();
+        Repository repo = patchTool.getRepository();
+        Path rootPath = new File(repoURL[8].toURI()).toPath();
+
+        repo.addArchive(Archives.getZipUrlFoo100());
+        repo.addArchive(Archives.getZipUrlFoo110());
+        Patch seedPatch = repo.getPatch(PatchId.fromString("foo-1.0.0"));
+        PatchId targetId = PatchId.fromString("foo-1.1.0");
+
+        // A seed that matches the previous version is served from the precomputed archive
+        try (SmartPatch smartPatch = repo.getSmartPatch(seedPatch, targetId)) {
+            String name = smartPatch.getDataHandler().getDataSource().getName();
+            Assert.assertTrue("Precomputed: " + name, name.startsWith("smart-handle"));
+            Assert.assertEquals(Patch.smartDelta(seedPatch, repo.getPatch(targetId)).getRecords(), smartPatch.getRecords());
+        }
+
+        // Any other seed is computed on demand
+        try (SmartPatch smartPatch = repo.getSmartPatch(null, targetId)) {
+            String name = smartPatch.getDataHandler().getDataSource().getName();
+            Assert.assertTrue("Not precomputed: " + name, name.startsWith("smart-content"));
+            Assert.assertEquals(3, smartPatch.getRecords().size());
+        }
+
+        // The precomputed archive stays readable when its version is removed
+        try (SmartPatch smartPatch = repo.getSmartPatch(seedPatch, targetId)) {
+            repo.removeArchive(targetId);
+            Assert.assertFalse("Removed", rootPath.resolve(Paths.get("foo", "1.1.0")).toFile().exists());
+            Assert.assertEquals(2, countEntries(smartPatch));
+        }
+    }
 }
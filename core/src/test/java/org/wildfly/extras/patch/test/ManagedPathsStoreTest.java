@@ -0,0 +1,142 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.ManagedPath;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.Server;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class ManagedPathsStoreTest {
+
+    final static Path repoPath = Paths.get("target/repos/ManagedPathsStoreTest/repo");
+    final static Path[] serverPaths = new Path[3];
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(repoPath);
+        repoPath.toFile().mkdirs();
+        for (int i = 0; i < serverPaths.length; i++) {
+            serverPaths[i] = Paths.get("target/servers/ManagedPathsStoreTest/srv" + (i + 1));
+            IOUtils.rmdirs(serverPaths[i]);
+            serverPaths[i].toFile().mkdirs();
+        }
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).build();
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo100());
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo110());
+    }
+
+    @Test
+    public void testIncompleteChanges() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[0]);
+        Server server = patchTool.getServer();
+        patchTool.install(PatchId.fromString("foo-1.0.0"), false);
+        Path changesPath = serverPaths[0].resolve("fusepatch/workspace/managed-paths.changes");
+        Assert.assertTrue(changesPath.toFile().isFile());
+        assertManagedPaths(server.queryManagedPaths("lib"), "lib [foo-1.0.0]", "lib/foo-1.0.0.jar [foo-1.0.0]");
+
+        // A batch without end marker is ignored
+        try (PrintWriter pw = new PrintWriter(new FileOutputStream(changesPath.toFile(), true))) {
+            pw.println("DEL lib/foo-1.0.0.jar");
+            pw.print("PUT lib/fo");
+        }
+        assertManagedPaths(server.queryManagedPaths("lib"), "lib [foo-1.0.0]", "lib/foo-1.0.0.jar [foo-1.0.0]");
+
+        // The next write compacts the changes
+        patchTool.update("foo", false);
+        Assert.assertFalse(changesPath.toFile().exists());
+        assertManagedPaths(server.queryManagedPaths("lib"), "lib [foo-1.1.0]", "lib/foo-1.1.0.jar [foo-1.1.0]");
+        assertManagedPaths(getPatchTool(serverPaths[0]).getServer().queryManagedPaths("lib"), "lib [foo-1.1.0]", "lib/foo-1.1.0.jar [foo-1.1.0]");
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[1]);
+        Server server = patchTool.getServer();
+        patchTool.install(PatchId.fromString("foo-1.0.0"), false);
+
+        // Grow the change log beyond the compaction threshold
+        Path workspace = serverPaths[1].resolve("fusepatch/workspace");
+        Path changesPath = workspace.resolve("managed-paths.changes");
+        try (PrintWriter pw = new PrintWriter(new FileOutputStream(changesPath.toFile(), true))) {
+            for (int i = 0; i < 300; i++) {
+                pw.println("PUT other/file" + i + " [bar-1.0.0]");
+                pw.println("DEL other/file" + i);
+            }
+            pw.println("END");
+        }
+        Assert.assertEquals(6, server.queryManagedPaths(null).size());
+
+        patchTool.update("foo", false);
+        Assert.assertFalse(changesPath.toFile().exists());
+        List<String> lines = Files.readAllLines(workspace.resolve("managed-paths.metadata"), StandardCharsets.UTF_8);
+        Assert.assertEquals(Arrays.asList("config [foo-1.1.0]", "config/propsA.properties [foo-1.1.0]", "config/propsB.properties [foo-1.0.0]",
+                "lib [foo-1.1.0]", "lib/foo-1.1.0.jar [foo-1.1.0]"), lines);
+        assertManagedPaths(server.queryManagedPaths("config/props"), "config/propsA.properties [foo-1.1.0]", "config/propsB.properties [foo-1.0.0]");
+    }
+
+    @Test
+    public void testQueryPatterns() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[2]);
+        Server server = patchTool.getServer();
+        patchTool.install(PatchId.fromString("foo-1.0.0"), false);
+
+        assertManagedPaths(server.queryManagedPaths("config/props"), "config/propsA.properties [foo-1.0.0]", "config/propsB.properties [foo-1.0.0]");
+        assertManagedPaths(server.queryManagedPaths("config/*B.properties"), "config/propsB.properties [foo-1.0.0]");
+        assertManagedPaths(server.queryManagedPaths("**.jar"), "lib/foo-1.0.0.jar [foo-1.0.0]");
+        assertManagedPaths(server.queryManagedPaths("regex:config/.*-me\\.properties"), "config/remove-me.properties [foo-1.0.0]");
+        assertManagedPaths(server.queryManagedPaths("regex:libs?/.*"), "lib/foo-1.0.0.jar [foo-1.0.0]");
+        assertManagedPaths(server.queryManagedPaths("regex:config/.*B.*|lib/.*"), "config/propsB.properties [foo-1.0.0]", "lib/foo-1.0.0.jar [foo-1.0.0]");
+        assertManagedPaths(server.queryManagedPaths("regex:foo|lib/foo-1.0.0.jar"), "lib/foo-1.0.0.jar [foo-1.0.0]");
+        assertManagedPaths(server.queryManagedPaths("modules"));
+    }
+
+    private static void assertManagedPaths(List<ManagedPath> managedPaths, String... expected) {
+        String[] actual = new String[managedPaths.size()];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = managedPaths.get(i).toString();
+        }
+        Assert.assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+    }
+
+    private static PatchTool getPatchTool(Path serverPath) throws Exception {
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        return new PatchToolBuilder().repositoryURL(repoURL).serverPath(serverPath).build();
+    }
+}
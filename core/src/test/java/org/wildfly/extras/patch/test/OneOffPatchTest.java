@@ -19,14 +19,26 @@
  */
 package org.wildfly.extras.patch.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
 import javax.activation.URLDataSource;
 
 import org.junit.Assert;
@@ -45,11 +57,17 @@ public class OneOffPatchTest {
 
     final static Path[] serverPaths = new Path[2];
     final static Path repoPath = Paths.get("target/repos/OneOffPatchTest/repo");
+    final static Path[] mergePaths = new Path[2];
 
     @BeforeClass
     public static void setUp() throws Exception {
         IOUtils.rmdirs(repoPath);
         repoPath.toFile().mkdirs();
+        for (int i = 0; i < 2; i++) {
+            mergePaths[i] = Paths.get("target/repos/OneOffPatchTest/merge" + (i + 1));
+            IOUtils.rmdirs(mergePaths[i]);
+            mergePaths[i].toFile().mkdirs();
+        }
         for (int i = 0; i < 2; i++) {
             serverPaths[i] = Paths.get("target/repos/OneOffPatchTest/srv" + (i + 1));
             IOUtils.rmdirs(serverPaths[i]);
@@ -100,6 +118,81 @@ public class OneOffPatchTest {
         Archives.assertActionPathEquals("INFO lib/foo-1.0.0.jar", pack100sp1.getRecords().get(3));
     }
 
+    @Test
+    public void testMergedContent() throws Exception {
+
+        // A base with a stored entry, which recompressing would deflate
+        File baseFile = mergePaths[0].getParent().resolve("merge-1.0.0.zip").toFile();
+        File oneoffFile = mergePaths[0].getParent().resolve("merge-1.0.0.SP1.zip").toFile();
+        writeZip(baseFile, ZipEntry.STORED, "config/stored.properties", "a=1", "config/override.properties", "b=1");
+        writeZip(oneoffFile, ZipEntry.DEFLATED, "config/override.properties", "b=2");
+        PatchId baseId = PatchId.fromString("merge-1.0.0");
+        PatchId oneoffId = PatchId.fromString("merge-1.0.0.SP1");
+        PatchMetadata baseMetadata = new PatchMetadataBuilder().patchId(baseId).build();
+        PatchMetadata oneoffMetadata = new PatchMetadataBuilder().patchId(oneoffId).oneoffId(baseId).build();
+
+        // The content that extracting and recompressing both archives results in
+        Map<String, byte[]> expected = readEntries(baseFile);
+        expected.putAll(readEntries(oneoffFile));
+
+        // One-off content from a file is merged in place, other content through a temporary copy
+        DataSource[] sources = new DataSource[] { new FileDataSource(oneoffFile), new URLDataSource(oneoffFile.toURI().toURL()) };
+        for (int i = 0; i < sources.length; i++) {
+            PatchTool patchTool = new PatchToolBuilder().repositoryURL(mergePaths[i].toFile().toURI().toURL()).build();
+            patchTool.getRepository().addArchive(baseMetadata, new DataHandler(new FileDataSource(baseFile)), false);
+            patchTool.getRepository().addArchive(oneoffMetadata, new DataHandler(sources[i]), false);
+
+            File mergedFile = mergePaths[i].resolve(Paths.get("merge", oneoffId.getVersion().toString(), oneoffId + ".zip")).toFile();
+            Map<String, byte[]> merged = readEntries(mergedFile);
+            Assert.assertEquals(expected.keySet(), merged.keySet());
+            for (String name : expected.keySet()) {
+                Assert.assertArrayEquals(name, expected.get(name), merged.get(name));
+            }
+
+            // Entries are copied without recompressing them
+            try (ZipFile mergedZip = new ZipFile(mergedFile)) {
+                Assert.assertEquals(ZipEntry.STORED, mergedZip.getEntry("config/stored.properties").getMethod());
+                Assert.assertEquals(ZipEntry.DEFLATED, mergedZip.getEntry("config/override.properties").getMethod());
+            }
+        }
+    }
+
+    // Write a zip file from alternating entry names and contents
+    private void writeZip(File zipFile, int method, String... nameContents) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            for (int i = 0; i < nameContents.length; i += 2) {
+                byte[] bytes = nameContents[i + 1].getBytes("UTF-8");
+                ZipEntry entry = new ZipEntry(nameContents[i]);
+                entry.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    entry.setSize(bytes.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zos.putNextEntry(entry);
+                zos.write(bytes);
+                zos.closeEntry();
+            }
+        }
+    }
+
+    private Map<String, byte[]> readEntries(File zipFile) throws IOException {
+        Map<String, byte[]> result = new TreeMap<>();
+        try (ZipInputStream zin = new ZipInputStream(new FileInputStream(zipFile))) {
+            ZipEntry entry = zin.getNextEntry();
+            while (entry != null) {
+                if (!entry.isDirectory()) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    IOUtils.copy(zin, baos);
+                    result.put(entry.getName(), baos.toByteArray());
+                }
+                entry = zin.getNextEntry();
+            }
+        }
+        return result;
+    }
+
     private String readProperty(String key, Path path) throws IOException {
         Properties properties = new Properties();
         try (FileInputStream fis = new FileInputStream(path.toFile())) {
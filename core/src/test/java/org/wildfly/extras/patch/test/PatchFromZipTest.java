@@ -0,0 +1,109 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.Record;
+import org.wildfly.extras.patch.repository.ParserAccess;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class PatchFromZipTest {
+
+    final static Path workPath = Paths.get("target/PatchFromZipTest");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(workPath);
+        workPath.toFile().mkdirs();
+    }
+
+    @Test
+    public void testCentralDirectoryScan() throws Exception {
+
+        // The central directory scan matches the streaming scan
+        File zipFile = new File(Archives.getZipUrlFoo100().getPath());
+        Patch patch = ParserAccess.getPatch(zipFile);
+        Assert.assertEquals(ParserAccess.getPatch(zipFile.toURI().toURL()).getRecords(), patch.getRecords());
+
+        List<Record> records = patch.getRecords();
+        Assert.assertEquals(4, records.size());
+        Archives.assertActionPathEquals("ADD config/propsA.properties", records.get(0));
+        Archives.assertActionPathEquals("ADD config/propsB.properties", records.get(1));
+        Archives.assertActionPathEquals("ADD config/remove-me.properties", records.get(2));
+        Archives.assertActionPathEquals("ADD lib/foo-1.0.0.jar", records.get(3));
+    }
+
+    @Test
+    public void testStreamingFallback() throws Exception {
+
+        // A zip file without central directory can only be read as a stream
+        File zipFile = workPath.resolve("nocentral-1.0.0.zip").toFile();
+        try (FileOutputStream fos = new FileOutputStream(zipFile)) {
+            ZipOutputStream zos = new ZipOutputStream(fos);
+            zos.putNextEntry(new ZipEntry("config/"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("config/propsA.properties"));
+            zos.write("some=value".getBytes("UTF-8"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("lib/some.jar"));
+            zos.write(new byte[1024]);
+            zos.closeEntry();
+            zos.flush();
+            long entriesSize = fos.getChannel().position();
+            zos.close();
+            try (RandomAccessFile raf = new RandomAccessFile(zipFile, "rw")) {
+                raf.setLength(entriesSize);
+            }
+        }
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            Assert.fail("ZipException expected");
+        } catch (ZipException ex) {
+            // expected
+        }
+
+        List<Record> records = ParserAccess.getPatch(zipFile).getRecords();
+        Assert.assertEquals(2, records.size());
+        Archives.assertActionPathEquals("ADD config/propsA.properties", records.get(0));
+        Archives.assertActionPathEquals("ADD lib/some.jar", records.get(1));
+        Assert.assertEquals(Long.valueOf(getCRC32("some=value".getBytes("UTF-8"))), records.get(0).getChecksum());
+        Assert.assertEquals(Long.valueOf(getCRC32(new byte[1024])), records.get(1).getChecksum());
+    }
+
+    private static long getCRC32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
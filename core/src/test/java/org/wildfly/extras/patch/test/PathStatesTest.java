@@ -0,0 +1,86 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.PathStates;
+
+public class PathStatesTest {
+
+    final static Path rootPath = Paths.get("target/PathStatesTest");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(rootPath);
+        for (int i = 0; i < 50; i++) {
+            Path dir = rootPath.resolve("dir" + i);
+            dir.toFile().mkdirs();
+            for (int j = 0; j < 30; j++) {
+                dir.resolve("file" + j).toFile().createNewFile();
+            }
+        }
+    }
+
+    @Test
+    public void testSmallSet() throws Exception {
+        Set<Path> paths = new HashSet<>();
+        paths.add(Paths.get("dir0"));
+        paths.add(Paths.get("dir0/file0"));
+        paths.add(Paths.get("dir0/missing"));
+        PathStates states = PathStates.stat(rootPath, paths);
+        assertStates(states);
+    }
+
+    @Test
+    public void testParallelSet() throws Exception {
+        Set<Path> paths = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            paths.add(Paths.get("dir" + i));
+            for (int j = 0; j < 40; j++) {
+                paths.add(Paths.get("dir" + i, "file" + j));
+            }
+        }
+        PathStates states = PathStates.stat(rootPath, paths);
+        assertStates(states);
+        Assert.assertTrue(states.isFile(Paths.get("dir49/file29")));
+        Assert.assertFalse(states.exists(Paths.get("dir49/file30")));
+    }
+
+    private static void assertStates(PathStates states) {
+        Assert.assertTrue(states.exists(Paths.get("dir0")));
+        Assert.assertFalse(states.isFile(Paths.get("dir0")));
+        Assert.assertTrue(states.exists(Paths.get("dir0/file0")));
+        Assert.assertTrue(states.isFile(Paths.get("dir0/file0")));
+        Assert.assertFalse(states.exists(Paths.get("dir0/missing")));
+        Assert.assertFalse(states.isFile(Paths.get("dir0/missing")));
+
+        // Paths outside the set are read on demand
+        Assert.assertTrue(states.isFile(Paths.get("dir1/file1")));
+        Assert.assertFalse(states.exists(Paths.get("other")));
+    }
+}
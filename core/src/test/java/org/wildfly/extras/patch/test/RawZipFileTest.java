@@ -0,0 +1,276 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.utils.IOUtils;
+import org.wildfly.extras.patch.utils.RawZipFile;
+import org.wildfly.extras.patch.utils.RawZipOutput;
+
+public class RawZipFileTest {
+
+    final static Path rootPath = Paths.get("target/RawZipFileTest");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(rootPath);
+        rootPath.toFile().mkdirs();
+    }
+
+    @Test
+    public void testCopyRoundTrip() throws Exception {
+
+        // Entries written by ZipOutputStream are followed by a 16 byte data descriptor
+        File sourceFile = rootPath.resolve("source.zip").toFile();
+        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(sourceFile))) {
+            zout.putNextEntry(new ZipEntry("lib/"));
+            zout.putNextEntry(new ZipEntry("lib/a.txt"));
+            zout.write(getContent("a", 1000));
+            zout.putNextEntry(new ZipEntry("lib/b.txt"));
+            zout.write(getContent("b", 20000));
+        }
+
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        expected.put("lib/", new byte[0]);
+        expected.put("lib/a.txt", getContent("a", 1000));
+        expected.put("lib/b.txt", getContent("b", 20000));
+        expected.put("config/c.txt", getContent("c", 5000));
+        File targetFile = copyEntries(sourceFile, "config/c.txt", getContent("c", 5000));
+        assertZipContent(expected, targetFile);
+        assertVerbatimCopy(sourceFile, targetFile, 16);
+    }
+
+    @Test
+    public void testShortDataDescriptor() throws Exception {
+
+        // Data descriptors without signature are 12 bytes
+        File sourceFile = rootPath.resolve("short-descriptor.zip").toFile();
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        expected.put("a.txt", getContent("a", 3000));
+        expected.put("b.txt", getContent("b", 100));
+        Files.write(sourceFile.toPath(), createZip(expected, false, new byte[0], ""));
+
+        File targetFile = copyEntries(sourceFile, "c.txt", getContent("c", 10));
+        expected.put("c.txt", getContent("c", 10));
+        assertZipContent(expected, targetFile);
+        assertVerbatimCopy(sourceFile, targetFile, 12);
+    }
+
+    @Test
+    public void testArchiveComment() throws Exception {
+
+        File sourceFile = rootPath.resolve("comment.zip").toFile();
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        expected.put("a.txt", getContent("a", 3000));
+        Files.write(sourceFile.toPath(), createZip(expected, true, new byte[0], "an archive comment"));
+
+        File targetFile = copyEntries(sourceFile, "b.txt", getContent("b", 10));
+        expected.put("b.txt", getContent("b", 10));
+        assertZipContent(expected, targetFile);
+        assertVerbatimCopy(sourceFile, targetFile, 16);
+    }
+
+    @Test
+    public void testPrependedData() throws Exception {
+
+        // The central directory offset does not account for the prepended data
+        File sourceFile = rootPath.resolve("prepended.zip").toFile();
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("a.txt", getContent("a", 3000));
+        Files.write(sourceFile.toPath(), createZip(entries, true, getContent("stub", 500), ""));
+        try {
+            new RawZipFile(sourceFile).close();
+            Assert.fail("ZipException expected");
+        } catch (ZipException ex) {
+            Assert.assertEquals("Invalid central directory location", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testZip64Rejected() throws Exception {
+
+        // More than 65534 entries require the Zip64 end of central directory
+        File sourceFile = rootPath.resolve("zip64.zip").toFile();
+        try (ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(sourceFile))) {
+            zout.setLevel(Deflater.NO_COMPRESSION);
+            for (int i = 0; i < 0x10000; i++) {
+                zout.putNextEntry(new ZipEntry("e" + i));
+            }
+        }
+        try (ZipFile zipFile = new ZipFile(sourceFile)) {
+            Assert.assertEquals(0x10000, zipFile.size());
+        }
+        try {
+            new RawZipFile(sourceFile).close();
+            Assert.fail("ZipException expected");
+        } catch (ZipException ex) {
+            Assert.assertEquals("Zip64 not supported", ex.getMessage());
+        }
+    }
+
+    // Copy all entries of the source and add one new entry
+    private static File copyEntries(File sourceFile, String name, byte[] content) throws IOException {
+        File targetFile = new File(sourceFile.getPath() + ".copy");
+        try (RawZipFile source = new RawZipFile(sourceFile); RawZipOutput output = new RawZipOutput(targetFile)) {
+            for (RawZipFile.Entry entry : source.getEntries()) {
+                source.copyEntry(entry, output);
+            }
+            output.putEntry(name, new ByteArrayInputStream(content));
+        }
+        return targetFile;
+    }
+
+    // Verify the content and checksums through the central directory
+    private static void assertZipContent(Map<String, byte[]> expected, File zipFile) throws IOException {
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            Assert.assertEquals(expected.size(), zip.size());
+            for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+                ZipEntry zipEntry = zip.getEntry(entry.getKey());
+                Assert.assertNotNull("Entry exists: " + entry.getKey(), zipEntry);
+                Assert.assertEquals(getChecksum(entry.getValue()), zipEntry.getCrc());
+                try (InputStream input = zip.getInputStream(zipEntry)) {
+                    Assert.assertArrayEquals(entry.getValue(), readAll(input));
+                }
+            }
+        }
+    }
+
+    // Verify that the copied entries including their data descriptors are byte identical and directly followed by the new entry
+    private static void assertVerbatimCopy(File sourceFile, File targetFile, int descriptorLength) throws IOException {
+        int entriesEnd;
+        int count;
+        try (RawZipFile source = new RawZipFile(sourceFile)) {
+            count = source.getEntries().size();
+            RawZipFile.Entry last = source.getEntries().get(count - 1);
+            entriesEnd = (int) (source.getDataOffset(last) + last.getCompressedSize() + descriptorLength);
+        }
+        try (RawZipFile target = new RawZipFile(targetFile)) {
+            Assert.assertEquals(count + 1, target.getEntries().size());
+            Assert.assertEquals(entriesEnd, target.getEntries().get(count).getLocalHeaderOffset());
+        }
+        byte[] sourceBytes = Arrays.copyOf(Files.readAllBytes(sourceFile.toPath()), entriesEnd);
+        byte[] targetBytes = Arrays.copyOf(Files.readAllBytes(targetFile.toPath()), entriesEnd);
+        Assert.assertArrayEquals(sourceBytes, targetBytes);
+    }
+
+    // Create a zip with deflated entries that are followed by a data descriptor
+    private static byte[] createZip(Map<String, byte[]> entries, boolean signature, byte[] prefix, String comment) throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ByteArrayOutputStream central = new ByteArrayOutputStream();
+        zip.write(prefix);
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] content = entry.getValue();
+            byte[] data = deflate(content);
+            long crc = getChecksum(content);
+            int offset = zip.size() - prefix.length;
+
+            ByteBuffer loc = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            loc.putInt(0x04034b50).putShort((short) 20).putShort((short) 8).putShort((short) ZipEntry.DEFLATED);
+            loc.putInt(0).putInt(0).putInt(0).putInt(0).putShort((short) name.length).putShort((short) 0).put(name);
+            zip.write(loc.array());
+            zip.write(data);
+
+            ByteBuffer ext = ByteBuffer.allocate(signature ? 16 : 12).order(ByteOrder.LITTLE_ENDIAN);
+            if (signature) {
+                ext.putInt(0x08074b50);
+            }
+            ext.putInt((int) crc).putInt(data.length).putInt(content.length);
+            zip.write(ext.array());
+
+            ByteBuffer cen = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+            cen.putInt(0x02014b50).putShort((short) 20).putShort((short) 20).putShort((short) 8).putShort((short) ZipEntry.DEFLATED);
+            cen.putInt(0).putInt((int) crc).putInt(data.length).putInt(content.length);
+            cen.putShort((short) name.length).putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+            cen.putInt(0).putInt(offset).put(name);
+            central.write(cen.array());
+        }
+        int cenOffset = zip.size() - prefix.length;
+        zip.write(central.toByteArray());
+        byte[] commentBytes = comment.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer end = ByteBuffer.allocate(22 + commentBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0);
+        end.putShort((short) entries.size()).putShort((short) entries.size());
+        end.putInt(central.size()).putInt(cenOffset).putShort((short) commentBytes.length).put(commentBytes);
+        zip.write(end.array());
+        return zip.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                result.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] getContent(String text, int length) {
+        byte[] bytes = new byte[length];
+        byte[] pattern = (text + " content ").getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (pattern[i % pattern.length] + i / 97);
+        }
+        return bytes;
+    }
+
+    private static long getChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        IOUtils.copy(input, output);
+        return output.toByteArray();
+    }
+}
@@ -22,6 +22,7 @@ package org.wildfly.extras.patch.test;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
@@ -52,13 +53,13 @@ import org.wildfly.extras.patch.utils.IOUtils;
 public class RemoveDirOnUpdateTest {
 
     final static Path repoPath = Paths.get("target/repos/RemoveDirOnUpdateTest/repo");
-    final static Path[] serverPaths = new Path[2];
+    final static Path[] serverPaths = new Path[4];
 
     @BeforeClass
     public static void setUp() throws Exception {
         IOUtils.rmdirs(repoPath);
         repoPath.toFile().mkdirs();
-        for (int i = 0; i < 2; i++) {
+        for (int i = 0; i < serverPaths.length; i++) {
             serverPaths[i] = Paths.get("target/servers/RemoveDirOnUpdateTest/srv" + (i + 1));
             IOUtils.rmdirs(serverPaths[i]);
             serverPaths[i].toFile().mkdirs();
@@ -67,6 +68,8 @@ public class RemoveDirOnUpdateTest {
         PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).build();
         patchTool.getRepository().addArchive(getZipUrlRdou100());
         patchTool.getRepository().addArchive(getZipUrlRdou110());
+        patchTool.getRepository().addArchive(getZipUrlNested100());
+        patchTool.getRepository().addArchive(getZipUrlNested110());
     }
 
     @Test
@@ -151,6 +154,44 @@ public class RemoveDirOnUpdateTest {
         Assert.assertTrue(configPath.toFile().exists());
     }
 
+    @Test
+    public void testRemoveNestedDirsOnUpdate() throws Exception {
+
+        // Update in place and through the staged install
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchToolBuilder[] builders = new PatchToolBuilder[2];
+        builders[0] = new PatchToolBuilder().repositoryURL(repoURL).serverPath(serverPaths[2]);
+        builders[1] = new PatchToolBuilder().repositoryURL(repoURL).serverPath(serverPaths[3]).stagedInstall(true);
+        for (int i = 0; i < builders.length; i++) {
+            PatchTool patchTool = builders[i].build();
+            Path serverPath = serverPaths[i + 2];
+
+            Path aPath = serverPath.resolve("config/a");
+            Path bPath = aPath.resolve("b");
+            Path cPath = bPath.resolve("c");
+            Path xPath = aPath.resolve("x");
+
+            patchTool.install(PatchId.fromString("nested-1.0.0"), false);
+            Assert.assertTrue(cPath.resolve("propsC.properties").toFile().isFile());
+            Assert.assertTrue(xPath.resolve("propsX.properties").toFile().isFile());
+
+            // An unmanaged file in one of the managed dirs
+            Path userPath = xPath.resolve("user.properties");
+            Files.write(userPath, "user=true".getBytes());
+
+            Patch curSet = patchTool.update("nested", false);
+            Assert.assertEquals(PatchId.fromString("nested-1.1.0"), curSet.getPatchId());
+
+            // The nested dirs are removed deepest first, the dir with the unmanaged file is kept
+            Assert.assertFalse(cPath.toFile().exists());
+            Assert.assertFalse(bPath.toFile().exists());
+            Assert.assertFalse(xPath.resolve("propsX.properties").toFile().exists());
+            Assert.assertTrue(userPath.toFile().isFile());
+            Assert.assertTrue(aPath.toFile().isDirectory());
+            Assert.assertTrue(serverPath.resolve("config/keep/propsK.properties").toFile().isFile());
+        }
+    }
+
     /**
      * rdou-1.0.0.zip
      *
@@ -186,4 +227,41 @@ public class RemoveDirOnUpdateTest {
         }
         return targetFile.toURI().toURL();
     }
+
+    /**
+     * nested-1.0.0.zip
+     *
+     * config/a/b/c/propsC.properties
+     * config/a/b/propsB.properties
+     * config/a/x/propsX.properties
+     * config/keep/propsK.properties
+     */
+    static URL getZipUrlNested100() throws IOException {
+        File targetFile = Paths.get("target/nested-1.0.0.zip").toFile();
+        if (!targetFile.exists()) {
+            File propsFile = new File("src/test/resources/propsA1.properties");
+            GenericArchive archive = ShrinkWrap.create(GenericArchive.class);
+            archive.add(new FileAsset(propsFile), "config/a/b/c/propsC.properties");
+            archive.add(new FileAsset(propsFile), "config/a/b/propsB.properties");
+            archive.add(new FileAsset(propsFile), "config/a/x/propsX.properties");
+            archive.add(new FileAsset(propsFile), "config/keep/propsK.properties");
+            archive.as(ZipExporter.class).exportTo(targetFile, true);
+        }
+        return targetFile.toURI().toURL();
+    }
+
+    /**
+     * nested-1.1.0.zip
+     *
+     * config/keep/propsK.properties
+     */
+    static URL getZipUrlNested110() throws IOException {
+        File targetFile = Paths.get("target/nested-1.1.0.zip").toFile();
+        if (!targetFile.exists()) {
+            GenericArchive archive = ShrinkWrap.create(GenericArchive.class);
+            archive.add(new FileAsset(new File("src/test/resources/propsA1.properties")), "config/keep/propsK.properties");
+            archive.as(ZipExporter.class).exportTo(targetFile, true);
+        }
+        return targetFile.toURI().toURL();
+    }
 }
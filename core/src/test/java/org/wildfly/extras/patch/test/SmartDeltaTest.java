@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchMetadataBuilder;
+import org.wildfly.extras.patch.Record;
+
+public class SmartDeltaTest {
+
+    @Test
+    public void testActionsInPathOrder() throws Exception {
+
+        Patch seedPatch = createPatch("foo-1.0.0", "a/x", 1L, "b/y", 2L, "c/z", 3L, "d", 4L);
+        Patch targetSet = createPatch("foo-1.1.0", "a/x", 1L, "b/y", 5L, "bb", 6L, "e", 7L);
+
+        Patch smartSet = Patch.smartDelta(seedPatch, targetSet);
+        Assert.assertEquals(PatchId.fromString("foo-1.1.0"), smartSet.getPatchId());
+        List<Record> records = smartSet.getRecords();
+        Assert.assertEquals(5, records.size());
+        Archives.assertActionPathEquals("UPD b/y", records.get(0));
+        Archives.assertActionPathEquals("ADD bb", records.get(1));
+        Archives.assertActionPathEquals("DEL c/z", records.get(2));
+        Archives.assertActionPathEquals("DEL d", records.get(3));
+        Archives.assertActionPathEquals("ADD e", records.get(4));
+
+        // Updates and additions carry the target checksum, deletions the seed checksum
+        Assert.assertEquals(Long.valueOf(5), records.get(0).getChecksum());
+        Assert.assertEquals(Long.valueOf(6), records.get(1).getChecksum());
+        Assert.assertEquals(Long.valueOf(3), records.get(2).getChecksum());
+    }
+
+    @Test
+    public void testEqualChecksumsSkipped() throws Exception {
+
+        Patch seedPatch = createPatch("foo-1.0.0", "a/x", 1L, "b/y", 2L);
+        Patch targetSet = createPatch("foo-1.1.0", "a/x", 1L, "b/y", 2L);
+        Assert.assertTrue(Patch.smartDelta(seedPatch, targetSet).getRecords().isEmpty());
+
+        // Only the path with a different checksum is updated
+        targetSet = createPatch("foo-1.1.0", "a/x", 1L, "b/y", 3L);
+        List<Record> records = Patch.smartDelta(seedPatch, targetSet).getRecords();
+        Assert.assertEquals(1, records.size());
+        Archives.assertActionPathEquals("UPD b/y", records.get(0));
+    }
+
+    @Test
+    public void testEmptySides() throws Exception {
+
+        Patch emptySeed = createPatch("foo-1.0.0");
+        Patch emptyTarget = createPatch("foo-1.1.0");
+        Patch seedPatch = createPatch("foo-1.0.0", "a/x", 1L, "b/y", 2L);
+        Patch targetSet = createPatch("foo-1.1.0", "a/x", 1L, "b/y", 2L);
+
+        // Everything is added without a seed
+        for (Patch seed : new Patch[] { null, emptySeed }) {
+            List<Record> records = Patch.smartDelta(seed, targetSet).getRecords();
+            Assert.assertEquals(2, records.size());
+            Archives.assertActionPathEquals("ADD a/x", records.get(0));
+            Archives.assertActionPathEquals("ADD b/y", records.get(1));
+        }
+
+        // Everything is deleted for an empty target
+        List<Record> records = Patch.smartDelta(seedPatch, emptyTarget).getRecords();
+        Assert.assertEquals(2, records.size());
+        Archives.assertActionPathEquals("DEL a/x", records.get(0));
+        Archives.assertActionPathEquals("DEL b/y", records.get(1));
+
+        Assert.assertTrue(Patch.smartDelta(null, emptyTarget).getRecords().isEmpty());
+        Assert.assertTrue(Patch.smartDelta(emptySeed, emptyTarget).getRecords().isEmpty());
+    }
+
+    // Create a patch from alternating paths and checksums
+    private static Patch createPatch(String identity, Object... pathChecksums) {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < pathChecksums.length; i += 2) {
+            records.add(Record.create(Paths.get((String) pathChecksums[i]), (Long) pathChecksums[i + 1]));
+        }
+        Collections.shuffle(records);
+        return Patch.create(new PatchMetadataBuilder().patchId(PatchId.fromString(identity)).build(), records);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchException;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.repository.ParserAccess;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class StagedInstallTest {
+
+    final static Path repoPath = Paths.get("target/repos/StagedInstallTest/repo");
+    final static Path[] serverPaths = new Path[5];
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(repoPath);
+        repoPath.toFile().mkdirs();
+        for (int i = 0; i < serverPaths.length; i++) {
+            serverPaths[i] = Paths.get("target/servers/StagedInstallTest/srv" + (i + 1));
+            IOUtils.rmdirs(serverPaths[i]);
+            serverPaths[i].toFile().mkdirs();
+        }
+        PatchTool patchTool = getPatchTool(null, false);
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo100());
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo110());
+        patchTool.getRepository().addArchive(BinaryDeltaTest.getZipUrlBin100());
+        patchTool.getRepository().addArchive(BinaryDeltaTest.getZipUrlBin110());
+    }
+
+    @Test
+    public void testInstallUpdateUninstall() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[0], false);
+        Patch setA = ParserAccess.getPatch(Archives.getZipUrlFoo100());
+        Patch setB = ParserAccess.getPatch(Archives.getZipUrlFoo110());
+
+        Patch curSet = patchTool.install(setA.getPatchId(), false);
+        Assert.assertEquals(setA.getRecords(), curSet.getRecords());
+        Archives.assertPathsEqual(setA, serverPaths[0]);
+        assertNoJournalLeft(serverPaths[0]);
+
+        // A replaced file keeps its executable bit
+        File propsA = serverPaths[0].resolve("config/propsA.properties").toFile();
+        Assert.assertTrue(propsA.setExecutable(true));
+
+        curSet = patchTool.update("foo", false);
+        Assert.assertEquals(setB.getRecords(), curSet.getRecords());
+        Archives.assertPathsEqual(setB, serverPaths[0]);
+        Assert.assertFalse(serverPaths[0].resolve("config/remove-me.properties").toFile().exists());
+        Assert.assertTrue(propsA.canExecute());
+        Assert.assertFalse(serverPaths[0].resolve("lib/foo-1.1.0.jar").toFile().canExecute());
+        assertNoJournalLeft(serverPaths[0]);
+
+        patchTool.uninstall(setB.getPatchId());
+        Assert.assertFalse(serverPaths[0].resolve("lib/foo-1.1.0.jar").toFile().exists());
+        Assert.assertTrue(patchTool.getServer().queryAppliedPatches().isEmpty());
+        assertNoJournalLeft(serverPaths[0]);
+    }
+
+    @Test
+    public void testStreamingBinaryDeltaUpdate() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[1], true);
+        patchTool.install(PatchId.fromString("bin-1.0.0"), false);
+        Patch curSet = patchTool.update("bin", false);
+        Assert.assertEquals(PatchId.fromString("bin-1.1.0"), curSet.getPatchId());
+
+        Patch setB = ParserAccess.getPatch(BinaryDeltaTest.getZipUrlBin110());
+        Archives.assertPathsEqual(setB, serverPaths[1]);
+        assertNoJournalLeft(serverPaths[1]);
+    }
+
+    @Test
+    public void testInterruptedCommit() throws Exception {
+
+        Path serverPath = serverPaths[2];
+        PatchTool patchTool = getPatchTool(serverPath, false);
+        Patch setA = ParserAccess.getPatch(Archives.getZipUrlFoo100());
+        patchTool.install(setA.getPatchId(), false);
+
+        // Simulate a process that died half way through the update to foo-1.1.0
+        Path workspace = serverPath.resolve("fusepatch/workspace");
+        Path journalPath = serverPath.resolve("fusepatch/journal");
+        Path auditLog = workspace.resolve("audit.log");
+        long auditLength = auditLog.toFile().length();
+        for (File file : workspace.toFile().listFiles()) {
+            if (file.getName().startsWith("managed-paths.")) {
+                copyFile(file.toPath(), journalPath.resolve("metadata").resolve(file.getName()));
+            }
+        }
+        File[] metadataFiles = workspace.resolve("foo/1.0.0").toFile().listFiles();
+        for (File file : metadataFiles) {
+            copyFile(file.toPath(), journalPath.resolve("metadata/foo/1.0.0").resolve(file.getName()));
+        }
+        try (PrintWriter pw = new PrintWriter(journalPath.resolve("journal.log").toFile())) {
+            pw.println("NAME foo");
+            pw.println("AUDIT " + auditLength);
+            pw.println("DEL config/remove-me.properties");
+            pw.println("MOV config/propsA.properties");
+            pw.println("MOV lib/foo-1.1.0.jar");
+            pw.println("COMMIT");
+        }
+        moveFile(serverPath.resolve("config/remove-me.properties"), journalPath.resolve("backup/config/remove-me.properties"));
+        moveFile(serverPath.resolve("config/propsA.properties"), journalPath.resolve("backup/config/propsA.properties"));
+        copyFile(Paths.get("src/test/resources/propsA2.properties"), serverPath.resolve("config/propsA.properties"));
+        copyFile(serverPath.resolve("lib/foo-1.0.0.jar"), journalPath.resolve("staging/lib/foo-1.1.0.jar"));
+        IOUtils.rmdirs(workspace.resolve("foo"));
+        try (PrintWriter pw = new PrintWriter(new FileOutputStream(workspace.resolve("managed-paths.changes").toFile(), true))) {
+            pw.println("PUT lib/foo-1.1.0.jar [foo-1.1.0]");
+            pw.println("END");
+        }
+        try (FileOutputStream fos = new FileOutputStream(auditLog.toFile(), true)) {
+            fos.write("# partial entry".getBytes());
+        }
+
+        // The next server instance rolls back the incomplete commit when it is first accessed
+        patchTool = getPatchTool(serverPath, false);
+        Assert.assertTrue(journalPath.toFile().exists());
+        Assert.assertEquals(Collections.singletonList(setA.getPatchId()), patchTool.getServer().queryAppliedPatches());
+        Archives.assertPathsEqual(setA, serverPath);
+        Assert.assertFalse(serverPath.resolve("lib/foo-1.1.0.jar").toFile().exists());
+        Assert.assertTrue(patchTool.getServer().queryManagedPaths("lib/foo-1.1.0.jar").isEmpty());
+        Assert.assertEquals(auditLength, auditLog.toFile().length());
+        assertNoJournalLeft(serverPath);
+
+        // The update can be applied again
+        Patch setB = ParserAccess.getPatch(Archives.getZipUrlFoo110());
+        Patch curSet = patchTool.update("foo", false);
+        Assert.assertEquals(setB.getRecords(), curSet.getRecords());
+        Archives.assertPathsEqual(setB, serverPath);
+        assertNoJournalLeft(serverPath);
+    }
+
+    @Test
+    public void testStageAndCommit() throws Exception {
+
+        Path serverPath = serverPaths[3];
+        PatchTool patchTool = getPatchTool(serverPath, false);
+        Patch setA = ParserAccess.getPatch(Archives.getZipUrlFoo100());
+        Patch setB = ParserAccess.getPatch(Archives.getZipUrlFoo110());
+        patchTool.install(setA.getPatchId(), false);
+        Assert.assertNull(patchTool.getServer().getStagedPatch());
+
+        // Staging does not modify the server
+        Assert.assertEquals(setB.getPatchId(), patchTool.stage(setB.getPatchId()));
+        Assert.assertEquals(setB.getPatchId(), patchTool.getServer().getStagedPatch());
+        Assert.assertEquals(Collections.singletonList(setA.getPatchId()), patchTool.getServer().queryAppliedPatches());
+        Archives.assertPathsEqual(setA, serverPath);
+        assertNoJournalLeft(serverPath);
+
+        // Another server instance commits the staged patch
+        patchTool = getPatchTool(serverPath, false);
+        Patch curSet = patchTool.commit(false);
+        Assert.assertEquals(setB.getRecords(), curSet.getRecords());
+        Archives.assertPathsEqual(setB, serverPath);
+        Assert.assertFalse(serverPath.resolve("config/remove-me.properties").toFile().exists());
+        Assert.assertNull(patchTool.getServer().getStagedPatch());
+        assertNoJournalLeft(serverPath);
+
+        try {
+            patchTool.commit(false);
+            Assert.fail("PatchException expected");
+        } catch (PatchException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCommitOutdatedStage() throws Exception {
+
+        Path serverPath = serverPaths[4];
+        PatchTool patchTool = getPatchTool(serverPath, true);
+        patchTool.install(PatchId.fromString("bin-1.0.0"), false);
+        Assert.assertEquals(PatchId.fromString("bin-1.1.0"), patchTool.stage(PatchId.fromString("bin-1.1.0")));
+
+        // The staged patch no longer applies when the server changed meanwhile
+        Patch setA = ParserAccess.getPatch(Archives.getZipUrlFoo100());
+        patchTool.install(setA.getPatchId(), false);
+        Patch setB = ParserAccess.getPatch(Archives.getZipUrlFoo110());
+        patchTool.stage(setB.getPatchId());
+        patchTool.update("foo", false);
+        try {
+            patchTool.commit(false);
+            Assert.fail("PatchException expected");
+        } catch (PatchException ex) {
+            // expected
+        }
+        Assert.assertEquals(setB.getPatchId(), patchTool.getServer().getPatch("foo").getPatchId());
+        Assert.assertTrue(patchTool.getServer().verify().isClean());
+        assertNoJournalLeft(serverPath);
+
+        // A binary delta that was staged ahead is committed
+        patchTool.stage(PatchId.fromString("bin-1.1.0"));
+        Patch curSet = patchTool.commit(false);
+        Assert.assertEquals(PatchId.fromString("bin-1.1.0"), curSet.getPatchId());
+        Assert.assertTrue(patchTool.getServer().verify().isClean());
+        assertNoJournalLeft(serverPath);
+    }
+
+    private static void copyFile(Path source, Path target) throws IOException {
+        target.getParent().toFile().mkdirs();
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void moveFile(Path source, Path target) throws IOException {
+        target.getParent().toFile().mkdirs();
+        Files.move(source, target);
+    }
+
+    private static void assertNoJournalLeft(Path serverPath) {
+        Assert.assertFalse(serverPath.resolve("fusepatch/journal").toFile().exists());
+    }
+
+    private static PatchTool getPatchTool(Path serverPath, boolean streaming) throws IOException {
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchToolBuilder builder = new PatchToolBuilder().repositoryURL(repoURL).binaryDeltas(true).streamingInstall(streaming).stagedInstall(true);
+        if (serverPath != null) {
+            builder.serverPath(serverPath);
+        }
+        return builder.build();
+    }
+}
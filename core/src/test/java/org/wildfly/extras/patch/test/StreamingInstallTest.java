@@ -0,0 +1,147 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.activation.DataHandler;
+import javax.activation.URLDataSource;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.Patch;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.Record;
+import org.wildfly.extras.patch.Server;
+import org.wildfly.extras.patch.SmartPatch;
+import org.wildfly.extras.patch.repository.ParserAccess;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class StreamingInstallTest {
+
+    final static Path repoPath = Paths.get("target/repos/StreamingInstallTest/repo");
+    final static Path[] serverPaths = new Path[3];
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(repoPath);
+        repoPath.toFile().mkdirs();
+        for (int i = 0; i < serverPaths.length; i++) {
+            serverPaths[i] = Paths.get("target/servers/StreamingInstallTest/srv" + (i + 1));
+            IOUtils.rmdirs(serverPaths[i]);
+            serverPaths[i].toFile().mkdirs();
+        }
+        PatchTool patchTool = getPatchTool(null);
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo100());
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo110());
+        patchTool.getRepository().addArchive(BinaryDeltaTest.getZipUrlBin100());
+        patchTool.getRepository().addArchive(BinaryDeltaTest.getZipUrlBin110());
+    }
+
+    @Test
+    public void testInstallUpdateUninstall() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[0]);
+        Patch setA = ParserAccess.getPatch(Archives.getZipUrlFoo100());
+        Patch setB = ParserAccess.getPatch(Archives.getZipUrlFoo110());
+
+        Patch curSet = patchTool.install(setA.getPatchId(), false);
+        Assert.assertEquals(setA.getRecords(), curSet.getRecords());
+        Archives.assertPathsEqual(setA, serverPaths[0]);
+        assertNoStagingLeft(serverPaths[0]);
+
+        curSet = patchTool.update("foo", false);
+        Assert.assertEquals(setB.getRecords(), curSet.getRecords());
+        Archives.assertPathsEqual(setB, serverPaths[0]);
+        Assert.assertFalse(serverPaths[0].resolve("config/remove-me.properties").toFile().exists());
+        assertNoStagingLeft(serverPaths[0]);
+
+        patchTool.uninstall(setB.getPatchId());
+        Assert.assertFalse(serverPaths[0].resolve("lib/foo-1.1.0.jar").toFile().exists());
+        Assert.assertTrue(patchTool.getServer().queryAppliedPatches().isEmpty());
+    }
+
+    @Test
+    public void testBinaryDeltaUpdate() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[1]);
+        patchTool.install(PatchId.fromString("bin-1.0.0"), false);
+        Patch curSet = patchTool.update("bin", false);
+        Assert.assertEquals(PatchId.fromString("bin-1.1.0"), curSet.getPatchId());
+
+        Patch setB = ParserAccess.getPatch(BinaryDeltaTest.getZipUrlBin110());
+        Archives.assertPathsEqual(setB, serverPaths[1]);
+        assertNoStagingLeft(serverPaths[1]);
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+
+        PatchTool patchTool = getPatchTool(serverPaths[2]);
+        Server server = patchTool.getServer();
+
+        // Announce a checksum that does not match the streamed content
+        Patch setA = ParserAccess.getPatch(Archives.getZipUrlFoo100());
+        List<Record> records = new ArrayList<>();
+        for (Record rec : setA.getRecords()) {
+            records.add(Record.create(rec.getPatchId(), rec.getAction(), rec.getPath(), rec.getChecksum() + 1));
+        }
+        Patch badSet = Patch.create(setA.getMetadata(), records);
+        try (SmartPatch smartPatch = SmartPatch.forInstall(badSet, new DataHandler(new URLDataSource(Archives.getZipUrlFoo100())))) {
+            server.applySmartPatch(smartPatch, false);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            String message = ex.getMessage();
+            Assert.assertTrue(message, message.contains("Checksum mismatch"));
+        }
+
+        // No server file was written
+        for (Record rec : setA.getRecords()) {
+            Assert.assertFalse(rec.getPath().toString(), serverPaths[2].resolve(rec.getPath()).toFile().exists());
+        }
+        Assert.assertTrue(server.queryAppliedPatches().isEmpty());
+        assertNoStagingLeft(serverPaths[2]);
+    }
+
+    private static void assertNoStagingLeft(Path serverPath) throws IOException {
+        File[] files = serverPath.resolve("fusepatch").toFile().listFiles();
+        for (File file : files) {
+            Assert.assertFalse(file.toString(), file.getName().startsWith("staging"));
+        }
+    }
+
+    private static PatchTool getPatchTool(Path serverPath) throws IOException {
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchToolBuilder builder = new PatchToolBuilder().repositoryURL(repoURL).binaryDeltas(true).streamingInstall(true);
+        if (serverPath != null) {
+            builder.serverPath(serverPath);
+        }
+        return builder.build();
+    }
+}
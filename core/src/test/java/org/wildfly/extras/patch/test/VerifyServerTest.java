@@ -0,0 +1,83 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.test;
+
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wildfly.extras.patch.PatchId;
+import org.wildfly.extras.patch.PatchTool;
+import org.wildfly.extras.patch.PatchToolBuilder;
+import org.wildfly.extras.patch.VerificationReport;
+import org.wildfly.extras.patch.VerificationReport.Status;
+import org.wildfly.extras.patch.utils.IOUtils;
+
+public class VerifyServerTest {
+
+    final static Path repoPath = Paths.get("target/repos/VerifyServerTest/repo");
+    final static Path serverPath = Paths.get("target/servers/VerifyServerTest/srv1");
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        IOUtils.rmdirs(repoPath);
+        repoPath.toFile().mkdirs();
+        IOUtils.rmdirs(serverPath);
+        serverPath.toFile().mkdirs();
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).build();
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo100());
+        patchTool.getRepository().addArchive(Archives.getZipUrlFoo110());
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+
+        URL repoURL = repoPath.toFile().toURI().toURL();
+        PatchTool patchTool = new PatchToolBuilder().repositoryURL(repoURL).serverPath(serverPath).build();
+        Assert.assertTrue(patchTool.getServer().verify().isClean());
+
+        patchTool.install(PatchId.fromString("foo-1.0.0"), false);
+        patchTool.update("foo", false);
+        VerificationReport report = patchTool.getServer().verify();
+        Assert.assertTrue(report.toString(), report.isClean());
+
+        // Modify, remove and add server files
+        try (FileOutputStream fos = new FileOutputStream(serverPath.resolve("config/propsA.properties").toFile(), true)) {
+            fos.write("some.prop=modified".getBytes());
+        }
+        Files.delete(serverPath.resolve("config/propsB.properties"));
+        Files.copy(serverPath.resolve("lib/foo-1.1.0.jar"), serverPath.resolve("lib/foo-custom.jar"));
+
+        report = patchTool.getServer().verify();
+        Assert.assertFalse(report.isClean());
+        Assert.assertEquals(Collections.singletonList(Paths.get("config/propsB.properties")), report.getPaths(Status.MISSING));
+        Assert.assertEquals(Collections.singletonList(Paths.get("config/propsA.properties")), report.getPaths(Status.MODIFIED));
+        Assert.assertEquals(Collections.singletonList(Paths.get("lib/foo-custom.jar")), report.getPaths(Status.UNMANAGED));
+        Assert.assertEquals(Arrays.asList("MODIFIED config/propsA.properties", "MISSING config/propsB.properties", "UNMANAGED lib/foo-custom.jar"), report.getLines());
+    }
+}
@@ -66,7 +66,7 @@ final class Support {
         CRC32 crc32 = new CRC32();
         try (FileInputStream is = new FileInputStream(file)) {
             int len;
-            byte[] buffer = new byte[1024 * 4];
+            byte[] buffer = new byte[64 * 1024];
             while ((len = is.read(buffer)) > 0) {
                 crc32.update(buffer, 0, len);
             }
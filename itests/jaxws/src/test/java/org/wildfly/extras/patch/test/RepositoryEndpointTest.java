@@ -24,13 +24,28 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
 import javax.activation.URLDataSource;
+import javax.xml.bind.DatatypeConverter;
 
 import org.jboss.arquillian.container.test.api.Deployer;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -47,6 +62,7 @@ import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.wildfly.extras.patch.Configuration;
 import org.wildfly.extras.patch.Patch;
 import org.wildfly.extras.patch.PatchId;
 import org.wildfly.extras.patch.PatchMetadata;
@@ -55,6 +71,8 @@ import org.wildfly.extras.patch.PatchTool;
 import org.wildfly.extras.patch.PatchToolBuilder;
 import org.wildfly.extras.patch.Repository;
 import org.wildfly.extras.patch.repository.LocalFileRepository;
+import org.wildfly.extras.patch.repository.RepositoryService;
+import org.wildfly.extras.patch.repository.RepositoryUnavailableException;
 import org.wildfly.extras.patch.test.subA.ClassA;
 import org.wildfly.extras.patch.utils.IOUtils;
 
@@ -178,6 +196,87 @@ public class RepositoryEndpointTest {
         }
     }
 
+    @Test
+    public void testRejectedRequests() throws Exception {
+
+        ClassLoader classLoader = getClass().getClassLoader();
+        URL configUrl = classLoader.getResource("/fusepatch.configuration");
+        Repository repository = new PatchToolBuilder().loadConfiguration(configUrl).build().getRepository();
+        final URL endpointUrl = repository.getRepositoryURL();
+        final Properties config = new Properties();
+        try (InputStream input = configUrl.openStream()) {
+            config.load(input);
+        }
+
+        // The endpoint adds one archive at a time and queues one more, see the server options in the pom
+        URL repoUrl = new URL(System.getProperty(Repository.SYSTEM_PROPERTY_REPOSITORY_URL));
+        Path lockPath = Paths.get(repoUrl.toURI()).resolve(LocalFileRepository.LOCK_FILE);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> pending = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+            // Hold the repository lock so that the accepted requests do not complete
+            FileLock fileLock = channel.lock(0, 1, false);
+            try {
+                for (int i = 0; i < 2; i++) {
+                    pending.add(executor.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() throws Exception {
+                            return postAddArchive(endpointUrl, config).getResponseCode();
+                        }
+                    }));
+                    Thread.sleep(1000);
+                }
+
+                // The client sees the status and header of the rejection
+                HttpURLConnection con = postAddArchive(endpointUrl, config);
+                Assert.assertEquals(503, con.getResponseCode());
+                Assert.assertEquals("5", con.getHeaderField("Retry-After"));
+
+                // The repository client maps the rejection
+                File patchFile = Files.createTempFile("queue-1.0.0", ".zip").toFile();
+                try {
+                    repository.addArchive(new PatchMetadataBuilder().patchId(PatchId.fromString("queue-1.0.0")).build(), new DataHandler(new FileDataSource(patchFile)), false);
+                    Assert.fail("RepositoryUnavailableException expected");
+                } catch (RepositoryUnavailableException ex) {
+                    Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Repository unavailable"));
+                } finally {
+                    patchFile.delete();
+                }
+            } finally {
+                fileLock.release();
+            }
+
+            // The accepted requests fail on their invalid content
+            for (Future<Integer> future : pending) {
+                Assert.assertEquals(Integer.valueOf(500), future.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(repository.queryAvailable("queue").isEmpty());
+    }
+
+    private HttpURLConnection postAddArchive(URL endpointUrl, Properties config) throws IOException {
+        String content = DatatypeConverter.printBase64Binary("no archive".getBytes("UTF-8"));
+        String envelope = "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'><soap:Body>"
+                + "<ns:addArchive xmlns:ns='" + RepositoryService.TARGET_NAMESPACE + "'>"
+                + "<arg0><identity>queue-1.0.0</identity></arg0><arg1>" + content + "</arg1><arg2>false</arg2>"
+                + "</ns:addArchive></soap:Body></soap:Envelope>";
+        String credentials = config.getProperty(Configuration.PROPERTY_REPOSITORY_USERNAME) + ":" + config.getProperty(Configuration.PROPERTY_REPOSITORY_PASSWORD);
+        HttpURLConnection con = (HttpURLConnection) endpointUrl.openConnection();
+        con.setRequestMethod("POST");
+        con.setDoOutput(true);
+        con.setReadTimeout(120000);
+        con.setRequestProperty("Content-Type", "text/xml;charset=UTF-8");
+        con.setRequestProperty("SOAPAction", "\"\"");
+        con.setRequestProperty("Authorization", "Basic " + DatatypeConverter.printBase64Binary(credentials.getBytes("UTF-8")));
+        try (OutputStream output = con.getOutputStream()) {
+            output.write(envelope.getBytes("UTF-8"));
+        }
+        return con;
+    }
+
     private String getPostCommand(String cmd) {
     	if (LocalFileRepository.isWindows()) {
     		cmd = "cmd /c " + cmd;
@@ -20,18 +20,33 @@
 package org.wildfly.extras.patch.jaxws;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import javax.jws.WebService;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.WebServiceException;
 import javax.xml.ws.handler.MessageContext;
@@ -52,23 +67,46 @@ import org.wildfly.extras.patch.utils.IllegalArgumentAssertion;
 @WebService(targetNamespace = RepositoryService.TARGET_NAMESPACE, endpointInterface = "org.wildfly.extras.patch.repository.RepositoryService")
 public class RepositoryEndpoint implements RepositoryService {
 
+    // The maximum number of concurrent requests for heavy operations, further requests are queued
+    // These parameters are read from the servlet context or else from the system properties
+    public static final String PARAM_ADD_ARCHIVE_THREADS = "fusepatch.addArchive.threads";
+    public static final String PARAM_SMART_PATCH_THREADS = "fusepatch.getSmartPatch.threads";
+    // The maximum number of queued requests per operation, further requests are rejected
+    public static final String PARAM_QUEUE_SIZE = "fusepatch.queue.size";
+    // The seconds after which a rejected client should retry
+    public static final String PARAM_RETRY_AFTER = "fusepatch.retry.after";
+
 	@Resource
 	private WebServiceContext context;
 
-    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
 	private Repository delegate;
+    private ExecutorService addArchiveExecutor;
+    private ExecutorService smartPatchExecutor;
+    private int retryAfter;
 
     @PostConstruct
     public void postConstruct() {
         URL repoURL = getRepositoryURL();
         PatchToolBuilder builder = new PatchToolBuilder().customLock(lock).repositoryURL(repoURL);
         delegate = builder.build().getRepository();
+
+        int queueSize = getIntParameter(PARAM_QUEUE_SIZE, 16);
+        addArchiveExecutor = createExecutor("addArchive", getIntParameter(PARAM_ADD_ARCHIVE_THREADS, 2), queueSize);
+        smartPatchExecutor = createExecutor("getSmartPatch", getIntParameter(PARAM_SMART_PATCH_THREADS, 4), queueSize);
+        retryAfter = getIntParameter(PARAM_RETRY_AFTER, 5);
+    }
+
+    @PreDestroy
+    public void preDestroy() {
+        addArchiveExecutor.shutdown();
+        smartPatchExecutor.shutdown();
     }
 
 	@Override
 	public String[] queryAvailable(String prefix) {
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             List<String> result = new ArrayList<>();
             for (PatchId pid : delegate.queryAvailable(prefix)) {
@@ -76,83 +114,190 @@ public class RepositoryEndpoint implements RepositoryService {
             }
             return result.toArray(new String[result.size()]);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
 	}
 
 	@Override
 	public String getLatestAvailable(String prefix) {
         IllegalArgumentAssertion.assertNotNull(prefix, "prefix");
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             PatchId patchId = delegate.getLatestAvailable(prefix);
             return patchId != null ? patchId.toString() : null;
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
 	}
 
 	@Override
 	public PatchAdapter getPatch(String patchId) {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
+        lock.readLock().lock();
         try {
             return PatchAdapter.fromPatch(delegate.getPatch(PatchId.fromString(patchId)));
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
         }
 	}
 
 	@Override
-	public String addArchive(PatchMetadataAdapter metadata, DataHandler dataHandler, boolean force) throws IOException {
+	public String addArchive(final PatchMetadataAdapter metadata, final DataHandler dataHandler, final boolean force) throws IOException {
         IllegalArgumentAssertion.assertNotNull(metadata, "metadata");
         IllegalArgumentAssertion.assertNotNull(dataHandler, "dataHandler");
-        lock.tryLock();
-        try {
-            return delegate.addArchive(metadata.toPatchMetadata(), dataHandler, force).toString();
-        } finally {
-            lock.unlock();
-        }
+        // The repository locks by patch name, so that independent archives are added concurrently
+        return execute(addArchiveExecutor, "addArchive", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return delegate.addArchive(metadata.toPatchMetadata(), dataHandler, force).toString();
+            }
+        });
 	}
 
 	@Override
     public boolean removeArchive(String patchId) {
         IllegalArgumentAssertion.assertNotNull(patchId, "patchId");
-        lock.tryLock();
-        try {
-            return delegate.removeArchive(PatchId.fromString(patchId));
-        } finally {
-            lock.unlock();
-        }
+        return delegate.removeArchive(PatchId.fromString(patchId));
     }
 
     @Override
     public SmartPatchAdapter getSmartPatch(PatchAdapter seedPatch, String patchId) {
-        lock.tryLock();
+        final Patch seed = seedPatch != null ? seedPatch.toPatch() : null;
+        final PatchId pid;
+        HttpServletRequest servletRequest = (HttpServletRequest) context.getMessageContext().get(MessageContext.SERVLET_REQUEST);
+        lock.readLock().lock();
         try {
-            Patch seed = seedPatch != null ? seedPatch.toPatch() : null;
-            PatchId pid = patchId != null ? PatchId.fromString(patchId) : null;
+            PatchId targetId = patchId != null ? PatchId.fromString(patchId) : null;
 
             // Derive the target patch id from the seed patch id
-            if (pid == null) {
+            if (targetId == null) {
                 IllegalArgumentAssertion.assertNotNull(seedPatch, "seedPatch");
                 PatchMetadata metadata = seedPatch.getMetadata().toPatchMetadata();
-                pid = delegate.getLatestAvailable(metadata.getPatchId().getName());
+                targetId = delegate.getLatestAvailable(metadata.getPatchId().getName());
             }
+            pid = targetId;
 
             // Assert user has required roles
             PatchMetadata metadata = delegate.getPatch(pid).getMetadata();
-            HttpServletRequest servletRequest = (HttpServletRequest) context.getMessageContext().get(MessageContext.SERVLET_REQUEST);
             for (String role : metadata.getRoles()) {
                 if (!servletRequest.isUserInRole(role)) {
                     throw new WebServiceException(new SecurityException("User does not have required role: " + role));
                 }
             }
-
-            SmartPatch smartPatch = delegate.getSmartPatch(seed, pid);
-            return SmartPatchAdapter.fromSmartPatch(smartPatch);
         } finally {
-            lock.unlock();
+            lock.readLock().unlock();
+        }
+
+        // The repository takes its own locks on the worker thread
+        SmartPatch smartPatch;
+        try {
+            smartPatch = execute(smartPatchExecutor, "getSmartPatch", new Callable<SmartPatch>() {
+                @Override
+                public SmartPatch call() throws Exception {
+                    return delegate.getSmartPatch(seed, pid);
+                }
+            });
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        // The content is streamed after this method returns, release the smart patch when the request completes
+        RequestReleaseListener.releaseOnCompletion(servletRequest, smartPatch);
+        SmartPatchAdapter result = SmartPatchAdapter.fromSmartPatch(smartPatch);
+        if (result.getDataHandler() != null) {
+            result.setDataHandler(new DataHandler(new ReadOnlyDataSource(result.getDataHandler().getDataSource())));
+        }
+        return result;
+    }
+
+    private <T> T execute(ExecutorService executor, String operation, Callable<T> task) throws IOException {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException ex) {
+            // Tell the client to come back later
+            MessageContext msgContext = context.getMessageContext();
+            msgContext.put(MessageContext.HTTP_RESPONSE_CODE, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            HttpServletResponse servletResponse = (HttpServletResponse) msgContext.get(MessageContext.SERVLET_RESPONSE);
+            if (servletResponse != null) {
+                servletResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                servletResponse.setHeader("Retry-After", String.valueOf(retryAfter));
+                servletResponse.setContentType("text/xml;charset=UTF-8");
+                // Commit the response, otherwise the fault that follows resets the status to 500
+                servletResponse.flushBuffer();
+            }
+            throw new WebServiceException("Too many " + operation + " requests, retry after " + retryAfter + "s", ex);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new WebServiceException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new WebServiceException(cause);
+        }
+    }
+
+    private static ExecutorService createExecutor(final String operation, int threads, int queueSize) {
+        IllegalArgumentAssertion.assertTrue(threads > 0, "Invalid number of threads for " + operation + ": " + threads);
+        IllegalArgumentAssertion.assertTrue(queueSize > 0, "Invalid queue size: " + queueSize);
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable run) {
+                Thread thread = new Thread(run, "fusepatch-" + operation + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), threadFactory);
+    }
+
+    private int getIntParameter(String name, int defaultValue) {
+        ServletContext servletContext = (ServletContext) context.getMessageContext().get(MessageContext.SERVLET_CONTEXT);
+        String value = servletContext.getInitParameter(name);
+        if (value == null) {
+            value = System.getProperty(name);
+        }
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    // Hides the repository file that backs the smart patch content from writers
+    private static final class ReadOnlyDataSource implements DataSource {
+
+        private final DataSource delegate;
+
+        ReadOnlyDataSource(DataSource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return delegate.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("read-only");
+        }
+
+        @Override
+        public String getContentType() {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public String getName() {
+            return delegate.getName();
         }
     }
 
@@ -0,0 +1,67 @@
+/*
+ * #%L
+ * Fuse Patch :: Core
+ * %%
+ * Copyright (C) 2015 Private
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wildfly.extras.patch.jaxws;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+
+/**
+ * Closes the resources that are registered with a request when the request completes,
+ * which is after the response content has been written.
+ */
+public final class RequestReleaseListener implements ServletRequestListener {
+
+    private static final String RESOURCES_ATTRIBUTE = RequestReleaseListener.class.getName() + ".resources";
+
+    static void releaseOnCompletion(ServletRequest request, Closeable resource) {
+        @SuppressWarnings("unchecked")
+        List<Closeable> resources = (List<Closeable>) request.getAttribute(RESOURCES_ATTRIBUTE);
+        if (resources == null) {
+            resources = new ArrayList<>();
+            request.setAttribute(RESOURCES_ATTRIBUTE, resources);
+        }
+        resources.add(resource);
+    }
+
+    @Override
+    public void requestInitialized(ServletRequestEvent event) {
+    }
+
+    @Override
+    public void requestDestroyed(ServletRequestEvent event) {
+        @SuppressWarnings("unchecked")
+        List<Closeable> resources = (List<Closeable>) event.getServletRequest().getAttribute(RESOURCES_ATTRIBUTE);
+        if (resources != null) {
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException ex) {
+                    event.getServletContext().log("Cannot release: " + resource, ex);
+                }
+            }
+        }
+    }
+}